@@ -1,5 +1,6 @@
 package api;
 
+import crypto.CryptoProviders;
 import org.springframework.beans.factory.annotation.Autowired;
 import transaction.requests.AuthenticationRequest;
 import transaction.requests.PreauthenticationRequest;
@@ -28,6 +29,9 @@ public class Servlet {
     @Autowired
     U2FServletHelper u2fHelper;
 
+    @Autowired
+    CryptoProviders cryptoProviders;
+
     authenticateRestRequestBeanLocal authRest;
 
     public Servlet() { }
@@ -105,4 +109,21 @@ public class Servlet {
 
         return u2fHelperBean.authenticate(did, authentication);
     }
+
+    /**
+     * The provider each algorithm is taken from, and in non-FIPS mode how
+     * long each candidate took at startup. Authenticated as the FIDO
+     * endpoints are; a GET has no body to sign.
+     */
+    @GET
+    @Path("/diagnostics/crypto")
+    @Produces({"application/json"})
+    public Response getCryptoProviders() {
+
+        if (!authRest.execute(did, request, null)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        return Response.ok().entity(cryptoProviders.toJson().toString()).build();
+    }
 }
\ No newline at end of file
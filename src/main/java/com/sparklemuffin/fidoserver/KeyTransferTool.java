@@ -0,0 +1,123 @@
+package com.sparklemuffin.fidoserver;
+
+import crypto.KeyhandleSealer;
+import dal.Database;
+import dal.KeyArchive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Command line entry point for bulk key transfer, run against the key store
+ * of a stopped or new node with the same configuration as the server:
+ *
+ *   export --out keys.ndjson [--icpid 1] [--pagesize 1000]
+ *   import --in keys.ndjson [--workers 4] [--batchsize 1000] [--deferindexes] [--resume]
+ *
+ * With --resume an import continues from keys.ndjson.progress, the
+ * checkpoint every import keeps. Settings come from application.properties,
+ * overridden by -D system properties; an import needs the keyhandle keys of
+ * the cluster the keys were exported from.
+ */
+public class KeyTransferTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !(args[0].equals("export") || args[0].equals("import"))) {
+            usage();
+            return;
+        }
+        Map<String, String> options = options(args);
+        loadProperties();
+
+        Database database = new Database();
+        database.setUp();
+        try {
+            // Only import opens keyhandles, to check them against this cluster's keys
+            KeyArchive archive = new KeyArchive(database, args[0].equals("import") ? KeyhandleSealer.getInstance() : null);
+            long start = System.nanoTime();
+            long rows;
+            if (args[0].equals("export")) {
+                Path out = Paths.get(required(options, "out"));
+                try (Writer writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+                    rows = archive.export(options.get("icpid"), writer, intOption(options, "pagesize", 1000));
+                }
+            } else {
+                Path in = Paths.get(required(options, "in"));
+                Path checkpoint = Paths.get(in + ".progress");
+                if (!options.containsKey("resume")) {
+                    Files.deleteIfExists(checkpoint);
+                }
+                try (BufferedReader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8)) {
+                    rows = archive.importKeys(reader, checkpoint,
+                            intOption(options, "workers", Runtime.getRuntime().availableProcessors()),
+                            intOption(options, "batchsize", 1000),
+                            options.containsKey("deferindexes"));
+                }
+                Files.deleteIfExists(checkpoint);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s %d keys in %.1fs (%.0f rows/s)%n",
+                    args[0].equals("export") ? "Exported" : "Imported", rows, seconds, rows / Math.max(seconds, 1e-3));
+        } finally {
+            database.close();
+        }
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "");
+            }
+        }
+        return options;
+    }
+
+    private static String required(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("--" + name + " is required");
+        }
+        return value;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return (value == null || value.isEmpty()) ? defaultValue : Integer.parseInt(value);
+    }
+
+    // Common.getProperty reads system properties; fill in the ones not given
+    private static void loadProperties() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = KeyTransferTool.class.getResourceAsStream("/application.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (System.getProperty(name) == null) {
+                System.setProperty(name, properties.getProperty(name));
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: KeyTransferTool export --out <file> [--icpid <id>] [--pagesize <n>]");
+        System.err.println("       KeyTransferTool import --in <file> [--workers <n>] [--batchsize <n>] [--deferindexes] [--resume]");
+    }
+}
@@ -0,0 +1,552 @@
+package common;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fields of a client's clientData (U2F) or clientDataJSON (FIDO2) that
+ * the server checks: type (typ in U2F), challenge, origin, crossOrigin and
+ * tokenBinding.
+ *
+ * The base64url text is decoded into a per-thread buffer and the JSON is
+ * scanned once, in place; only the values read out become Strings. The
+ * scanner accepts exactly what the javax.json reader the server used before
+ * does: RFC 8259 JSON with an object at the top, where whatever follows the
+ * object is ignored and, of repeated members, the last one counts. The one
+ * difference is that nesting deeper than 64 is refused. A field that is
+ * missing or not of its type reads as null.
+ */
+public final class ClientData {
+
+    // Larger clientData gets a buffer of its own
+    private static final int POOLED_LENGTH = 2048;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[POOLED_LENGTH]);
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] TYP = ascii(Constants.JSON_KEY_REQUESTTYPE);
+    private static final byte[] CHALLENGE = ascii("challenge");
+    private static final byte[] ORIGIN = ascii("origin");
+    private static final byte[] CROSS_ORIGIN = ascii("crossOrigin");
+    private static final byte[] TOKEN_BINDING = ascii("tokenBinding");
+    private static final byte[] STATUS = ascii("status");
+    private static final byte[] ID = ascii("id");
+
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        java.util.Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private String type;
+    private String typ;
+    private String challenge;
+    private String origin;
+    private Boolean crossOrigin;
+    private String tokenBindingStatus;
+    private String tokenBindingId;
+
+    private ClientData() { }
+
+    /**
+     * @param base64url - clientData as the client sent it
+     * @throws IllegalArgumentException if it is not base64url or not a JSON
+     * object
+     */
+    public static ClientData parse(String base64url) {
+        int length = decodedLength(base64url);
+        byte[] pooled = BUFFER.get();
+        byte[] json = (length <= pooled.length) ? pooled : new byte[length];
+        decode(base64url, json, length);
+
+        ClientData clientData = new ClientData();
+        new Scanner(json, length).document(clientData);
+        return clientData;
+    }
+
+    /**
+     * @return the parsed clientData, or null if it does not parse
+     */
+    public static ClientData parseOrNull(String base64url) {
+        if (base64url == null) {
+            return null;
+        }
+        try {
+            return parse(base64url);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the clientData of a U2F signature, or null if it does not
+     * parse or lacks typ, challenge or origin as strings
+     */
+    public static ClientData parseU2f(String base64url) {
+        ClientData clientData = parseOrNull(base64url);
+        return (clientData == null || clientData.typ == null || clientData.challenge == null
+                || clientData.origin == null) ? null : clientData;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return the U2F request type, such as navigator.id.getAssertion
+     */
+    public String getTyp() {
+        return typ;
+    }
+
+    public String getChallenge() {
+        return challenge;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public Boolean getCrossOrigin() {
+        return crossOrigin;
+    }
+
+    public String getTokenBindingStatus() {
+        return tokenBindingStatus;
+    }
+
+    public String getTokenBindingId() {
+        return tokenBindingId;
+    }
+
+    /**
+     * Checks the text the way java.util.Base64's URL decoder does: padding is
+     * optional, but if present must complete the last unit.
+     *
+     * @return number of bytes the text decodes to
+     */
+    private static int decodedLength(String text) {
+        int end = text.length();
+        int padding = 0;
+        while (end > 0 && text.charAt(end - 1) == '=') {
+            end--;
+            padding++;
+        }
+        int rest = end % 4;
+        if (rest == 1 || (padding > 0 && padding != 4 - rest) || (padding > 0 && rest == 0)) {
+            throw new IllegalArgumentException("clientData is not base64url");
+        }
+        return end / 4 * 3 + ((rest == 0) ? 0 : rest - 1);
+    }
+
+    private static void decode(String text, byte[] out, int length) {
+        int bits = 0;
+        int count = 0;
+        int o = 0;
+        // The characters before any padding, which decodedLength checked
+        for (int i = 0, end = length / 3 * 4 + ((length % 3 == 0) ? 0 : length % 3 + 1); i < end; i++) {
+            char c = text.charAt(i);
+            int value = (c < 128) ? BASE64URL[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("clientData is not base64url");
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                out[o++] = (byte) (bits >> 16);
+                out[o++] = (byte) (bits >> 8);
+                out[o++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 3) {
+            out[o++] = (byte) (bits >> 10);
+            out[o] = (byte) (bits >> 2);
+        } else if (count == 2) {
+            out[o] = (byte) (bits >> 4);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A single pass over the decoded JSON. Values of members other than the
+     * ones read out are checked and skipped without being built.
+     */
+    private static final class Scanner {
+
+        private final byte[] json;
+        private final int end;
+        private int pos;
+
+        // Start and end of the last string scanned, and whether it had escapes
+        private int stringStart;
+        private int stringEnd;
+        private boolean escaped;
+
+        Scanner(byte[] json, int end) {
+            this.json = json;
+            this.end = end;
+        }
+
+        void document(ClientData clientData) {
+            whitespace();
+            expect('{');
+            whitespace();
+            if (peek() == '}') {
+                pos++;
+                return;
+            }
+            do {
+                whitespace();
+                scanString();
+                int keyStart = stringStart;
+                int keyEnd = stringEnd;
+                boolean keyEscaped = escaped;
+                whitespace();
+                expect(':');
+                whitespace();
+                if (isKey(keyStart, keyEnd, keyEscaped, CHALLENGE)) {
+                    clientData.challenge = stringOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, ORIGIN)) {
+                    clientData.origin = stringOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, TYPE)) {
+                    clientData.type = stringOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, TYP)) {
+                    clientData.typ = stringOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, CROSS_ORIGIN)) {
+                    clientData.crossOrigin = booleanOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, TOKEN_BINDING)) {
+                    tokenBinding(clientData);
+                } else {
+                    skipValue(1);
+                }
+                whitespace();
+            } while (endOfMember('}'));
+            // Anything after the object is ignored, as the reader did
+        }
+
+        private void tokenBinding(ClientData clientData) {
+            clientData.tokenBindingStatus = null;
+            clientData.tokenBindingId = null;
+            if (peek() != '{') {
+                skipValue(1);
+                return;
+            }
+            pos++;
+            whitespace();
+            if (peek() == '}') {
+                pos++;
+                return;
+            }
+            do {
+                whitespace();
+                scanString();
+                int keyStart = stringStart;
+                int keyEnd = stringEnd;
+                boolean keyEscaped = escaped;
+                whitespace();
+                expect(':');
+                whitespace();
+                if (isKey(keyStart, keyEnd, keyEscaped, STATUS)) {
+                    clientData.tokenBindingStatus = stringOrSkip();
+                } else if (isKey(keyStart, keyEnd, keyEscaped, ID)) {
+                    clientData.tokenBindingId = stringOrSkip();
+                } else {
+                    skipValue(2);
+                }
+                whitespace();
+            } while (endOfMember('}'));
+        }
+
+        private String stringOrSkip() {
+            if (peek() != '"') {
+                skipValue(1);
+                return null;
+            }
+            scanString();
+            return string(stringStart, stringEnd, escaped);
+        }
+
+        private Boolean booleanOrSkip() {
+            if (peek() == 't') {
+                literal("true");
+                return Boolean.TRUE;
+            }
+            if (peek() == 'f') {
+                literal("false");
+                return Boolean.FALSE;
+            }
+            skipValue(1);
+            return null;
+        }
+
+        private void skipValue(int depth) {
+            switch (peek()) {
+                case '"':
+                    scanString();
+                    return;
+                case '{':
+                    skipContainer(depth, '}', true);
+                    return;
+                case '[':
+                    skipContainer(depth, ']', false);
+                    return;
+                case 't':
+                    literal("true");
+                    return;
+                case 'f':
+                    literal("false");
+                    return;
+                case 'n':
+                    literal("null");
+                    return;
+                default:
+                    number();
+            }
+        }
+
+        private void skipContainer(int depth, char close, boolean object) {
+            if (depth >= MAX_DEPTH) {
+                fail("clientData nested too deeply");
+            }
+            pos++;
+            whitespace();
+            if (peek() == close) {
+                pos++;
+                return;
+            }
+            do {
+                whitespace();
+                if (object) {
+                    scanString();
+                    whitespace();
+                    expect(':');
+                    whitespace();
+                }
+                skipValue(depth + 1);
+                whitespace();
+            } while (endOfMember(close));
+        }
+
+        /**
+         * @return true if a comma follows, false if the container closes
+         */
+        private boolean endOfMember(char close) {
+            int c = next();
+            if (c == ',') {
+                return true;
+            }
+            if (c != close) {
+                fail("Expected ',' or '" + close + "'");
+            }
+            return false;
+        }
+
+        private void number() {
+            int start = pos;
+            if (peek() == '-') {
+                pos++;
+            }
+            if (peek() == '0') {
+                pos++;
+            } else if (isDigit(peek())) {
+                digits();
+            } else {
+                fail("Unexpected character");
+            }
+            if (peek() == '.') {
+                pos++;
+                if (!isDigit(peek())) {
+                    fail("Expected a digit");
+                }
+                digits();
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                pos++;
+                if (peek() == '+' || peek() == '-') {
+                    pos++;
+                }
+                if (!isDigit(peek())) {
+                    fail("Expected a digit");
+                }
+                int exponent = pos;
+                digits();
+                // The reader turned numbers into BigDecimals, which cannot
+                // take an exponent beyond an int
+                if (pos - exponent > 9) {
+                    try {
+                        new BigDecimal(new String(json, start, pos - start, StandardCharsets.US_ASCII));
+                    } catch (NumberFormatException e) {
+                        fail("Number out of range");
+                    }
+                }
+            }
+        }
+
+        private void digits() {
+            while (isDigit(peek())) {
+                pos++;
+            }
+        }
+
+        private static boolean isDigit(int c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private void literal(String literal) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (next() != literal.charAt(i)) {
+                    fail("Unexpected character");
+                }
+            }
+        }
+
+        /**
+         * Checks the string at the position and moves past it, noting where
+         * its content is.
+         */
+        private void scanString() {
+            expect('"');
+            stringStart = pos;
+            escaped = false;
+            while (true) {
+                int c = next();
+                if (c == '"') {
+                    stringEnd = pos - 1;
+                    return;
+                }
+                if (c < 0x20) {
+                    fail("Unterminated string or control character in string");
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    int e = next();
+                    if (e == 'u') {
+                        for (int i = 0; i < 4; i++) {
+                            if (hex(next()) < 0) {
+                                fail("Malformed unicode escape");
+                            }
+                        }
+                    } else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r' && e != 't') {
+                        fail("Malformed escape");
+                    }
+                }
+            }
+        }
+
+        private String string(int start, int stop, boolean hasEscapes) {
+            if (!hasEscapes) {
+                return new String(json, start, stop - start, StandardCharsets.UTF_8);
+            }
+            StringBuilder sb = new StringBuilder(stop - start);
+            int run = start;
+            int i = start;
+            while (i < stop) {
+                if (json[i] != '\\') {
+                    i++;
+                    continue;
+                }
+                sb.append(new String(json, run, i - run, StandardCharsets.UTF_8));
+                char e = (char) json[i + 1];
+                switch (e) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        sb.append((char) ((hex(json[i + 2]) << 12) | (hex(json[i + 3]) << 8)
+                                | (hex(json[i + 4]) << 4) | hex(json[i + 5])));
+                        i += 4;
+                        break;
+                    default:
+                        sb.append(e);
+                }
+                i += 2;
+                run = i;
+            }
+            sb.append(new String(json, run, stop - run, StandardCharsets.UTF_8));
+            return sb.toString();
+        }
+
+        private boolean isKey(int start, int stop, boolean hasEscapes, byte[] name) {
+            if (hasEscapes) {
+                return string(start, stop, true).equals(new String(name, StandardCharsets.US_ASCII));
+            }
+            if (stop - start != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (json[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hex(int c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            }
+            if (c >= 'a' && c <= 'f') {
+                return c - 'a' + 10;
+            }
+            if (c >= 'A' && c <= 'F') {
+                return c - 'A' + 10;
+            }
+            return -1;
+        }
+
+        private void whitespace() {
+            while (pos < end) {
+                byte c = json[pos];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                fail("Expected '" + c + "'");
+            }
+        }
+
+        /**
+         * @return the byte at the position, or -1 at the end
+         */
+        private int peek() {
+            return (pos < end) ? json[pos] & 0xFF : -1;
+        }
+
+        private int next() {
+            if (pos >= end) {
+                fail("clientData ends too soon");
+            }
+            return json[pos++] & 0xFF;
+        }
+
+        private void fail(String message) {
+            throw new IllegalArgumentException(message + " in clientData at " + pos);
+        }
+    }
+}
@@ -7,6 +7,7 @@
 package common;
 
 import com.google.common.base.Strings;
+import crypto.CryptoPrimitives;
 import lombok.extern.java.Log;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.x9.ECNamedCurveTable;
@@ -206,7 +207,6 @@ public class Common {
         }
 
         Security.addProvider(new BouncyCastleFipsProvider());
-        cron.flushUserSessionsJob();
 
         cron.flushFIDOKeysJob();
 
@@ -522,7 +522,7 @@ public class Common {
 
     public static String getDigest(String Input, String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException, UnsupportedEncodingException {
 
-        MessageDigest digest = MessageDigest.getInstance(algorithm, "BCFIPS");
+        MessageDigest digest = CryptoPrimitives.digest(algorithm);
         byte[] digestbytes = digest.digest(Input.getBytes("UTF-8"));
         String dig = java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(digestbytes);
         return dig;
@@ -531,14 +531,14 @@ public class Common {
     public static byte[] getDigestBytes(String Input, String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException, UnsupportedEncodingException {
 
         MessageDigest digest;
-        digest = MessageDigest.getInstance(algorithm, "BCFIPS");
+        digest = CryptoPrimitives.digest(algorithm);
         byte[] digestbytes = digest.digest(Input.getBytes("UTF-8"));
         return digestbytes;
     }
 
     public static byte[] getDigestBytes(byte[] input, String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException, UnsupportedEncodingException {
         MessageDigest digest;
-        digest = MessageDigest.getInstance(algorithm, "BCFIPS");
+        digest = CryptoPrimitives.digest(algorithm);
         byte[] digestbytes = digest.digest(input);
         return digestbytes;
     }
@@ -586,18 +586,8 @@ public class Common {
      * @return returns origin parsed from browserdata
      */
     public static String getChallengefromBrowserdata(String bd) {
-        try {
-            String browserdataJson = new String(java.util.Base64.getUrlDecoder().decode(bd), "UTF-8");
-            JsonObject jsonObject;
-            try (JsonReader jsonReader = Json.createReader(new StringReader(browserdataJson))) {
-                jsonObject = jsonReader.readObject();
-            }
-
-            return jsonObject.getString(SKFSConstants.JSON_KEY_NONCE);
-
-        } catch (IOException ex) {
-            return null;
-        }
+        ClientData clientData = ClientData.parseOrNull(bd);
+        return (clientData == null) ? null : clientData.getChallenge();
     }
 
     /**
@@ -606,18 +596,8 @@ public class Common {
      * @return returns origin parsed from browserdata
      */
     public static String getOriginfromBrowserdata(String bd) {
-        try {
-            String browserdataJson = new String(java.util.Base64.getUrlDecoder().decode(bd), "UTF-8");
-            JsonObject jsonObject;
-            try (JsonReader jsonReader = Json.createReader(new StringReader(browserdataJson))) {
-                jsonObject = jsonReader.readObject();
-            }
-
-            return jsonObject.getString(SKFSConstants.JSON_KEY_SERVERORIGIN);
-
-        } catch (IOException ex) {
-            return null;
-        }
+        ClientData clientData = ClientData.parseOrNull(bd);
+        return (clientData == null) ? null : clientData.getOrigin();
     }
 
     /**
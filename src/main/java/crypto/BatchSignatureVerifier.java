@@ -0,0 +1,237 @@
+package crypto;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies many signatures at once, for bulk authorize requests and for
+ * re-verifying stored assertions in audit replays.
+ *
+ * Checks are grouped by algorithm and each group is cut into chunks that run
+ * on a dedicated ForkJoinPool (crypto.property.verify.parallelism threads, 0
+ * for one per core), so request threads and the common pool are left alone.
+ * A chunk takes one Signature from CryptoPrimitives and initializes it again
+ * for each check rather than looking one up per signature. Ed25519, which
+ * the Java 8 providers lack, is verified with the BouncyCastle RFC 8032 code
+ * from the raw 32 byte key.
+ */
+@Log
+@Component("batchSignatureVerifier")
+public class BatchSignatureVerifier {
+
+    public static final String ED25519 = "Ed25519";
+
+    // Fewer checks than this per chunk cost more in scheduling than they save
+    private static final int MIN_CHUNK = 8;
+
+    public enum Outcome {
+        VALID, INVALID, ERROR
+    }
+
+    /**
+     * One signature to verify: a key, the algorithm to verify with, the data
+     * that was signed and the signature.
+     */
+    public static final class Check {
+
+        private final String algorithm;
+        private final PublicKey publicKey;
+        private final byte[] rawKey;
+        private final byte[] signedData;
+        private final byte[] signature;
+
+        private Check(String algorithm, PublicKey publicKey, byte[] rawKey, byte[] signedData, byte[] signature) {
+            this.algorithm = algorithm;
+            this.publicKey = publicKey;
+            this.rawKey = rawKey;
+            this.signedData = signedData;
+            this.signature = signature;
+        }
+
+        /**
+         * @param algorithm - JCA signature algorithm, e.g. SHA256withECDSA
+         */
+        public static Check of(String algorithm, PublicKey publicKey, byte[] signedData, byte[] signature) {
+            return new Check(algorithm, publicKey, null, signedData, signature);
+        }
+
+        public static Check of(VerificationKey key, byte[] signedData, byte[] signature) {
+            return of(key.getSignatureAlgorithm(), key.getPublicKey(), signedData, signature);
+        }
+
+        /**
+         * @param publicKey - the 32 byte Ed25519 public key
+         */
+        public static Check ed25519(byte[] publicKey, byte[] signedData, byte[] signature) {
+            return new Check(ED25519, null, publicKey, signedData, signature);
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+    }
+
+    private ForkJoinPool pool;
+    private int parallelism;
+
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public BatchSignatureVerifier() { }
+
+    /**
+     * Creates a started verifier; used by tests and benchmarks.
+     */
+    BatchSignatureVerifier(int parallelism) {
+        startPool(parallelism);
+    }
+
+    @PostConstruct
+    public void start() {
+        startPool(Integer.parseInt(Common.getProperty("crypto.property.verify.parallelism")));
+        log.info("Batch signature verification started, parallelism=" + parallelism);
+    }
+
+    @PreDestroy
+    public void stop() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startPool(int parallelism) {
+        this.parallelism = (parallelism > 0) ? parallelism : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(this.parallelism);
+    }
+
+    /**
+     * @return the outcome of each check, in the order of the checks; ERROR
+     * where the key or signature could not be used at all
+     */
+    public Outcome[] verify(List<Check> checks) {
+        Outcome[] outcomes = new Outcome[checks.size()];
+        Map<String, List<Integer>> byAlgorithm = new LinkedHashMap<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            byAlgorithm.computeIfAbsent(checks.get(i).algorithm, a -> new ArrayList<>()).add(i);
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        int chunkSize = Math.max(MIN_CHUNK, (outcomes.length + parallelism - 1) / parallelism);
+        for (Map.Entry<String, List<Integer>> group : byAlgorithm.entrySet()) {
+            List<Integer> indexes = group.getValue();
+            for (int from = 0; from < indexes.size(); from += chunkSize) {
+                chunks.add(new Chunk(group.getKey(), checks, indexes.subList(from, Math.min(indexes.size(), from + chunkSize)),
+                        outcomes));
+            }
+        }
+        if (chunks.size() == 1) {
+            // Not worth a hand-off
+            chunks.get(0).compute();
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(chunks);
+                }
+            });
+        }
+        return outcomes;
+    }
+
+    private final class Chunk extends RecursiveAction {
+
+        private final String algorithm;
+        private final List<Check> checks;
+        private final List<Integer> indexes;
+        private final Outcome[] outcomes;
+
+        private Chunk(String algorithm, List<Check> checks, List<Integer> indexes, Outcome[] outcomes) {
+            this.algorithm = algorithm;
+            this.checks = checks;
+            this.indexes = indexes;
+            this.outcomes = outcomes;
+        }
+
+        @Override
+        protected void compute() {
+            Signature verifier = null;
+            if (!ED25519.equals(algorithm)) {
+                try {
+                    verifier = CryptoPrimitives.signature(algorithm, null);
+                } catch (GeneralSecurityException e) {
+                    log.warning("No verifier for " + algorithm + ": " + e.getMessage());
+                    for (int i : indexes) {
+                        outcomes[i] = Outcome.ERROR;
+                    }
+                    errors.add(indexes.size());
+                    return;
+                }
+            }
+            for (int i : indexes) {
+                outcomes[i] = (verifier == null) ? verifyEd25519(checks.get(i)) : verify(verifier, checks.get(i));
+            }
+        }
+    }
+
+    private Outcome verify(Signature verifier, Check check) {
+        try {
+            verifier.initVerify(check.publicKey);
+            verifier.update(check.signedData);
+            return count(verifier.verify(check.signature));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // A malformed signature fails to parse rather than to verify
+            errors.increment();
+            return Outcome.ERROR;
+        }
+    }
+
+    private Outcome verifyEd25519(Check check) {
+        if (check.rawKey == null || check.rawKey.length != Ed25519.PUBLIC_KEY_SIZE
+                || check.signature.length != Ed25519.SIGNATURE_SIZE) {
+            errors.increment();
+            return Outcome.ERROR;
+        }
+        return count(Ed25519.verify(check.signature, 0, check.rawKey, 0, check.signedData, 0, check.signedData.length));
+    }
+
+    private Outcome count(boolean valid) {
+        if (valid) {
+            verified.increment();
+            return Outcome.VALID;
+        }
+        invalid.increment();
+        return Outcome.INVALID;
+    }
+
+    public long getVerifiedCount() {
+        return verified.sum();
+    }
+
+    public long getInvalidCount() {
+        return invalid.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+}
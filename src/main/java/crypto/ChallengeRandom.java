@@ -0,0 +1,212 @@
+package crypto;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.drbg.HMacSP800DRBG;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Randomness for challenges, nonces and user ids.
+ *
+ * Each thread has its own HMAC-SHA256 DRBG (SP 800-90A), seeded from the
+ * system SecureRandom and reseeded from it every RESEED_BYTES of output or
+ * RESEED_MILLIS, whichever comes first. The DRBG fills a per-thread buffer
+ * BUFFER_BYTES at a time and requests are served from it, so a challenge costs
+ * a copy out of the buffer rather than a SecureRandom construction and a
+ * seed. Results are written straight into a caller's byte[] or, as base64url
+ * without padding, into a char[].
+ *
+ * In FIPS mode the buffer is filled from the FIPS provider's DEFAULT DRBG
+ * instead, which seeds and reseeds itself; each thread's generator is
+ * replaced whenever the installed CryptoProviders change.
+ */
+public final class ChallengeRandom {
+
+    private static final int BUFFER_BYTES = 4096;
+    private static final long RESEED_BYTES = 1 << 20;
+    private static final long RESEED_MILLIS = 60_000;
+    private static final int SECURITY_STRENGTH = 256;
+
+    private static final char[] BASE64URL =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final SecureRandom SYSTEM = new SecureRandom();
+
+    private static final ThreadLocal<Generator> GENERATOR = ThreadLocal.withInitial(Generator::new);
+
+    private ChallengeRandom() { }
+
+    public static void nextBytes(byte[] out) {
+        nextBytes(out, 0, out.length);
+    }
+
+    public static void nextBytes(byte[] out, int offset, int length) {
+        generator().next(out, offset, length);
+    }
+
+    /**
+     * Writes the base64url encoding, without padding, of numBytes random
+     * bytes.
+     *
+     * @return number of chars written, base64UrlLength(numBytes)
+     */
+    public static int nextBase64Url(int numBytes, char[] out, int offset) {
+        int chars = base64UrlLength(numBytes);
+        if (offset < 0 || offset + chars > out.length) {
+            throw new IndexOutOfBoundsException("No room for " + chars + " chars at " + offset);
+        }
+        generator().nextBase64Url(numBytes, out, offset);
+        return chars;
+    }
+
+    /**
+     * @return base64url encoding, without padding, of numBytes random bytes
+     */
+    public static String nextBase64Url(int numBytes) {
+        char[] chars = new char[base64UrlLength(numBytes)];
+        nextBase64Url(numBytes, chars, 0);
+        return new String(chars);
+    }
+
+    public static int base64UrlLength(int numBytes) {
+        return (numBytes / 3) * 4 + ((numBytes % 3 == 0) ? 0 : numBytes % 3 + 1);
+    }
+
+    private static Generator generator() {
+        Generator generator = GENERATOR.get();
+        if (generator.generation != CryptoProviders.generation()) {
+            // Nothing drawn from the previous DRBG is served after the change
+            generator = new Generator();
+            GENERATOR.set(generator);
+        }
+        return generator;
+    }
+
+    private static final class SystemEntropy implements EntropySource {
+
+        @Override
+        public boolean isPredictionResistant() {
+            return false;
+        }
+
+        @Override
+        public byte[] getEntropy() {
+            byte[] entropy = new byte[SECURITY_STRENGTH / 8];
+            SYSTEM.nextBytes(entropy);
+            return entropy;
+        }
+
+        @Override
+        public int entropySize() {
+            return SECURITY_STRENGTH;
+        }
+    }
+
+    private static final class Generator {
+
+        private final int generation = CryptoProviders.generation();
+        // One of the two is set
+        private final HMacSP800DRBG drbg;
+        private final SecureRandom fipsDrbg;
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int position = BUFFER_BYTES;
+        private long sinceReseed;
+        private long reseedAt;
+
+        private Generator() {
+            if (CryptoProviders.fipsInstalled()) {
+                try {
+                    fipsDrbg = SecureRandom.getInstance("DEFAULT", CryptoProviders.FIPS_PROVIDER);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("FIPS mode but " + CryptoProviders.FIPS_PROVIDER
+                            + " has no DEFAULT DRBG", e);
+                }
+                drbg = null;
+                return;
+            }
+            fipsDrbg = null;
+            byte[] nonce = new byte[SECURITY_STRENGTH / 16];
+            SYSTEM.nextBytes(nonce);
+            byte[] personalization = Thread.currentThread().getName().getBytes(StandardCharsets.UTF_8);
+            drbg = new HMacSP800DRBG(new HMac(new SHA256Digest()), SECURITY_STRENGTH, new SystemEntropy(),
+                    personalization, nonce);
+            reseedAt = System.currentTimeMillis() + RESEED_MILLIS;
+        }
+
+        void next(byte[] out, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > out.length) {
+                throw new IndexOutOfBoundsException("No room for " + length + " bytes at " + offset);
+            }
+            while (length > 0) {
+                if (position == BUFFER_BYTES) {
+                    refill();
+                }
+                int n = Math.min(length, BUFFER_BYTES - position);
+                System.arraycopy(buffer, position, out, offset, n);
+                // Served bytes are not kept around
+                Arrays.fill(buffer, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        void nextBase64Url(int numBytes, char[] out, int offset) {
+            int remaining = numBytes;
+            while (remaining > 0) {
+                int n = Math.min(3, remaining);
+                int bits = nextByte() << 16;
+                if (n > 1) {
+                    bits |= nextByte() << 8;
+                }
+                if (n > 2) {
+                    bits |= nextByte();
+                }
+                out[offset++] = BASE64URL[bits >>> 18];
+                out[offset++] = BASE64URL[(bits >>> 12) & 0x3f];
+                if (n > 1) {
+                    out[offset++] = BASE64URL[(bits >>> 6) & 0x3f];
+                }
+                if (n > 2) {
+                    out[offset++] = BASE64URL[bits & 0x3f];
+                }
+                remaining -= n;
+            }
+        }
+
+        private int nextByte() {
+            if (position == BUFFER_BYTES) {
+                refill();
+            }
+            int b = buffer[position] & 0xff;
+            buffer[position++] = 0;
+            return b;
+        }
+
+        private void refill() {
+            if (fipsDrbg != null) {
+                fipsDrbg.nextBytes(buffer);
+                position = 0;
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (sinceReseed >= RESEED_BYTES || now >= reseedAt) {
+                drbg.reseed(null);
+                sinceReseed = 0;
+                reseedAt = now + RESEED_MILLIS;
+            }
+            if (drbg.generate(buffer, null, false) < 0) {
+                // The DRBG's own reseed counter ran out first
+                drbg.reseed(null);
+                drbg.generate(buffer, null, false);
+            }
+            sinceReseed += BUFFER_BYTES;
+            position = 0;
+        }
+    }
+}
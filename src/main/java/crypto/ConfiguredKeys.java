@@ -0,0 +1,86 @@
+package crypto;
+
+import common.Common;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Secret keys given in configuration.
+ *
+ * An AES key is written as 32, 48 or 64 hex digits, or as the base64 or
+ * base64url of 16, 24 or 32 bytes. Text that decodes to anything else is
+ * refused rather than used as its characters, and so are keys that were once
+ * shipped as examples, since anyone can read those.
+ */
+public final class ConfiguredKeys {
+
+    // Shipped as defaults in earlier versions
+    private static final Set<String> KNOWN_DEFAULTS = new HashSet<>(Arrays.asList(
+            "9c2e41b07ad8f356", "a3d17e09c45b8f26"));
+
+    private ConfiguredKeys() { }
+
+    /**
+     * @return the AES key in the property
+     * @throws IllegalStateException if the property is missing, is not a key
+     * or is a known default
+     */
+    public static byte[] aes(String property) {
+        String text;
+        try {
+            text = Common.getProperty(property);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException(property + " must be set to an AES key", e);
+        }
+        return aes(property, text);
+    }
+
+    /**
+     * @param name - where the key came from, for the error message
+     * @throws IllegalStateException if the text is not a key or is a known
+     * default
+     */
+    public static byte[] aes(String name, String text) {
+        String trimmed = (text == null) ? "" : text.trim();
+        if (KNOWN_DEFAULTS.contains(trimmed)) {
+            throw new IllegalStateException(name + " is a published example key; generate a new one");
+        }
+        byte[] key = isHex(trimmed) ? hex(trimmed) : base64(trimmed);
+        if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+            throw new IllegalStateException(name + " must be 32, 48 or 64 hex digits, or the base64 of 16, 24 or 32 bytes");
+        }
+        return key;
+    }
+
+    private static boolean isHex(String text) {
+        if (text.length() != 32 && text.length() != 48 && text.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] hex(String text) {
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(text.charAt(2 * i), 16) << 4) | Character.digit(text.charAt(2 * i + 1), 16));
+        }
+        return bytes;
+    }
+
+    private static byte[] base64(String text) {
+        try {
+            return (text.indexOf('-') >= 0 || text.indexOf('_') >= 0)
+                    ? Base64.getUrlDecoder().decode(text) : Base64.getDecoder().decode(text);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
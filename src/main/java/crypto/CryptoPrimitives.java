@@ -0,0 +1,161 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-thread cache of Cipher, MessageDigest, Mac and Signature instances by
+ * algorithm and provider.
+ *
+ * getInstance goes through the provider registry, which is synchronized and,
+ * with the FIPS provider, runs its self checks; the instances it returns are
+ * not thread safe but can be initialized again and reused. Each thread keeps
+ * the ones it has asked for, so a lookup after the first is two hash map
+ * gets. Request threads are pooled, which bounds the instances to threads
+ * times algorithms in use.
+ *
+ * An instance is handed out again on the next call from the same thread for
+ * the same algorithm and provider, so it must be done with by then: get it,
+ * init it, finish it. Digests come back reset; the rest must be initialized
+ * by the caller as after getInstance. A null provider means the one
+ * CryptoProviders chose for the algorithm, or, for an algorithm it did not
+ * choose for, the first one registered for it.
+ */
+public final class CryptoPrimitives {
+
+    private static final String DEFAULT_PROVIDER = "";
+
+    private static final ThreadLocal<Instances<Cipher>> CIPHERS = ThreadLocal.withInitial(Instances::new);
+    private static final ThreadLocal<Instances<MessageDigest>> DIGESTS = ThreadLocal.withInitial(Instances::new);
+    private static final ThreadLocal<Instances<Mac>> MACS = ThreadLocal.withInitial(Instances::new);
+    private static final ThreadLocal<Instances<Signature>> SIGNATURES = ThreadLocal.withInitial(Instances::new);
+
+    private static final LongAdder created = new LongAdder();
+
+    private CryptoPrimitives() { }
+
+    public static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Instances<Cipher> instances = CIPHERS.get();
+        Cipher cipher = instances.get(transformation, null);
+        if (cipher == null) {
+            String provider = CryptoProviders.selected(CryptoProviders.CIPHER, transformation);
+            try {
+                cipher = instances.put(transformation, null, (provider == null)
+                        ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider));
+            } catch (NoSuchProviderException e) {
+                throw new NoSuchAlgorithmException(e.getMessage(), e);
+            }
+        }
+        return cipher;
+    }
+
+    public static Cipher cipher(String transformation, String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+        Instances<Cipher> instances = CIPHERS.get();
+        Cipher cipher = instances.get(transformation, provider);
+        if (cipher == null) {
+            String chosen = (provider == null) ? CryptoProviders.selected(CryptoProviders.CIPHER, transformation) : provider;
+            cipher = instances.put(transformation, provider, (chosen == null)
+                    ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, chosen));
+        }
+        return cipher;
+    }
+
+    /**
+     * @return a reset digest
+     */
+    public static MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+        Instances<MessageDigest> instances = DIGESTS.get();
+        MessageDigest digest = instances.get(algorithm, null);
+        if (digest == null) {
+            String provider = CryptoProviders.selected(CryptoProviders.DIGEST, algorithm);
+            try {
+                return instances.put(algorithm, null, (provider == null)
+                        ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(algorithm, provider));
+            } catch (NoSuchProviderException e) {
+                throw new NoSuchAlgorithmException(e.getMessage(), e);
+            }
+        }
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * @return a reset digest
+     */
+    public static MessageDigest digest(String algorithm, String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException {
+        Instances<MessageDigest> instances = DIGESTS.get();
+        MessageDigest digest = instances.get(algorithm, provider);
+        if (digest == null) {
+            String chosen = (provider == null) ? CryptoProviders.selected(CryptoProviders.DIGEST, algorithm) : provider;
+            return instances.put(algorithm, provider, (chosen == null)
+                    ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(algorithm, chosen));
+        }
+        digest.reset();
+        return digest;
+    }
+
+    public static Mac mac(String algorithm, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        Instances<Mac> instances = MACS.get();
+        Mac mac = instances.get(algorithm, provider);
+        if (mac == null) {
+            String chosen = (provider == null) ? CryptoProviders.selected(CryptoProviders.MAC, algorithm) : provider;
+            mac = instances.put(algorithm, provider,
+                    (chosen == null) ? Mac.getInstance(algorithm) : Mac.getInstance(algorithm, chosen));
+        }
+        return mac;
+    }
+
+    public static Signature signature(String algorithm, String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException {
+        Instances<Signature> instances = SIGNATURES.get();
+        Signature signature = instances.get(algorithm, provider);
+        if (signature == null) {
+            String chosen = (provider == null) ? CryptoProviders.selected(CryptoProviders.SIGNATURE, algorithm) : provider;
+            signature = instances.put(algorithm, provider,
+                    (chosen == null) ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, chosen));
+        }
+        return signature;
+    }
+
+    /**
+     * @return number of instances created through getInstance, across all
+     * threads
+     */
+    public static long getCreatedCount() {
+        return created.sum();
+    }
+
+    private static final class Instances<T> {
+
+        // provider, then algorithm, so a lookup builds no key
+        private final Map<String, Map<String, T>> byProvider = new HashMap<>();
+        private int generation = CryptoProviders.generation();
+
+        T get(String algorithm, String provider) {
+            if (generation != CryptoProviders.generation()) {
+                // Providers were chosen again; the default ones may have changed
+                byProvider.clear();
+                generation = CryptoProviders.generation();
+            }
+            Map<String, T> byAlgorithm = byProvider.get((provider == null) ? DEFAULT_PROVIDER : provider);
+            return (byAlgorithm == null) ? null : byAlgorithm.get(algorithm);
+        }
+
+        T put(String algorithm, String provider, T instance) {
+            byProvider.computeIfAbsent((provider == null) ? DEFAULT_PROVIDER : provider, p -> new HashMap<>())
+                    .put(algorithm, instance);
+            created.increment();
+            return instance;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package crypto;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which provider each algorithm is taken from when CryptoPrimitives is asked
+ * for one without naming a provider.
+ *
+ * With crypto.property.fips set everything comes from the FIPS provider, and
+ * an algorithm it does not have fails rather than falls back to another
+ * provider. Otherwise each algorithm below is timed at startup on every
+ * installed provider that has it, for crypto.property.selfbenchmark.millis
+ * each, and the fastest is used; algorithms not timed go to the first
+ * provider that has them, as getInstance would. The choices and timings are
+ * reported by the crypto diagnostics endpoint.
+ */
+@Log
+@Component("cryptoProviders")
+public class CryptoProviders {
+
+    public static final String FIPS_PROVIDER = "BCFIPS";
+
+    public static final String DIGEST = "MessageDigest";
+    public static final String CIPHER = "Cipher";
+    public static final String SIGNATURE = "Signature";
+    public static final String MAC = "Mac";
+
+    // The algorithms the server uses, by JCA service type
+    private static final String[][] ALGORITHMS = {
+            {DIGEST, "SHA-256"},
+            {DIGEST, "SHA-384"},
+            {DIGEST, "SHA-512"},
+            {CIPHER, "AES/GCM/NoPadding"},
+            {CIPHER, "AES/CBC/PKCS7Padding"},
+            {SIGNATURE, "SHA256withECDSA"},
+            {SIGNATURE, "SHA384withECDSA"},
+            {SIGNATURE, "SHA256withRSA"},
+            {SIGNATURE, "SHA256withRSA/PSS"},
+            {SIGNATURE, "Ed25519"}
+    };
+
+    private static final int DATA_LENGTH = 1024;
+    private static final int ROUNDS = 2;
+
+    private static volatile CryptoProviders active;
+    private static volatile int generation;
+
+    private boolean fips;
+    private long millis;
+    private List<Selection> selections = Collections.emptyList();
+    private Map<String, String> providers = Collections.emptyMap();
+    private final Map<String, KeyPair> keyPairs = new HashMap<>();
+
+    /**
+     * The provider chosen for one algorithm, with how long each candidate
+     * took per operation; empty timings in FIPS mode.
+     */
+    public static final class Selection {
+
+        private final String type;
+        private final String algorithm;
+        private final String provider;
+        private final Map<String, Long> nanosPerOp;
+
+        private Selection(String type, String algorithm, String provider, Map<String, Long> nanosPerOp) {
+            this.type = type;
+            this.algorithm = algorithm;
+            this.provider = provider;
+            this.nanosPerOp = Collections.unmodifiableMap(nanosPerOp);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        /**
+         * @return the provider name, or null if no provider has the algorithm
+         */
+        public String getProvider() {
+            return provider;
+        }
+
+        public Map<String, Long> getNanosPerOp() {
+            return nanosPerOp;
+        }
+    }
+
+    public CryptoProviders() { }
+
+    /**
+     * Creates a registry that has made its choices but is not installed; used
+     * by tests.
+     */
+    CryptoProviders(boolean fips, long millis) {
+        this.fips = fips;
+        this.millis = millis;
+        select();
+    }
+
+    @PostConstruct
+    public void start() {
+        fips = Boolean.parseBoolean(Common.getProperty("crypto.property.fips"));
+        millis = Long.parseLong(Common.getProperty("crypto.property.selfbenchmark.millis"));
+        long begin = System.nanoTime();
+        select();
+        install();
+        log.info("Crypto providers chosen in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + " ms, fips="
+                + fips + ": " + providers);
+    }
+
+    /**
+     * Makes CryptoPrimitives take instances from the chosen providers;
+     * instances it already handed out from others are dropped.
+     */
+    void install() {
+        active = this;
+        generation++;
+    }
+
+    static void uninstall() {
+        active = null;
+        generation++;
+    }
+
+    /**
+     * @return the provider CryptoPrimitives should use, or null for the
+     * first one that has the algorithm
+     */
+    static String selected(String type, String algorithm) {
+        CryptoProviders registry = active;
+        return (registry == null) ? null : registry.providerFor(type, algorithm);
+    }
+
+    /**
+     * @return true if the installed choices are FIPS mode ones
+     */
+    static boolean fipsInstalled() {
+        CryptoProviders registry = active;
+        return registry != null && registry.fips;
+    }
+
+    /**
+     * @return a number that changes whenever the chosen providers do
+     */
+    static int generation() {
+        return generation;
+    }
+
+    /**
+     * @param type - JCA service type, DIGEST, CIPHER, SIGNATURE or MAC
+     * @return the provider name, or null for the first one that has the
+     * algorithm
+     */
+    public String providerFor(String type, String algorithm) {
+        return fips ? FIPS_PROVIDER : providers.get(type + '.' + algorithm);
+    }
+
+    public boolean isFips() {
+        return fips;
+    }
+
+    public List<Selection> getSelections() {
+        return selections;
+    }
+
+    public JsonObject toJson() {
+        JsonArrayBuilder algorithms = Json.createArrayBuilder();
+        for (Selection selection : selections) {
+            JsonObjectBuilder timings = Json.createObjectBuilder();
+            selection.nanosPerOp.forEach(timings::add);
+            JsonObjectBuilder entry = Json.createObjectBuilder()
+                    .add("type", selection.type)
+                    .add("algorithm", selection.algorithm);
+            if (selection.provider == null) {
+                entry.addNull("provider");
+            } else {
+                entry.add("provider", selection.provider);
+            }
+            algorithms.add(entry.add("nanosPerOp", timings));
+        }
+        return Json.createObjectBuilder()
+                .add("fips", fips)
+                .add("algorithms", algorithms)
+                .build();
+    }
+
+    private void select() {
+        if (fips && Security.getProvider(FIPS_PROVIDER) == null) {
+            throw new IllegalStateException("FIPS mode but the " + FIPS_PROVIDER + " provider is not installed");
+        }
+        List<Selection> chosen = new ArrayList<>();
+        Map<String, String> byAlgorithm = new HashMap<>();
+        for (String[] algorithm : ALGORITHMS) {
+            Selection selection = fips ? fips(algorithm[0], algorithm[1]) : fastest(algorithm[0], algorithm[1]);
+            chosen.add(selection);
+            if (selection.provider != null) {
+                byAlgorithm.put(algorithm[0] + '.' + algorithm[1], selection.provider);
+            }
+        }
+        keyPairs.clear();
+        selections = Collections.unmodifiableList(chosen);
+        providers = Collections.unmodifiableMap(byAlgorithm);
+    }
+
+    private Selection fips(String type, String algorithm) {
+        Map<String, Long> none = Collections.emptyMap();
+        try {
+            operation(type, algorithm, FIPS_PROVIDER);
+            return new Selection(type, algorithm, FIPS_PROVIDER, none);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return new Selection(type, algorithm, null, none);
+        }
+    }
+
+    private Selection fastest(String type, String algorithm) {
+        Map<String, Operation> candidates = new LinkedHashMap<>();
+        for (Provider provider : Security.getProviders()) {
+            try {
+                candidates.put(provider.getName(), operation(type, algorithm, provider.getName()));
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Does not have it, or cannot work with the test key
+            }
+        }
+
+        // Candidates take turns, twice, so the one timed first is not the
+        // only one timed while the JIT is still busy; each keeps its best
+        Map<String, Long> timings = new LinkedHashMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Iterator<Map.Entry<String, Operation>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Operation> candidate = it.next();
+                try {
+                    timings.merge(candidate.getKey(), time(candidate.getValue()), Math::min);
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    log.fine(candidate.getKey() + " failed " + algorithm + ": " + e.getMessage());
+                    it.remove();
+                    timings.remove(candidate.getKey());
+                }
+            }
+        }
+
+        String best = null;
+        for (Map.Entry<String, Long> timing : timings.entrySet()) {
+            if (best == null || timing.getValue() < timings.get(best)) {
+                best = timing.getKey();
+            }
+        }
+        return new Selection(type, algorithm, best, timings);
+    }
+
+    /**
+     * Runs the operation for a quarter of the time to warm it up and another
+     * quarter to measure it; two rounds of this make up the time.
+     *
+     * @return nanoseconds per operation
+     */
+    private long time(Operation operation) throws GeneralSecurityException {
+        long quarter = TimeUnit.MILLISECONDS.toNanos(millis) / (2 * ROUNDS);
+        long end = System.nanoTime() + quarter;
+        do {
+            operation.run();
+        } while (System.nanoTime() < end);
+
+        long count = 0;
+        long begin = System.nanoTime();
+        long now;
+        do {
+            operation.run();
+            count++;
+            now = System.nanoTime();
+        } while (now - begin < quarter);
+        return (now - begin) / count;
+    }
+
+    private interface Operation {
+        void run() throws GeneralSecurityException;
+    }
+
+    /**
+     * @return what the server does with the algorithm: hash a kilobyte,
+     * encrypt a kilobyte under a fresh IV, or verify a signature
+     * @throws GeneralSecurityException if the provider does not have the
+     * algorithm
+     */
+    private Operation operation(String type, String algorithm, String provider) throws GeneralSecurityException {
+        byte[] data = new byte[DATA_LENGTH];
+        ChallengeRandom.nextBytes(data);
+        switch (type) {
+            case DIGEST:
+                MessageDigest digest = MessageDigest.getInstance(algorithm, provider);
+                return () -> digest.digest(data);
+            case CIPHER:
+                return cipherOperation(algorithm, provider, data);
+            case SIGNATURE:
+                return signatureOperation(algorithm, provider, data);
+            default:
+                throw new IllegalArgumentException("Unknown service type " + type);
+        }
+    }
+
+    private static Operation cipherOperation(String transformation, String provider, byte[] data)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transformation, provider);
+        byte[] keyBytes = new byte[16];
+        ChallengeRandom.nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        if (transformation.contains("/GCM/")) {
+            // GCM will not encrypt twice under one key and nonce
+            byte[] nonce = new byte[12];
+            Operation operation = () -> {
+                ChallengeRandom.nextBytes(nonce);
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+                cipher.doFinal(data);
+            };
+            operation.run();
+            return operation;
+        }
+        byte[] iv = new byte[16];
+        ChallengeRandom.nextBytes(iv);
+        IvParameterSpec ivSpec = new IvParameterSpec(iv);
+        Operation operation = () -> {
+            cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+            cipher.doFinal(data);
+        };
+        operation.run();
+        return operation;
+    }
+
+    private Operation signatureOperation(String algorithm, String provider, byte[] data)
+            throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(algorithm, provider);
+        // One key for all candidates; RSA key generation alone takes a while
+        KeyPair keyPair = keyPairs.get(algorithm);
+        if (keyPair == null) {
+            keyPair = keyPair(algorithm);
+            keyPairs.put(algorithm, keyPair);
+        }
+        signature.initSign(keyPair.getPrivate());
+        signature.update(data);
+        byte[] signed = signature.sign();
+        PublicKey publicKey = keyPair.getPublic();
+        Operation operation = () -> {
+            signature.initVerify(publicKey);
+            signature.update(data);
+            if (!signature.verify(signed)) {
+                throw new GeneralSecurityException("Own signature did not verify");
+            }
+        };
+        operation.run();
+        return operation;
+    }
+
+    private static KeyPair keyPair(String algorithm) throws GeneralSecurityException {
+        KeyPairGenerator generator;
+        if (algorithm.endsWith("withECDSA")) {
+            generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(algorithm.startsWith("SHA384") ? "secp384r1" : "secp256r1"));
+        } else if (algorithm.contains("withRSA")) {
+            generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+        } else {
+            generator = KeyPairGenerator.getInstance(algorithm);
+        }
+        return generator.generateKeyPair();
+    }
+}
@@ -32,22 +32,14 @@ public class CryptoUtil {
             size = Constants.MAX_RANDOM_NUMBER_SIZE_BITS / 8;
         }
 
-        SecureRandom random = new SecureRandom();
-        byte seed[] = new byte[20];
-        random.nextBytes(seed);
-
-        SecureRandom sr = new SecureRandom(seed);
-        byte[] randomBytes = new byte[size];
-        sr.nextBytes(randomBytes);
-
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
+        return ChallengeRandom.nextBase64Url(size);
     }
 
     public static String encryptAES(String data) throws Exception {
 
         byte[] base64data = Base64.getEncoder().encode(data.getBytes());
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM_AES);
+        Cipher cipher = CryptoPrimitives.cipher(ALGORITHM_AES);
         cipher.init(Cipher.ENCRYPT_MODE, AES_KEY, DEFAULT_IV);
         byte[] encryptedBytes = cipher.doFinal(base64data);
         String base64String = Base64.getEncoder().encodeToString(encryptedBytes);
@@ -59,7 +51,7 @@ public class CryptoUtil {
 
         byte[] encryptedData = Base64.getDecoder().decode(data);
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM_AES);
+        Cipher cipher = CryptoPrimitives.cipher(ALGORITHM_AES);
         cipher.init(Cipher.DECRYPT_MODE, AES_KEY, DEFAULT_IV);
         byte[] decryptedBytes = cipher.doFinal(encryptedData);
         String decryptedString = new String(decryptedBytes);
@@ -0,0 +1,344 @@
+package crypto;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Encryption of stored keyhandles.
+ *
+ * A keyhandle is sealed with AES-GCM under the active key of a key ring, with
+ * a random nonce per record and the tenant and appid as associated data, and
+ * stored as "$keyId$" followed by base64url, without padding, of nonce,
+ * ciphertext and tag. The key id in the token picks the key to open it with,
+ * so adding a key and making it active rotates keys without touching stored
+ * records; older keys stay in the ring until nothing is sealed under them.
+ *
+ * toBinary and fromBinary convert a token to and from the bytes it stands
+ * for, for holding many of them in memory.
+ *
+ * Tokens written by CryptoUtil.encryptAES, AES-CBC under the static IV, are
+ * still opened with the legacy key, and KeyhandleRewrapper moves them, and
+ * tokens sealed under older keys, to the active key in the background.
+ */
+@Log
+public final class KeyhandleSealer {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final char MARK = '$';
+
+    // As CryptoUtil.encryptAES wrote them
+    private static final String LEGACY_TRANSFORMATION = "AES/CBC/PKCS7Padding";
+    private static final IvParameterSpec LEGACY_IV =
+            new IvParameterSpec("CB442FFF45298BC2".getBytes(StandardCharsets.US_ASCII));
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private final Map<Integer, SecretKey> keys;
+    private final int activeKeyId;
+    private final String activePrefix;
+    private final SecretKey legacyKey;
+
+    private final LongAdder sealed = new LongAdder();
+    private final LongAdder unsealed = new LongAdder();
+    private final LongAdder legacyUnsealed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param keys - AES keys by key id, 1 to 255
+     * @param activeKeyId - id of the key new keyhandles are sealed under
+     * @param legacyKey - key of CryptoUtil.encryptAES tokens
+     * @throws IllegalArgumentException if the active key is not in the ring
+     */
+    public KeyhandleSealer(Map<Integer, byte[]> keys, int activeKeyId, byte[] legacyKey) {
+        Map<Integer, SecretKey> ring = new HashMap<>();
+        for (Map.Entry<Integer, byte[]> key : keys.entrySet()) {
+            if (key.getKey() < 1 || key.getKey() > 255) {
+                throw new IllegalArgumentException("Keyhandle key id must be 1 to 255: " + key.getKey());
+            }
+            ring.put(key.getKey(), new SecretKeySpec(key.getValue(), "AES"));
+        }
+        if (!ring.containsKey(activeKeyId)) {
+            throw new IllegalArgumentException("Active keyhandle key " + activeKeyId + " is not in the key ring");
+        }
+        this.keys = Collections.unmodifiableMap(ring);
+        this.activeKeyId = activeKeyId;
+        this.activePrefix = prefix(activeKeyId);
+        this.legacyKey = new SecretKeySpec(legacyKey, "AES");
+    }
+
+    /**
+     * @return the sealer configured by crypto.property.keyhandle.keys, as
+     * "keyId:key,...", crypto.property.keyhandle.activekey and, for legacy
+     * tokens, crypto.property.aeskey
+     */
+    public static KeyhandleSealer getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private static final class Holder {
+        private static final KeyhandleSealer INSTANCE = fromProperties();
+    }
+
+    private static KeyhandleSealer fromProperties() {
+        Map<Integer, byte[]> keys = parseKeys(Common.getProperty("crypto.property.keyhandle.keys"));
+        int active = Integer.parseInt(Common.getProperty("crypto.property.keyhandle.activekey"));
+        KeyhandleSealer sealer = new KeyhandleSealer(keys, active,
+                Common.getProperty("crypto.property.aeskey").getBytes(StandardCharsets.UTF_8));
+        log.info("Keyhandle sealing with key " + active + " of " + keys.size());
+        return sealer;
+    }
+
+    /**
+     * @param ring - "keyId:key,...", each key as ConfiguredKeys reads it
+     * @throws IllegalStateException if the ring is empty or an entry is not
+     * an id and a key
+     */
+    static Map<Integer, byte[]> parseKeys(String ring) {
+        if (ring == null || ring.trim().isEmpty()) {
+            throw new IllegalStateException("crypto.property.keyhandle.keys must be set to keyId:key entries");
+        }
+        Map<Integer, byte[]> keys = new HashMap<>();
+        for (String entry : ring.split(",")) {
+            int colon = entry.indexOf(':');
+            int id;
+            try {
+                id = (colon <= 0) ? -1 : Integer.parseInt(entry.substring(0, colon).trim());
+            } catch (NumberFormatException e) {
+                id = -1;
+            }
+            if (id < 1 || id > 255) {
+                throw new IllegalStateException("crypto.property.keyhandle.keys entries must be keyId:key with an id of 1 to 255");
+            }
+            if (keys.put(id, ConfiguredKeys.aes("crypto.property.keyhandle.keys entry " + id,
+                    entry.substring(colon + 1))) != null) {
+                throw new IllegalStateException("crypto.property.keyhandle.keys has key " + id + " twice");
+            }
+        }
+        return keys;
+    }
+
+    public String seal(String icpId, String appid, String keyhandle) {
+        byte[] plain = keyhandle.getBytes(StandardCharsets.UTF_8);
+        byte[] sealedBytes = new byte[NONCE_LENGTH + plain.length + TAG_BITS / 8];
+        ChallengeRandom.nextBytes(sealedBytes, 0, NONCE_LENGTH);
+        try {
+            Cipher cipher = CryptoPrimitives.cipher(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, keys.get(activeKeyId), new GCMParameterSpec(TAG_BITS, sealedBytes, 0, NONCE_LENGTH));
+            cipher.updateAAD(associatedData(activeKeyId, icpId, appid));
+            cipher.doFinal(plain, 0, plain.length, sealedBytes, NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not seal keyhandle", e);
+        }
+        sealed.increment();
+        return activePrefix + Base64.getUrlEncoder().withoutPadding().encodeToString(sealedBytes);
+    }
+
+    /**
+     * @return the keyhandle in the clear
+     * @throws GeneralSecurityException if the token does not open, under its
+     * key, for this tenant and appid
+     */
+    public String unseal(String icpId, String appid, String token) throws GeneralSecurityException {
+        return isLegacy(token)
+                ? unsealLegacy(CryptoPrimitives.cipher(LEGACY_TRANSFORMATION), icpId, appid, token)
+                : unseal(CryptoPrimitives.cipher(TRANSFORMATION), icpId, appid, token);
+    }
+
+    /**
+     * Opens all of a user's keyhandles with one cipher of each kind.
+     *
+     * @return the keyhandles in the clear, in the order of the keys; null for
+     * a token that does not open
+     */
+    public <T> String[] unsealAll(String icpId, Collection<T> keys, Function<T, String> appid, Function<T, String> token) {
+        String[] keyhandles = new String[keys.size()];
+        Cipher cipher = null;
+        Cipher legacyCipher = null;
+        int i = 0;
+        for (T key : keys) {
+            try {
+                if (isLegacy(token.apply(key))) {
+                    if (legacyCipher == null) {
+                        legacyCipher = CryptoPrimitives.cipher(LEGACY_TRANSFORMATION);
+                    }
+                    keyhandles[i] = unsealLegacy(legacyCipher, icpId, appid.apply(key), token.apply(key));
+                } else {
+                    if (cipher == null) {
+                        cipher = CryptoPrimitives.cipher(TRANSFORMATION);
+                    }
+                    keyhandles[i] = unseal(cipher, icpId, appid.apply(key), token.apply(key));
+                }
+            } catch (GeneralSecurityException e) {
+                log.warning("Could not open keyhandle " + i + " of tenant " + icpId + ": " + e.getMessage());
+            }
+            i++;
+        }
+        return keyhandles;
+    }
+
+    /**
+     * @return the token sealed again under the active key
+     */
+    public String rewrap(String icpId, String appid, String token) throws GeneralSecurityException {
+        return seal(icpId, appid, unseal(icpId, appid, token));
+    }
+
+    /**
+     * @return true if the token is sealed under the active key
+     */
+    public boolean isCurrent(String token) {
+        return token.startsWith(activePrefix);
+    }
+
+    /**
+     * @return what every token sealed under the active key starts with
+     */
+    public String getActivePrefix() {
+        return activePrefix;
+    }
+
+    public long getSealedCount() {
+        return sealed.sum();
+    }
+
+    public long getUnsealedCount() {
+        return unsealed.sum();
+    }
+
+    public long getLegacyUnsealedCount() {
+        return legacyUnsealed.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return true if the token was written by seal, under any key
+     */
+    public static boolean isSealed(String token) {
+        return !token.isEmpty() && token.charAt(0) == MARK;
+    }
+
+    /**
+     * @return the token as one byte of key id followed by nonce, ciphertext
+     * and tag, or null if it is not a well-formed token of seal
+     */
+    public static byte[] toBinary(String token) {
+        if (!isSealed(token)) {
+            return null;
+        }
+        int end = token.indexOf(MARK, 1);
+        try {
+            int keyId = Integer.parseInt(token.substring(1, end));
+            byte[] sealedBytes = Base64.getUrlDecoder().decode(token.substring(end + 1));
+            if (keyId < 1 || keyId > 255) {
+                return null;
+            }
+            byte[] binary = new byte[1 + sealedBytes.length];
+            binary[0] = (byte) keyId;
+            System.arraycopy(sealedBytes, 0, binary, 1, sealedBytes.length);
+            return binary;
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the token whose binary form starts at offset
+     */
+    public static String fromBinary(byte[] binary, int offset) {
+        return prefix(binary[offset] & 0xFF) + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOfRange(binary, offset + 1, binary.length));
+    }
+
+    private static boolean isLegacy(String token) {
+        return !isSealed(token);
+    }
+
+    private String unseal(Cipher cipher, String icpId, String appid, String token) throws GeneralSecurityException {
+        int end = token.indexOf(MARK, 1);
+        int keyId;
+        byte[] sealedBytes;
+        try {
+            keyId = Integer.parseInt(token.substring(1, end));
+            sealedBytes = Base64.getUrlDecoder().decode(token.substring(end + 1));
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            failures.increment();
+            throw new GeneralSecurityException("Malformed keyhandle token");
+        }
+        SecretKey key = keys.get(keyId);
+        if (key == null) {
+            failures.increment();
+            throw new GeneralSecurityException("Keyhandle sealed under a key not in the ring");
+        }
+        if (sealedBytes.length < NONCE_LENGTH + TAG_BITS / 8) {
+            failures.increment();
+            throw new GeneralSecurityException("Keyhandle token too short");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealedBytes, 0, NONCE_LENGTH));
+            cipher.updateAAD(associatedData(keyId, icpId, appid));
+            byte[] plain = cipher.doFinal(sealedBytes, NONCE_LENGTH, sealedBytes.length - NONCE_LENGTH);
+            unsealed.increment();
+            return new String(plain, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * encryptAES sealed the base64 of icpId + appid + keyhandle; the keyhandle
+     * is what follows the prefix.
+     */
+    private String unsealLegacy(Cipher cipher, String icpId, String appid, String token) throws GeneralSecurityException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, legacyKey, LEGACY_IV);
+            byte[] base64 = cipher.doFinal(Base64.getDecoder().decode(token));
+            String plain = new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8);
+            String prefix = icpId + appid;
+            if (!plain.startsWith(prefix)) {
+                throw new GeneralSecurityException("Legacy keyhandle is not for this tenant and appid");
+            }
+            legacyUnsealed.increment();
+            return plain.substring(prefix.length());
+        } catch (IllegalArgumentException e) {
+            failures.increment();
+            throw new GeneralSecurityException("Malformed legacy keyhandle token");
+        } catch (GeneralSecurityException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    private static byte[] associatedData(int keyId, String icpId, String appid) {
+        return (keyId + "\0" + icpId + "\0" + (appid == null ? "" : appid)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String prefix(int keyId) {
+        return MARK + Integer.toString(keyId) + MARK;
+    }
+}
@@ -0,0 +1,117 @@
+package crypto;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * A registered public key decoded for verifying assertions, with the
+ * signature algorithm that goes with it.
+ *
+ * Keys are stored as base64 or base64url of either an X.509
+ * SubjectPublicKeyInfo or, for U2F, the 65 byte uncompressed P-256 point the
+ * authenticator returned. EC keys verify with ECDSA over the hash that
+ * matches the curve size, RSA keys with SHA256withRSA (PKCS#1 v1.5).
+ */
+public final class VerificationKey {
+
+    // SubjectPublicKeyInfo of a P-256 key, up to the point
+    private static final byte[] P256_SPKI_PREFIX = {
+            0x30, 0x59, 0x30, 0x13, 0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01,
+            0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07, 0x03, 0x42, 0x00
+    };
+    private static final int P256_POINT_LENGTH = 65;
+
+    private final String encoded;
+    private final PublicKey publicKey;
+    private final String signatureAlgorithm;
+
+    private VerificationKey(String encoded, PublicKey publicKey, String signatureAlgorithm) {
+        this.encoded = encoded;
+        this.publicKey = publicKey;
+        this.signatureAlgorithm = signatureAlgorithm;
+    }
+
+    /**
+     * @throws InvalidKeySpecException if the text is not a key in a form
+     * described above
+     */
+    public static VerificationKey decode(String encoded) throws InvalidKeySpecException {
+        byte[] bytes;
+        try {
+            bytes = (encoded.indexOf('+') >= 0 || encoded.indexOf('/') >= 0)
+                    ? Base64.getDecoder().decode(encoded) : Base64.getUrlDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Public key is not base64");
+        }
+        if (bytes.length == P256_POINT_LENGTH && bytes[0] == 0x04) {
+            byte[] spki = new byte[P256_SPKI_PREFIX.length + P256_POINT_LENGTH];
+            System.arraycopy(P256_SPKI_PREFIX, 0, spki, 0, P256_SPKI_PREFIX.length);
+            System.arraycopy(bytes, 0, spki, P256_SPKI_PREFIX.length, P256_POINT_LENGTH);
+            bytes = spki;
+        }
+
+        ASN1ObjectIdentifier algorithm;
+        try {
+            algorithm = SubjectPublicKeyInfo.getInstance(bytes).getAlgorithm().getAlgorithm();
+        } catch (RuntimeException e) {
+            throw new InvalidKeySpecException("Public key is not a SubjectPublicKeyInfo");
+        }
+        try {
+            if (X9ObjectIdentifiers.id_ecPublicKey.equals(algorithm)) {
+                ECPublicKey key = (ECPublicKey) KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(bytes));
+                return new VerificationKey(encoded, key, ecdsa(key.getParams().getCurve().getField().getFieldSize()));
+            }
+            if (PKCSObjectIdentifiers.rsaEncryption.equals(algorithm)) {
+                return new VerificationKey(encoded,
+                        KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bytes)), "SHA256withRSA");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeySpecException("Could not decode public key: " + e.getMessage(), e);
+        }
+        throw new InvalidKeySpecException("Unsupported public key algorithm " + algorithm);
+    }
+
+    private static String ecdsa(int fieldSize) throws InvalidKeySpecException {
+        if (fieldSize <= 256) {
+            return "SHA256withECDSA";
+        } else if (fieldSize <= 384) {
+            return "SHA384withECDSA";
+        } else if (fieldSize <= 521) {
+            return "SHA512withECDSA";
+        }
+        throw new InvalidKeySpecException("Unsupported curve size " + fieldSize);
+    }
+
+    public boolean verify(byte[] signedData, byte[] signature) throws GeneralSecurityException {
+        Signature verifier = CryptoPrimitives.signature(signatureAlgorithm, null);
+        verifier.initVerify(publicKey);
+        verifier.update(signedData);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * @return the text the key was decoded from
+     */
+    public String getEncoded() {
+        return encoded;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+}
@@ -0,0 +1,41 @@
+package dal;
+
+/**
+ * A signature counter waiting to be written to a key.
+ */
+public final class CounterUpdate {
+
+    private final String icpId;
+    private final String username;
+    private final long fkid;
+    private final int counter;
+    private final String modifyLocation;
+
+    public CounterUpdate(String icpId, String username, long fkid, int counter, String modifyLocation) {
+        this.icpId = icpId;
+        this.username = username;
+        this.fkid = fkid;
+        this.counter = counter;
+        this.modifyLocation = modifyLocation;
+    }
+
+    public String getIcpId() {
+        return icpId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getFkid() {
+        return fkid;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public String getModifyLocation() {
+        return modifyLocation;
+    }
+}
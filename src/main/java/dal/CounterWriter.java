@@ -0,0 +1,262 @@
+package dal;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persistence of signature counters, the most frequent write to
+ * the key table.
+ *
+ * An authentication records its new counter here and returns. The counter is
+ * applied to the FidoKeyCache snapshot at once, and currentCounter overlays
+ * counters not yet written, so clone detection always compares against the
+ * latest value. Counters for the same key, identified by icpId and fkid since
+ * each shard numbers its keys on its own, are coalesced to the highest one and
+ * a flusher thread writes them every flushmillis, or sooner once maxbatch keys
+ * are waiting, in JDBC batches of up to maxbatch. A failed batch stays pending
+ * and is retried on the next flush.
+ *
+ * stop flushes whatever is still pending before the pool closes; counters
+ * recorded after that are written through.
+ */
+@Log
+@Component("counterWriter")
+public class CounterWriter {
+
+    @Autowired
+    private Database database;
+
+    @Autowired
+    private FidoKeyCache fidoKeyCache;
+
+    private final ConcurrentHashMap<PendingKey, CounterUpdate> pending = new ConcurrentHashMap<>();
+    private long flushMillis;
+    private int maxBatch;
+
+    private final Object wakeup = new Object();
+    private volatile boolean running;
+    private Thread flusher;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+
+    public CounterWriter() { }
+
+    /**
+     * Creates a started writer; used by tests.
+     */
+    CounterWriter(Database database, FidoKeyCache fidoKeyCache, long flushMillis, int maxBatch) {
+        this.database = database;
+        this.fidoKeyCache = fidoKeyCache;
+        configure(flushMillis, maxBatch);
+        startFlusher();
+    }
+
+    @PostConstruct
+    public void start() {
+        configure(Long.parseLong(Common.getProperty("dal.property.counter.flushmillis")),
+                Integer.parseInt(Common.getProperty("dal.property.counter.maxbatch")));
+        startFlusher();
+        log.info("Counter write-behind started, flushmillis=" + flushMillis + ", maxbatch=" + maxBatch);
+    }
+
+    // The flusher is woken rather than interrupted; an interrupt can close the
+    // channel of a file database in the middle of a write
+    @PreDestroy
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        if (!pending.isEmpty()) {
+            log.severe("Shutting down with " + pending.size() + " signature counters not written");
+        }
+    }
+
+    private void configure(long flushMillis, int maxBatch) {
+        if (flushMillis <= 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("Counter flush interval and batch size must be positive");
+        }
+        this.flushMillis = flushMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    private void startFlusher() {
+        running = true;
+        flusher = new Thread(this::run, "counter-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Records the new signature counter of a key after a successful
+     * authentication.
+     */
+    public void record(String icpId, String username, long fkid, int counter, String modifyLocation) {
+        recorded.increment();
+        if (!running) {
+            fidoKeyCache.updateCounter(icpId, username, fkid, counter, modifyLocation);
+            return;
+        }
+        CounterUpdate update = new CounterUpdate(icpId, username, fkid, counter, modifyLocation);
+        pending.merge(new PendingKey(icpId, fkid), update, (old, next) -> next.getCounter() > old.getCounter() ? next : old);
+        fidoKeyCache.applyCounter(icpId, username, fkid, counter);
+        if (!running) {
+            // Raced with stop; its final flush may already be done
+            flush();
+        } else if (pending.size() >= maxBatch) {
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the latest counter of the tenant's key, including one not yet
+     * written
+     */
+    public int currentCounter(String icpId, PreauthKeyView key) {
+        CounterUpdate update = pending.get(new PendingKey(icpId, key.getFkid()));
+        return (update == null) ? key.getCounter() : Math.max(update.getCounter(), key.getCounter());
+    }
+
+    private void run() {
+        boolean failed = false;
+        while (running) {
+            synchronized (wakeup) {
+                // After a failure wait out the interval instead of retrying at once
+                if (running && (failed || pending.size() < maxBatch)) {
+                    try {
+                        wakeup.wait(flushMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            failed = !flush();
+        }
+    }
+
+    /**
+     * Writes everything pending. Entries superseded by a higher counter while
+     * their batch was being written stay pending for the next flush.
+     *
+     * @return false if a batch failed
+     */
+    synchronized boolean flush() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        boolean ok = true;
+        long start = System.nanoTime();
+        List<CounterUpdate> batch = new ArrayList<>(Math.min(pending.size(), maxBatch));
+        for (CounterUpdate update : pending.values()) {
+            batch.add(update);
+            if (batch.size() == maxBatch) {
+                ok &= write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            ok &= write(batch);
+        }
+        long elapsed = System.nanoTime() - start;
+        lastFlushNanos = elapsed;
+        if (elapsed > maxFlushNanos) {
+            maxFlushNanos = elapsed;
+        }
+        return ok;
+    }
+
+    private boolean write(List<CounterUpdate> batch) {
+        try {
+            database.updateCounters(batch);
+        } catch (IllegalStateException e) {
+            failures.increment();
+            return false;
+        }
+        for (CounterUpdate update : batch) {
+            pending.remove(new PendingKey(update.getIcpId(), update.getFkid()), update);
+        }
+        batches.increment();
+        written.add(batch.size());
+        return true;
+    }
+
+    public int getBacklog() {
+        return pending.size();
+    }
+
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos);
+    }
+
+    public long getMaxFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos);
+    }
+
+    private static final class PendingKey {
+
+        private final String icpId;
+        private final long fkid;
+
+        PendingKey(String icpId, long fkid) {
+            this.icpId = icpId;
+            this.fkid = fkid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) o;
+            return fkid == other.fkid && Objects.equals(icpId, other.icpId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(icpId) + Long.hashCode(fkid);
+        }
+    }
+}
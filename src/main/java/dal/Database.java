@@ -1,31 +1,854 @@
 package dal;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import common.Common;
+import crypto.CryptoPrimitives;
+import lombok.extern.java.Log;
 import model.FidoKey;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * Repository of registered FIDO keys, kept in embedded databases (H2 by
+ * default) behind bounded HikariCP pools.
+ *
+ * Keys are sharded by tenant: the ShardRouter maps each icpId to a shard, and
+ * every shard is a store file of its own (dal.property.url with {shard}
+ * replaced by the shard name) with its own pool, so one very large tenant can
+ * be moved off the store everyone else uses. Every method routes on the
+ * icpId it is given; a counter batch is split by shard. Lookup latency and
+ * row counts are kept per shard.
+ *
+ * Keys are looked up by tenant, username and status through a composite index,
+ * and the SHA-256 of the stored keyhandle is indexed for lookup by token. The
+ * stored keyhandle is sealed under a fresh nonce, so two registrations of one
+ * credential store different tokens and that index cannot catch them. The
+ * fido_credentials table maps the SHA-256 of the plain credential id to the
+ * key it belongs to, and its primary key is the guard: addKey writes the key
+ * and its credential row in one transaction and refuses a credential that is
+ * already there. Credential rows are deleted with their key. Listing a user's keys is keyset paginated on (icpid,
+ * username, fkid), so a page costs the same however deep into the user's keys
+ * it starts.
+ *
+ * Statement caching is left to the driver; H2 keeps parsed statements per
+ * connection (QUERY_CACHE_SIZE in the url), so preparing the same SQL on a
+ * pooled connection is cheap.
+ *
+ * Failures surface as IllegalStateException.
+ */
+@Log
 @Component("database")
 public class Database {
 
-    FidoKey fidoKey1;
-    FidoKey fidoKey2;
+    private static final String[] LOOKUP_INDEXES = {"fido_keys_user", "fido_keys_user_page"};
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS fido_keys ("
+                    + " fkid BIGINT AUTO_INCREMENT PRIMARY KEY,"
+                    + " sid SMALLINT NOT NULL,"
+                    + " icpid VARCHAR(64) NOT NULL,"
+                    + " username VARCHAR(256) NOT NULL,"
+                    + " userid VARCHAR(128),"
+                    + " keyhandle VARCHAR(2048) NOT NULL,"
+                    + " keyhandle_hash CHAR(44) NOT NULL,"
+                    + " appid VARCHAR(512),"
+                    + " publickey VARCHAR(2048),"
+                    + " transports SMALLINT,"
+                    + " attsid SMALLINT,"
+                    + " attcid INT,"
+                    + " counter INT NOT NULL,"
+                    + " fido_version VARCHAR(16),"
+                    + " fido_protocol VARCHAR(16),"
+                    + " aaguid VARCHAR(64),"
+                    + " registration_settings CLOB,"
+                    + " registration_settings_version INT,"
+                    + " create_date TIMESTAMP,"
+                    + " create_location VARCHAR(256),"
+                    + " modify_date TIMESTAMP,"
+                    + " modify_location VARCHAR(256),"
+                    + " status VARCHAR(16) NOT NULL,"
+                    + " signature_keytype VARCHAR(16),"
+                    + " signature VARCHAR(2048))",
+            "CREATE INDEX IF NOT EXISTS fido_keys_user ON fido_keys (icpid, username, status)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS fido_keys_keyhandle ON fido_keys (keyhandle_hash)",
+            "CREATE INDEX IF NOT EXISTS fido_keys_user_page ON fido_keys (icpid, username, fkid)",
+            "CREATE TABLE IF NOT EXISTS fido_credentials ("
+                    + " credential_hash CHAR(44) PRIMARY KEY,"
+                    + " sid SMALLINT NOT NULL,"
+                    + " icpid VARCHAR(64) NOT NULL,"
+                    + " username VARCHAR(256) NOT NULL,"
+                    + " fkid BIGINT NOT NULL,"
+                    + " FOREIGN KEY (fkid) REFERENCES fido_keys (fkid) ON DELETE CASCADE)"
+    };
+
+    private static final String COLUMNS = "fkid, sid, icpid, username, userid, keyhandle, appid, publickey,"
+            + " transports, attsid, attcid, counter, fido_version, fido_protocol, aaguid, registration_settings,"
+            + " registration_settings_version, create_date, create_location, modify_date, modify_location, status,"
+            + " signature_keytype, signature";
+
+    private static final String SELECT_BY_USERNAME =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? ORDER BY fkid";
+    private static final String SELECT_BY_USERNAME_STATUS =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? AND status = ? ORDER BY fkid";
+    private static final String SELECT_PAGE_BY_USERNAME =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? AND fkid > ? ORDER BY fkid LIMIT ?";
+    private static final String SELECT_ANY_BY_USERNAME =
+            "SELECT fkid FROM fido_keys WHERE icpid = ? AND username = ? LIMIT 1";
+    private static final String SELECT_BY_FKID =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE fkid = ? AND icpid = ? AND username = ?";
+    private static final String SELECT_BY_KEYHANDLE =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE keyhandle_hash = ?";
+
+    // Projections for challenge generation; these never touch the LOB column
+    private static final String PREAUTH_COLUMNS =
+            "fkid, sid, icpid, username, keyhandle, publickey, appid, transports, fido_protocol, counter, status, "
+                    + "create_date, modify_date";
+    private static final String SELECT_PREAUTH_BY_USERNAME_STATUS =
+            "SELECT " + PREAUTH_COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? AND status = ? ORDER BY fkid";
+    private static final String SELECT_PREAUTH_BY_FKID =
+            "SELECT " + PREAUTH_COLUMNS + " FROM fido_keys WHERE fkid = ? AND icpid = ? AND username = ?";
+    private static final String EXCLUDE_COLUMNS = "fkid, keyhandle, appid, transports, fido_protocol, userid";
+    private static final String SELECT_EXCLUDE_BY_USERNAME =
+            "SELECT " + EXCLUDE_COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? ORDER BY fkid";
+    private static final String SELECT_EXCLUDE_BY_USERNAME_STATUS =
+            "SELECT " + EXCLUDE_COLUMNS + " FROM fido_keys WHERE icpid = ? AND username = ? AND status = ? ORDER BY fkid";
+    private static final String INSERT_COLUMNS = "sid, icpid, username, userid, keyhandle, keyhandle_hash, appid,"
+            + " publickey, transports, attsid, attcid, counter, fido_version, fido_protocol, aaguid, registration_settings,"
+            + " registration_settings_version, create_date, create_location, modify_date, modify_location, status,"
+            + " signature_keytype, signature";
+    private static final String INSERT =
+            "INSERT INTO fido_keys (" + INSERT_COLUMNS + ")"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_CREDENTIAL =
+            "INSERT INTO fido_credentials (credential_hash, sid, icpid, username, fkid) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT_BY_CREDENTIAL =
+            "SELECT sid, icpid, username, fkid FROM fido_credentials WHERE credential_hash = ?";
+    private static final String UPDATE_COUNTER =
+            "UPDATE fido_keys SET counter = ?, modify_date = ?, modify_location = ? WHERE fkid = ? AND icpid = ? AND username = ?";
+    private static final String UPDATE_COUNTER_FORWARD =
+            "UPDATE fido_keys SET counter = ?, modify_date = ?, modify_location = ? WHERE fkid = ? AND icpid = ? AND username = ? AND counter < ?";
+    private static final String UPDATE_STATUS =
+            "UPDATE fido_keys SET status = ?, modify_date = ?, modify_location = ? WHERE fkid = ? AND icpid = ? AND username = ?";
+    private static final String DELETE =
+            "DELETE FROM fido_keys WHERE fkid = ? AND icpid = ? AND username = ?";
+    private static final String COUNT = "SELECT COUNT(*) FROM fido_keys";
+
+    // Bulk transfer; keys keep their fkid, and writing a key again replaces it
+    // as long as the fkid and credential are not another tenant's
+    private static final String EXPORT_COLUMNS = "k." + COLUMNS.replace(", ", ", k.") + ", c.credential_hash";
+    private static final String SELECT_EXPORT_PAGE =
+            "SELECT " + EXPORT_COLUMNS + " FROM fido_keys k LEFT JOIN fido_credentials c ON c.fkid = k.fkid"
+                    + " WHERE k.fkid > ? ORDER BY k.fkid LIMIT ?";
+    private static final String SELECT_EXPORT_PAGE_BY_ICPID =
+            "SELECT " + EXPORT_COLUMNS + " FROM fido_keys k LEFT JOIN fido_credentials c ON c.fkid = k.fkid"
+                    + " WHERE k.fkid > ? AND k.icpid = ? ORDER BY k.fkid LIMIT ?";
+    private static final String MERGE =
+            "MERGE INTO fido_keys (fkid, " + INSERT_COLUMNS + ") KEY (fkid)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_CREDENTIAL =
+            "MERGE INTO fido_credentials (credential_hash, sid, icpid, username, fkid) KEY (credential_hash) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT_KEY_OWNER = "SELECT icpid FROM fido_keys WHERE fkid = ?";
+    private static final String SELECT_CREDENTIAL_OWNER =
+            "SELECT icpid, fkid FROM fido_credentials WHERE credential_hash = ?";
+    private static final String SELECT_MAX_FKID = "SELECT COALESCE(MAX(fkid), 0) FROM fido_keys";
+
+    // Keyhandle re-wrapping; tokens sealed under the active key start with its prefix
+    private static final String SELECT_STALE_KEYHANDLES =
+            "SELECT " + COLUMNS + " FROM fido_keys WHERE fkid > ? AND keyhandle NOT LIKE ? ORDER BY fkid LIMIT ?";
+    private static final String UPDATE_KEYHANDLE =
+            "UPDATE fido_keys SET keyhandle = ?, keyhandle_hash = ? WHERE fkid = ? AND icpid = ? AND keyhandle = ?";
+
+    private static final String SHARD_PLACEHOLDER = "{shard}";
+
+    private static final class Shard {
+        private final String name;
+        private final DataSource dataSource;
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder lookupNanos = new LongAdder();
+
+        private Shard(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    private ShardRouter router;
+    private Map<String, Shard> shards;
+
+    public Database() { }
+
+    /**
+     * Creates a single shard repository on an existing data source; used by
+     * tests.
+     */
+    Database(DataSource dataSource) {
+        this(ShardRouter.single(), Collections.singletonMap(ShardRouter.DEFAULT_SHARD, dataSource));
+    }
+
+    /**
+     * Creates a repository on existing data sources, one per shard of the
+     * router; used by tests.
+     */
+    Database(ShardRouter router, Map<String, DataSource> dataSources) {
+        this.router = router;
+        this.shards = new LinkedHashMap<>();
+        for (String name : router.getShards()) {
+            shards.put(name, new Shard(name, dataSources.get(name)));
+        }
+        shards.values().forEach(Database::createSchema);
+    }
 
     @PostConstruct
     public void setUp() {
-        fidoKey1 = new FidoKey("keyhandle", 1, new Date(), "here", "ACTIVE", "signKeyType");
-        fidoKey2 = new FidoKey("keyhandle", 1, new Date(), "here", "ACTIVE", "signKeyType");
+        router = new ShardRouter(Arrays.asList(Common.getProperty("dal.property.shards").split("\\s*,\\s*")),
+                Common.getProperty("dal.property.shard.routes"));
+        String url = Common.getProperty("dal.property.url");
+        if (router.getShards().size() > 1 && !url.contains(SHARD_PLACEHOLDER)) {
+            throw new IllegalArgumentException("dal.property.url needs a " + SHARD_PLACEHOLDER + " placeholder for multiple shards");
+        }
+        String poolSize = Common.getProperty("dal.property.poolsize");
+        shards = new LinkedHashMap<>();
+        for (String name : router.getShards()) {
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("fidokeys-" + name);
+            config.setJdbcUrl(url.replace(SHARD_PLACEHOLDER, name));
+            config.setUsername(Common.getProperty("dal.property.username"));
+            config.setPassword(Common.getProperty("dal.property.password"));
+            config.setMaximumPoolSize(Integer.parseInt(ShardRouter.perShard(poolSize, name)));
+            Shard shard = new Shard(name, new HikariDataSource(config));
+            shards.put(name, shard);
+            createSchema(shard);
+            log.info("Key repository shard " + name + " started on " + config.getJdbcUrl());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (Shard shard : shards.values()) {
+            if (shard.dataSource instanceof HikariDataSource) {
+                ((HikariDataSource) shard.dataSource).close();
+            }
+        }
+    }
+
+    private static void createSchema(Shard shard) {
+        try (Connection connection = shard.dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+        } catch (SQLException e) {
+            throw failure("Could not create key schema in shard " + shard.name, e);
+        }
+    }
+
+    private Shard shard(String icpId) {
+        return shards.get(router.shardFor(icpId));
+    }
+
+    /**
+     * @return the name of the shard holding the tenant's keys
+     */
+    public String shardFor(String icpId) {
+        return router.shardFor(icpId);
+    }
+
+    public Set<String> getShards() {
+        return router.getShards();
     }
 
     public Collection<FidoKey> getByUsername(String icpId, String username) {
-        return new ArrayList<>(Arrays.asList(fidoKey1, fidoKey2));
+        return query(shard(icpId), SELECT_BY_USERNAME, Database::toFidoKey, icpId, username);
     }
 
     public Collection<FidoKey> getKeysByUsernameStatus(String icpId, String username, String status) {
-        return new ArrayList<>(Arrays.asList(fidoKey1, fidoKey2));
+        return query(shard(icpId), SELECT_BY_USERNAME_STATUS, Database::toFidoKey, icpId, username, status);
+    }
+
+    /**
+     * Reads one page of the user's keys, in fkid order. The page is read in
+     * full and the connection given back before the caller sees it, so a
+     * slow reader of the keys never holds a pooled connection.
+     *
+     * @param afterFkid - fkid of the last key of the previous page; 0 for the
+     * first page
+     * @param limit - most keys to read
+     */
+    public List<FidoKey> getKeyPage(String icpId, String username, long afterFkid, int limit) {
+        return query(shard(icpId), SELECT_PAGE_BY_USERNAME, Database::toFidoKey, icpId, username, afterFkid, limit);
+    }
+
+    /**
+     * @return true if the user has at least one key, whatever its status
+     */
+    public boolean hasKeys(String icpId, String username) {
+        return !query(shard(icpId), SELECT_ANY_BY_USERNAME, rs -> rs.getLong("fkid"), icpId, username).isEmpty();
+    }
+
+    /**
+     * @return the key, or null if there is no such key for this user
+     */
+    public FidoKey getByFkid(String icpId, String username, long fkid) {
+        List<FidoKey> keys = query(shard(icpId), SELECT_BY_FKID, Database::toFidoKey, fkid, icpId, username);
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    /**
+     * @param keyhandleToken - keyhandle in its stored, encrypted form
+     * @return the key, or null if no key of the tenant has this keyhandle
+     */
+    public FidoKey getByKeyhandle(String icpId, String keyhandleToken) {
+        List<FidoKey> keys = query(shard(icpId), SELECT_BY_KEYHANDLE, Database::toFidoKey, keyhandleHash(keyhandleToken));
+        if (!keys.isEmpty() && !keys.get(0).getIcpid().equals(icpId)) {
+            return null;
+        }
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    public List<PreauthKeyView> getPreauthKeys(String icpId, String username, String status) {
+        return query(shard(icpId), SELECT_PREAUTH_BY_USERNAME_STATUS, Database::toPreauthKeyView, icpId, username, status);
+    }
+
+    /**
+     * @return the key, or null if there is no such key for this user
+     */
+    public PreauthKeyView getPreauthKeyByFkid(String icpId, String username, long fkid) {
+        List<PreauthKeyView> keys = query(shard(icpId), SELECT_PREAUTH_BY_FKID, Database::toPreauthKeyView, fkid, icpId, username);
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    public List<ExcludeCredentialView> getExcludeCredentials(String icpId, String username) {
+        return query(shard(icpId), SELECT_EXCLUDE_BY_USERNAME, Database::toExcludeCredentialView, icpId, username);
+    }
+
+    public List<ExcludeCredentialView> getExcludeCredentials(String icpId, String username, String status) {
+        return query(shard(icpId), SELECT_EXCLUDE_BY_USERNAME_STATUS, Database::toExcludeCredentialView, icpId, username, status);
+    }
+
+    /**
+     * Resolves a credential id, as sent by the client, to the key it was
+     * registered as. One primary key lookup whatever the number of keys; used
+     * by authentications that do not name the user.
+     *
+     * @param credentialId - base64url credential id (U2F keyhandle)
+     * @return the key's id, or null if no key of the tenant has this
+     * credential id
+     */
+    public FidoKeyId getKeyIdByCredential(String icpId, String credentialId) {
+        String hash;
+        try {
+            hash = credentialHash(credentialId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        List<FidoKeyId> ids = query(shard(icpId), SELECT_BY_CREDENTIAL,
+                rs -> new FidoKeyId(rs.getShort("sid"), rs.getString("icpid"), rs.getString("username"), rs.getLong("fkid")),
+                hash);
+        return (ids.isEmpty() || !ids.get(0).getIcpId().equals(icpId)) ? null : ids.get(0);
+    }
+
+    /**
+     * Stores a newly registered key together with its credential id index
+     * entry, in one transaction. This is the insert of the register path: the
+     * registration beans set the clear keyhandle on the FidoKey, which keeps
+     * it as the credential id while sealing it.
+     *
+     * @return the fkid assigned to the key, also set on it
+     * @throws IllegalStateException if the key's keyhandle was not set in the
+     * clear, or its credential id is already registered
+     */
+    public long addKey(FidoKey key) {
+        if (key.getCredentialId() == null) {
+            throw new IllegalStateException("Key of username=" + key.getUsername() + " has no credential id");
+        }
+        return addKey(key, key.getCredentialId());
+    }
+
+    /**
+     * Stores a key together with its credential id index entry, in one
+     * transaction.
+     *
+     * @param credentialId - base64url credential id (U2F keyhandle) in the
+     * clear, as the client will send it when authenticating
+     * @return the fkid assigned to the key, also set on it
+     */
+    public long addKey(FidoKey key, String credentialId) {
+        try (Connection connection = shard(key.getIcpid()).dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                insertKey(connection, key);
+                try (PreparedStatement ps = connection.prepareStatement(INSERT_CREDENTIAL)) {
+                    bind(ps, credentialHash(credentialId), key.getSid(), key.getIcpid(), key.getUsername(), key.getFkid());
+                    ps.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return key.getFkid();
+        } catch (SQLException e) {
+            throw failure("Could not store key for username=" + key.getUsername(), e);
+        }
+    }
+
+    private static void insertKey(Connection connection, FidoKey key) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS)) {
+            bindKey(ps, 0, key);
+            ps.executeUpdate();
+
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                rs.next();
+                key.setFkid(rs.getLong(1));
+            }
+        }
+    }
+
+    /**
+     * Binds the INSERT_COLUMNS of the key after parameter index i.
+     */
+    private static void bindKey(PreparedStatement ps, int i, FidoKey key) throws SQLException {
+        ps.setShort(++i, key.getSid());
+        ps.setString(++i, key.getIcpid());
+        ps.setString(++i, key.getUsername());
+        ps.setString(++i, key.getUserid());
+        ps.setString(++i, key.getKeyhandle());
+        ps.setString(++i, keyhandleHash(key.getKeyhandle()));
+        ps.setString(++i, key.getAppid());
+        ps.setString(++i, key.getPublickey());
+        setNullable(ps, ++i, key.getTransports(), Types.SMALLINT);
+        setNullable(ps, ++i, key.getAttsid(), Types.SMALLINT);
+        setNullable(ps, ++i, key.getAttcid(), Types.INTEGER);
+        ps.setInt(++i, key.getCounter());
+        ps.setString(++i, key.getFidoVersion());
+        ps.setString(++i, key.getFidoProtocol());
+        ps.setString(++i, key.getAaguid());
+        ps.setString(++i, key.getRegistrationSettings());
+        setNullable(ps, ++i, key.getRegistrationSettingsVersion(), Types.INTEGER);
+        ps.setTimestamp(++i, timestamp(key.getCreateDate()));
+        ps.setString(++i, key.getCreateLocation());
+        ps.setTimestamp(++i, timestamp(key.getModifyDate()));
+        ps.setString(++i, key.getModifyLocation());
+        ps.setString(++i, key.getStatus());
+        ps.setString(++i, key.getSignatureKeytype());
+        ps.setString(++i, key.getSignature());
+    }
+
+    /**
+     * @return true if the key was found and updated
+     */
+    public boolean updateCounter(String icpId, String username, long fkid, int counter, String modifyLocation) {
+        return update(shard(icpId), UPDATE_COUNTER, counter, new Timestamp(System.currentTimeMillis()), modifyLocation, fkid, icpId, username);
+    }
+
+    /**
+     * Writes a batch of signature counters in one transaction per shard. A
+     * counter only ever moves a key's counter forward, so a late batch cannot
+     * undo a newer value written by another server, and a batch that failed
+     * in one shard can be written again whole.
+     *
+     * @return number of keys whose counter changed
+     */
+    public int updateCounters(Collection<CounterUpdate> updates) {
+        Map<Shard, List<CounterUpdate>> byShard = new LinkedHashMap<>();
+        for (CounterUpdate update : updates) {
+            byShard.computeIfAbsent(shard(update.getIcpId()), k -> new ArrayList<>()).add(update);
+        }
+        int changed = 0;
+        for (Map.Entry<Shard, List<CounterUpdate>> entry : byShard.entrySet()) {
+            changed += updateCounters(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    private static int updateCounters(Shard shard, List<CounterUpdate> updates) {
+        try (Connection connection = shard.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(UPDATE_COUNTER_FORWARD)) {
+                Timestamp now = new Timestamp(System.currentTimeMillis());
+                for (CounterUpdate update : updates) {
+                    bind(ps, update.getCounter(), now, update.getModifyLocation(), update.getFkid(),
+                            update.getIcpId(), update.getUsername(), update.getCounter());
+                    ps.addBatch();
+                }
+                int changed = 0;
+                for (int count : ps.executeBatch()) {
+                    changed += Math.max(count, 0);
+                }
+                connection.commit();
+                return changed;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw failure("Counter batch of " + updates.size() + " failed in shard " + shard.name, e);
+        }
+    }
+
+    /**
+     * @return true if the key was found and updated
+     */
+    public boolean updateStatus(String icpId, String username, long fkid, String status, String modifyLocation) {
+        return update(shard(icpId), UPDATE_STATUS, status, new Timestamp(System.currentTimeMillis()), modifyLocation, fkid, icpId, username);
+    }
+
+    /**
+     * @return true if the key was found and deleted
+     */
+    public boolean deleteKey(String icpId, String username, long fkid) {
+        return update(shard(icpId), DELETE, fkid, icpId, username);
+    }
+
+    /**
+     * @return number of lookups run on the shard
+     */
+    public long getLookupCount(String shard) {
+        return shards.get(shard).lookups.sum();
+    }
+
+    /**
+     * @return mean time of the lookups run on the shard, in microseconds
+     */
+    public double getMeanLookupMicros(String shard) {
+        Shard s = shards.get(shard);
+        long lookups = s.lookups.sum();
+        return (lookups == 0) ? 0 : s.lookupNanos.sum() / 1000.0 / lookups;
+    }
+
+    /**
+     * @return number of keys stored in the shard
+     */
+    public long getRowCount(String shard) {
+        List<Long> count = query(shards.get(shard), COUNT, rs -> rs.getLong(1));
+        return count.get(0);
+    }
+
+    /**
+     * Passes one page of a shard's keys, in fkid order, to the consumer as
+     * each row is read.
+     *
+     * @param icpId - tenant to export, or null for every tenant in the shard
+     * @return number of keys passed to the consumer
+     */
+    int forEachRecord(String shard, String icpId, long afterFkid, int limit, Consumer<KeyRecord> consumer) {
+        Shard s = shards.get(shard);
+        try (Connection connection = s.dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement(icpId == null ? SELECT_EXPORT_PAGE : SELECT_EXPORT_PAGE_BY_ICPID)) {
+            if (icpId == null) {
+                bind(ps, afterFkid, limit);
+            } else {
+                bind(ps, afterFkid, icpId, limit);
+            }
+            ps.setFetchSize(Math.min(limit, 100));
+            int count = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new KeyRecord(toFidoKey(rs), rs.getString("credential_hash")));
+                    count++;
+                }
+            }
+            return count;
+        } catch (SQLException e) {
+            throw failure("Key export failed in shard " + shard, e);
+        }
+    }
+
+    /**
+     * @param currentPrefix - prefix of the tokens that are up to date
+     * @return one page, in fkid order, of the shard's keys whose keyhandle
+     * token does not start with the prefix
+     */
+    List<FidoKey> getStaleKeyhandles(String shard, String currentPrefix, long afterFkid, int limit) {
+        return query(shards.get(shard), SELECT_STALE_KEYHANDLES, Database::toFidoKey, afterFkid, currentPrefix + "%", limit);
+    }
+
+    /**
+     * Replaces the keyhandle token of a key, if it still has the one it was
+     * read with.
+     *
+     * @return false if the key is gone or its token changed
+     */
+    boolean replaceKeyhandle(FidoKey key, String token) {
+        return update(shard(key.getIcpid()), UPDATE_KEYHANDLE, token, keyhandleHash(token), key.getFkid(),
+                key.getIcpid(), key.getKeyhandle());
+    }
+
+    /**
+     * Writes keys exported from another store, keeping their fkid, in one
+     * transaction per shard. A key of the same tenant that is already there
+     * is replaced, so a batch can be written again.
+     *
+     * @throws IllegalStateException if a key's fkid, or its credential id,
+     * is taken by another tenant's key; nothing of that shard's batch is
+     * written then
+     */
+    void importRecords(Collection<KeyRecord> records) {
+        Map<Shard, List<KeyRecord>> byShard = new LinkedHashMap<>();
+        for (KeyRecord record : records) {
+            byShard.computeIfAbsent(shard(record.getKey().getIcpid()), k -> new ArrayList<>()).add(record);
+        }
+        for (Map.Entry<Shard, List<KeyRecord>> entry : byShard.entrySet()) {
+            importRecords(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void importRecords(Shard shard, List<KeyRecord> records) {
+        try (Connection connection = shard.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement keys = connection.prepareStatement(MERGE);
+                 PreparedStatement credentials = connection.prepareStatement(MERGE_CREDENTIAL);
+                 PreparedStatement keyOwner = connection.prepareStatement(SELECT_KEY_OWNER);
+                 PreparedStatement credentialOwner = connection.prepareStatement(SELECT_CREDENTIAL_OWNER)) {
+                for (KeyRecord record : records) {
+                    FidoKey key = record.getKey();
+                    checkOwner(keyOwner, credentialOwner, record);
+                    keys.setLong(1, key.getFkid());
+                    bindKey(keys, 1, key);
+                    keys.addBatch();
+                    if (record.getCredentialHash() != null) {
+                        bind(credentials, record.getCredentialHash(), key.getSid(), key.getIcpid(), key.getUsername(), key.getFkid());
+                        credentials.addBatch();
+                    }
+                }
+                keys.executeBatch();
+                credentials.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw failure("Import of " + records.size() + " keys failed in shard " + shard.name, e);
+        }
+    }
+
+    /**
+     * Refuses a record that would overwrite a key, or repoint a credential,
+     * of another tenant: each store numbers its keys on its own, so the same
+     * fkid can belong to different tenants in the source and here.
+     */
+    private static void checkOwner(PreparedStatement keyOwner, PreparedStatement credentialOwner, KeyRecord record)
+            throws SQLException {
+        FidoKey key = record.getKey();
+        keyOwner.setLong(1, key.getFkid());
+        try (ResultSet rs = keyOwner.executeQuery()) {
+            if (rs.next() && !rs.getString(1).equals(key.getIcpid())) {
+                throw new IllegalStateException("fkid " + key.getFkid() + " of tenant " + key.getIcpid()
+                        + " is taken by a key of another tenant");
+            }
+        }
+        if (record.getCredentialHash() == null) {
+            return;
+        }
+        credentialOwner.setString(1, record.getCredentialHash());
+        try (ResultSet rs = credentialOwner.executeQuery()) {
+            if (rs.next() && (!rs.getString(1).equals(key.getIcpid()) || rs.getLong(2) != key.getFkid())) {
+                throw new IllegalStateException("Credential of key " + key.getFkid() + " of tenant " + key.getIcpid()
+                        + " is registered to another key");
+            }
+        }
+    }
+
+    /**
+     * Drops the indexes only lookups use, so a bulk import does not maintain
+     * them row by row; createIndexes builds them again.
+     */
+    void dropLookupIndexes() {
+        for (Shard shard : shards.values()) {
+            for (String index : LOOKUP_INDEXES) {
+                execute(shard, "DROP INDEX IF EXISTS " + index);
+            }
+        }
+    }
+
+    void createIndexes() {
+        shards.values().forEach(Database::createSchema);
+    }
+
+    /**
+     * Moves each shard's fkid sequence past the keys imported into it.
+     */
+    void restartKeyIds() {
+        for (Shard shard : shards.values()) {
+            long max = query(shard, SELECT_MAX_FKID, rs -> rs.getLong(1)).get(0);
+            execute(shard, "ALTER TABLE fido_keys ALTER COLUMN fkid RESTART WITH " + (max + 1));
+        }
+    }
+
+    private static void execute(Shard shard, String sql) {
+        try (Connection connection = shard.dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        } catch (SQLException e) {
+            throw failure("Could not run " + sql + " in shard " + shard.name, e);
+        }
+    }
+
+    private interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private static <T> List<T> query(Shard shard, String sql, RowMapper<T> mapper, Object... params) {
+        long start = System.nanoTime();
+        try (Connection connection = shard.dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            bind(ps, params);
+            List<T> rows = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(mapper.map(rs));
+                }
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw failure("Key lookup failed in shard " + shard.name, e);
+        } finally {
+            shard.lookups.increment();
+            shard.lookupNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static boolean update(Shard shard, String sql, Object... params) {
+        try (Connection connection = shard.dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            bind(ps, params);
+            return ps.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw failure("Key update failed in shard " + shard.name, e);
+        }
+    }
+
+    private static void bind(PreparedStatement ps, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+    }
+
+    private static void setNullable(PreparedStatement ps, int index, Number value, int sqlType) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, sqlType);
+        } else {
+            ps.setObject(index, value, sqlType);
+        }
+    }
+
+    private static Timestamp timestamp(Date date) {
+        return (date == null) ? null : new Timestamp(date.getTime());
+    }
+
+    private static FidoKey toFidoKey(ResultSet rs) throws SQLException {
+        FidoKey key = new FidoKey();
+        key.setFkid(rs.getLong("fkid"));
+        key.setSid(rs.getShort("sid"));
+        key.setIcpid(rs.getString("icpid"));
+        key.setUsername(rs.getString("username"));
+        key.setUserid(rs.getString("userid"));
+        key.setKeyhandleToken(rs.getString("keyhandle"));
+        key.setAppid(rs.getString("appid"));
+        key.setPublickey(rs.getString("publickey"));
+        key.setTransports(rs.getObject("transports") == null ? null : rs.getShort("transports"));
+        key.setAttsid(rs.getObject("attsid") == null ? null : rs.getShort("attsid"));
+        key.setAttcid(rs.getObject("attcid") == null ? null : rs.getInt("attcid"));
+        key.setCounter(rs.getInt("counter"));
+        key.setFidoVersion(rs.getString("fido_version"));
+        key.setFidoProtocol(rs.getString("fido_protocol"));
+        key.setAaguid(rs.getString("aaguid"));
+        key.setRegistrationSettings(rs.getString("registration_settings"));
+        key.setRegistrationSettingsVersion(rs.getObject("registration_settings_version") == null ? null
+                : rs.getInt("registration_settings_version"));
+        key.setCreateDate(rs.getTimestamp("create_date"));
+        key.setCreateLocation(rs.getString("create_location"));
+        key.setModifyDate(rs.getTimestamp("modify_date"));
+        key.setModifyLocation(rs.getString("modify_location"));
+        key.setStatus(rs.getString("status"));
+        key.setSignatureKeytype(rs.getString("signature_keytype"));
+        key.setSignature(rs.getString("signature"));
+        return key;
+    }
+
+    private static PreauthKeyView toPreauthKeyView(ResultSet rs) throws SQLException {
+        return new PreauthKeyView(rs.getLong("fkid"),
+                rs.getShort("sid"),
+                rs.getString("icpid"),
+                rs.getString("username"),
+                rs.getString("keyhandle"),
+                rs.getString("publickey"),
+                rs.getString("appid"),
+                rs.getObject("transports") == null ? null : rs.getShort("transports"),
+                rs.getString("fido_protocol"),
+                rs.getInt("counter"),
+                rs.getString("status"),
+                rs.getTimestamp("create_date"),
+                rs.getTimestamp("modify_date"));
+    }
+
+    private static ExcludeCredentialView toExcludeCredentialView(ResultSet rs) throws SQLException {
+        return new ExcludeCredentialView(rs.getLong("fkid"),
+                rs.getString("keyhandle"),
+                rs.getString("appid"),
+                rs.getObject("transports") == null ? null : rs.getShort("transports"),
+                rs.getString("fido_protocol"),
+                rs.getString("userid"));
+    }
+
+    static String keyhandleHash(String keyhandleToken) {
+        return sha256(keyhandleToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hashes the decoded credential id, so padded and unpadded forms of the
+     * same id match.
+     *
+     * @throws IllegalArgumentException if the credential id is not base64url
+     */
+    static String credentialHash(String credentialId) {
+        return sha256(Base64.getUrlDecoder().decode(credentialId));
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            MessageDigest digest = CryptoPrimitives.digest("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static IllegalStateException failure(String message, SQLException e) {
+        log.severe(message + ": " + e.getMessage());
+        return new IllegalStateException(message, e);
     }
 }
@@ -0,0 +1,53 @@
+package dal;
+
+/**
+ * The columns of a registered key that preregistration needs to tell the
+ * authenticator not to register it again, plus the user handle it was
+ * registered under so a new key gets the same one.
+ */
+public final class ExcludeCredentialView {
+
+    private final long fkid;
+    private final String keyhandle;
+    private final String appid;
+    private final Short transports;
+    private final String fidoProtocol;
+    private final String userid;
+
+    public ExcludeCredentialView(long fkid, String keyhandle, String appid, Short transports, String fidoProtocol,
+                                 String userid) {
+        this.fkid = fkid;
+        this.keyhandle = keyhandle;
+        this.appid = appid;
+        this.transports = transports;
+        this.fidoProtocol = fidoProtocol;
+        this.userid = userid;
+    }
+
+    public long getFkid() {
+        return fkid;
+    }
+
+    /**
+     * @return the keyhandle in its stored, encrypted form
+     */
+    public String getKeyhandle() {
+        return keyhandle;
+    }
+
+    public String getAppid() {
+        return appid;
+    }
+
+    public Short getTransports() {
+        return transports;
+    }
+
+    public String getFidoProtocol() {
+        return fidoProtocol;
+    }
+
+    public String getUserid() {
+        return userid;
+    }
+}
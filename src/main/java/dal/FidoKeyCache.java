@@ -0,0 +1,303 @@
+package dal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of each user's active keys in front of the Database.
+ *
+ * An entry is an immutable snapshot of the keys a user had active when it was
+ * loaded. It holds PreauthKeyViews, so neither the cache nor its loads carry
+ * the registration settings and other columns authentication has no use for.
+ * Entries are bounded in number (W-TinyLFU eviction) and live for a fixed
+ * time after loading, so changes made by other servers show up within the
+ * TTL. There is one cache per shard of the Database, each with its own
+ * budget (dal.property.cache.maxusers, a plain or per-shard value), so a very
+ * large tenant on a shard of its own cannot evict everyone else's keys.
+ *
+ * Users with no active keys are not kept here but in an UnknownUserCache, a
+ * short-lived negative tier that answers for usernames that keep missing, so
+ * probes for unknown usernames neither reach the database every time nor
+ * push real users' snapshots out.
+ *
+ * Anything that adds, deletes or changes the status of a key must write the
+ * database first and then call invalidate. Loading runs inside the cache's
+ * per-key computation and invalidation waits for it, so a load that read the
+ * database before the write can never outlive the invalidation. Counter
+ * updates go through updateCounter or, when written behind by CounterWriter,
+ * applyCounter; both replace the cached key with a copy instead of dropping
+ * the user's snapshot.
+ */
+@Log
+@Component("fidoKeyCache")
+public class FidoKeyCache {
+
+    public static final String ACTIVE_STATUS = "Active";
+    public static final String INACTIVE_STATUS = "Inactive";
+
+    @Autowired
+    private Database database;
+
+    private Map<String, Cache<String, List<PreauthKeyView>>> caches;
+    private UnknownUserCache unknownUsers;
+
+    public FidoKeyCache() { }
+
+    FidoKeyCache(Database database, long maxUsers, long ttlMillis) {
+        this(database, maxUsers, ttlMillis, new UnknownUserCache(maxUsers, ttlMillis, 2));
+    }
+
+    FidoKeyCache(Database database, long maxUsers, long ttlMillis, UnknownUserCache unknownUsers) {
+        this.database = database;
+        this.caches = new HashMap<>();
+        for (String shard : database.getShards()) {
+            caches.put(shard, build(maxUsers, ttlMillis));
+        }
+        this.unknownUsers = unknownUsers;
+    }
+
+    @PostConstruct
+    public void start() {
+        String maxUsers = Common.getProperty("dal.property.cache.maxusers");
+        long ttlMillis = Long.parseLong(Common.getProperty("dal.property.cache.ttlseconds")) * 1000;
+        caches = new HashMap<>();
+        for (String shard : database.getShards()) {
+            caches.put(shard, build(Long.parseLong(ShardRouter.perShard(maxUsers, shard)), ttlMillis));
+        }
+        long maxUnknown = Long.parseLong(Common.getProperty("dal.property.cache.unknown.maxusers"));
+        long unknownTtlMillis = Long.parseLong(Common.getProperty("dal.property.cache.unknown.ttlseconds")) * 1000;
+        int admitAfter = Integer.parseInt(Common.getProperty("dal.property.cache.unknown.admitafter"));
+        unknownUsers = new UnknownUserCache(maxUnknown, unknownTtlMillis, admitAfter);
+        log.info("Key cache started, maxusers=" + maxUsers + ", ttl=" + ttlMillis + "ms, unknown maxusers="
+                + maxUnknown + ", ttl=" + unknownTtlMillis + "ms, admitafter=" + admitAfter);
+    }
+
+    private static Cache<String, List<PreauthKeyView>> build(long maxUsers, long ttlMillis) {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        return Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                // Counter patches must not extend the life of a snapshot
+                .expireAfter(new Expiry<String, List<PreauthKeyView>>() {
+                    @Override
+                    public long expireAfterCreate(String key, List<PreauthKeyView> keys, long currentTime) {
+                        return ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, List<PreauthKeyView> keys, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, List<PreauthKeyView> keys, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    private static String cacheKey(String icpId, String username) {
+        return icpId + "/" + username;
+    }
+
+    private Cache<String, List<PreauthKeyView>> cache(String icpId) {
+        return caches.get(database.shardFor(icpId));
+    }
+
+    /**
+     * @return the user's active keys, oldest first; never null
+     */
+    public List<PreauthKeyView> getActiveKeys(String icpId, String username) {
+        String key = cacheKey(icpId, username);
+        if (unknownUsers.contains(key)) {
+            return Collections.emptyList();
+        }
+        List<PreauthKeyView> keys = cache(icpId).get(key, k -> load(icpId, username, k));
+        return (keys == null) ? Collections.<PreauthKeyView>emptyList() : keys;
+    }
+
+    // Runs inside the cache's computation for the key, so an invalidate
+    // waits for it before clearing the negative tier as well
+    private List<PreauthKeyView> load(String icpId, String username, String key) {
+        List<PreauthKeyView> keys = database.getPreauthKeys(icpId, username, ACTIVE_STATUS);
+        if (keys.isEmpty()) {
+            unknownUsers.recordMiss(key);
+            return null;
+        }
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Looks the key up among the user's active keys, falling back to the
+     * database for keys that are not active.
+     *
+     * @return the key, or null if there is no such key for this user
+     */
+    public PreauthKeyView getByFkid(String icpId, String username, long fkid) {
+        for (PreauthKeyView key : getActiveKeys(icpId, username)) {
+            if (key.getFkid() == fkid) {
+                return key;
+            }
+        }
+        return database.getPreauthKeyByFkid(icpId, username, fkid);
+    }
+
+    /**
+     * Resolves the credential id a client authenticated with to its key, for
+     * flows that do not name the user up front.
+     *
+     * @return the key, or null if the credential id is unknown to this tenant
+     */
+    public PreauthKeyView getByCredential(String icpId, String credentialId) {
+        FidoKeyId keyId = database.getKeyIdByCredential(icpId, credentialId);
+        if (keyId == null) {
+            return null;
+        }
+        return getByFkid(keyId.getIcpId(), keyId.getUsername(), keyId.getFkid());
+    }
+
+    /**
+     * Stores the new signature counter of a key and applies it to the cached
+     * snapshot. Counters only move forward, so when two updates race the
+     * snapshot keeps the higher one.
+     *
+     * @return true if the key was found and updated
+     */
+    public boolean updateCounter(String icpId, String username, long fkid, int counter, String modifyLocation) {
+        if (!database.updateCounter(icpId, username, fkid, counter, modifyLocation)) {
+            return false;
+        }
+        applyCounter(icpId, username, fkid, counter);
+        return true;
+    }
+
+    /**
+     * Stores the new status of a key, then drops the user's snapshot so a key
+     * taken out of service is not offered again.
+     *
+     * @return true if the key was found and updated
+     */
+    public boolean updateStatus(FidoKeyId keyId, String status, String modifyLocation) {
+        if (!database.updateStatus(keyId.getIcpId(), keyId.getUsername(), keyId.getFkid(), status, modifyLocation)) {
+            return false;
+        }
+        invalidate(keyId);
+        return true;
+    }
+
+    /**
+     * Applies a signature counter to the cached snapshot only; the caller
+     * takes care of storing it.
+     */
+    public void applyCounter(String icpId, String username, long fkid, int counter) {
+        cache(icpId).asMap().computeIfPresent(cacheKey(icpId, username), (k, keys) -> withCounter(keys, fkid, counter));
+    }
+
+    private static List<PreauthKeyView> withCounter(List<PreauthKeyView> keys, long fkid, int counter) {
+        List<PreauthKeyView> patched = new ArrayList<>(keys);
+        for (int i = 0; i < patched.size(); i++) {
+            PreauthKeyView key = patched.get(i);
+            if (key.getFkid() == fkid && key.getCounter() < counter) {
+                patched.set(i, key.withCounter(counter));
+                return Collections.unmodifiableList(patched);
+            }
+        }
+        return keys;
+    }
+
+    public void invalidate(String icpId, String username) {
+        String key = cacheKey(icpId, username);
+        cache(icpId).invalidate(key);
+        unknownUsers.invalidate(key);
+    }
+
+    public void invalidate(FidoKeyId keyId) {
+        invalidate(keyId.getIcpId(), keyId.getUsername());
+    }
+
+    public void invalidateAll() {
+        caches.values().forEach(Cache::invalidateAll);
+        unknownUsers.invalidateAll();
+    }
+
+    private CacheStats stats() {
+        CacheStats stats = CacheStats.empty();
+        for (Cache<String, List<PreauthKeyView>> cache : caches.values()) {
+            stats = stats.plus(cache.stats());
+        }
+        return stats;
+    }
+
+    public long getHitCount() {
+        return stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return stats().evictionCount();
+    }
+
+    public double getHitRate() {
+        return stats().hitRate();
+    }
+
+    public long size() {
+        long size = 0;
+        for (Cache<String, List<PreauthKeyView>> cache : caches.values()) {
+            size += cache.estimatedSize();
+        }
+        return size;
+    }
+
+    public double getHitRate(String shard) {
+        return caches.get(shard).stats().hitRate();
+    }
+
+    public long getEvictionCount(String shard) {
+        return caches.get(shard).stats().evictionCount();
+    }
+
+    public long size(String shard) {
+        return caches.get(shard).estimatedSize();
+    }
+
+    /**
+     * @return lookups of users with no active keys answered without a query
+     */
+    public long getUnknownHitCount() {
+        return unknownUsers.getHitCount();
+    }
+
+    /**
+     * @return queries that found no active keys
+     */
+    public long getUnknownMissCount() {
+        return unknownUsers.getMissCount();
+    }
+
+    public long getUnknownAdmissionCount() {
+        return unknownUsers.getAdmissionCount();
+    }
+
+    public long getUnknownSize() {
+        return unknownUsers.size();
+    }
+}
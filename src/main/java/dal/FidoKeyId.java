@@ -0,0 +1,72 @@
+package dal;
+
+import model.FidoKey;
+
+/**
+ * Identifier of a registered key as handed to clients for deregistering and
+ * patching keys: sid-icpid-username-fkid. The username may itself contain
+ * dashes; sid, icpid and fkid never do.
+ */
+public final class FidoKeyId {
+
+    private final short sid;
+    private final String icpId;
+    private final String username;
+    private final long fkid;
+
+    public FidoKeyId(short sid, String icpId, String username, long fkid) {
+        this.sid = sid;
+        this.icpId = icpId;
+        this.username = username;
+        this.fkid = fkid;
+    }
+
+    public static FidoKeyId of(FidoKey key) {
+        return new FidoKeyId(key.getSid(), key.getIcpid(), key.getUsername(), key.getFkid());
+    }
+
+    /**
+     * @throws IllegalArgumentException if keyid is not of the form
+     * sid-icpid-username-fkid
+     */
+    public static FidoKeyId parse(String keyid) {
+        if (keyid == null) {
+            throw new IllegalArgumentException("Missing keyid");
+        }
+        int first = keyid.indexOf('-');
+        int second = (first < 0) ? -1 : keyid.indexOf('-', first + 1);
+        int last = keyid.lastIndexOf('-');
+        if (first <= 0 || second <= first + 1 || last <= second + 1 || last == keyid.length() - 1) {
+            throw new IllegalArgumentException("Invalid keyid " + keyid);
+        }
+        try {
+            return new FidoKeyId(Short.parseShort(keyid.substring(0, first)),
+                    keyid.substring(first + 1, second),
+                    keyid.substring(second + 1, last),
+                    Long.parseLong(keyid.substring(last + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid keyid " + keyid);
+        }
+    }
+
+    public short getSid() {
+        return sid;
+    }
+
+    public String getIcpId() {
+        return icpId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getFkid() {
+        return fkid;
+    }
+
+    @Override
+    public String toString() {
+        return sid + "-" + icpId + "-" + username + "-" + fkid;
+    }
+}
@@ -0,0 +1,385 @@
+package dal;
+
+import crypto.KeyhandleSealer;
+import lombok.extern.java.Log;
+import model.FidoKey;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulk export and import of keys as NDJSON, one key per line, for moving
+ * tenants between clusters and seeding new nodes without replaying
+ * registrations.
+ *
+ * Export pages through each shard in fkid order, so it holds one page at a
+ * time. Import reads the file once and writes batches on a pool of workers;
+ * keys keep their fkid, so the keyids clients hold stay valid, and a key that
+ * is already there is replaced, which makes a batch safe to write twice. A
+ * key whose fkid is another tenant's here stops the import instead.
+ *
+ * Keyhandles travel sealed, so the receiving cluster must hold the keys they
+ * are sealed under: the same crypto.property.keyhandle.keys ring, and the
+ * same crypto.property.aeskey for tokens older than the ring. Import opens
+ * every sealed keyhandle before writing it and stops at one that does not
+ * open. The
+ * number of lines written without a gap is kept in a checkpoint file after
+ * every batch, and an import started again from it skips those lines.
+ *
+ * Both log their throughput in rows/s every five seconds and when done.
+ */
+@Log
+public class KeyArchive {
+
+    private static final long REPORT_MILLIS = 5000;
+
+    private final Database database;
+    private final KeyhandleSealer sealer;
+
+    /**
+     * @param sealer - opens the keyhandles of imported keys to check them
+     */
+    public KeyArchive(Database database, KeyhandleSealer sealer) {
+        this.database = database;
+        this.sealer = sealer;
+    }
+
+    /**
+     * Writes the keys of a tenant, or of every tenant, one JSON object per
+     * line.
+     *
+     * @param icpId - tenant to export, or null for all
+     * @return number of keys written
+     */
+    public long export(String icpId, Writer out, int pageSize) {
+        Throughput throughput = new Throughput("Exported");
+        List<String> shards = (icpId == null)
+                ? new ArrayList<>(database.getShards()) : Collections.singletonList(database.shardFor(icpId));
+        for (String shard : shards) {
+            long[] last = {0};
+            int read;
+            do {
+                read = database.forEachRecord(shard, icpId, last[0], pageSize, record -> {
+                    write(out, toJson(record));
+                    last[0] = record.getKey().getFkid();
+                    throughput.add(1);
+                });
+            } while (read == pageSize);
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return throughput.done();
+    }
+
+    /**
+     * Reads keys written by export and stores them.
+     *
+     * @param checkpoint - file holding the number of lines already imported,
+     * read to resume and rewritten as batches complete; null for none
+     * @param deferIndexes - drop the lookup indexes for the import and build
+     * them once at the end; only for stores not serving traffic
+     * @return number of keys imported by this run
+     * @throws IllegalStateException if a batch failed; the checkpoint then
+     * holds the line to resume from
+     */
+    public long importKeys(BufferedReader in, Path checkpoint, int workers, int batchSize, boolean deferIndexes)
+            throws IOException, InterruptedException {
+        long skip = readCheckpoint(checkpoint);
+        for (long i = 0; i < skip && in.readLine() != null; i++) {
+            // Already imported
+        }
+        if (skip > 0) {
+            log.info("Resuming import after line " + skip);
+        }
+        if (deferIndexes) {
+            database.dropLookupIndexes();
+        }
+
+        Throughput throughput = new Throughput("Imported");
+        Progress progress = new Progress(skip, checkpoint);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        // Bounds the batches read ahead of the workers
+        Semaphore inFlight = new Semaphore(workers * 2);
+        try {
+            long line = skip;
+            List<KeyRecord> batch = new ArrayList<>(batchSize);
+            long batchStart = line;
+            String text;
+            while (failure.get() == null && (text = in.readLine()) != null) {
+                line++;
+                if (!text.trim().isEmpty()) {
+                    batch.add(fromJson(text, line));
+                }
+                if (batch.size() == batchSize) {
+                    submit(pool, inFlight, batch, batchStart, line, progress, throughput, failure);
+                    batch = new ArrayList<>(batchSize);
+                    batchStart = line;
+                }
+            }
+            if (failure.get() == null && line > batchStart) {
+                submit(pool, inFlight, batch, batchStart, line, progress, throughput, failure);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Import stopped; resume after line " + progress.getDone(), failure.get());
+        }
+        database.restartKeyIds();
+        if (deferIndexes) {
+            long start = System.currentTimeMillis();
+            database.createIndexes();
+            log.info("Built lookup indexes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return throughput.done();
+    }
+
+    private void submit(ExecutorService pool, Semaphore inFlight, List<KeyRecord> batch, long from, long to,
+                        Progress progress, Throughput throughput, AtomicReference<RuntimeException> failure)
+            throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    if (!batch.isEmpty()) {
+                        checkKeyhandles(batch);
+                        database.importRecords(batch);
+                    }
+                    progress.complete(from, to);
+                    throughput.add(batch.size());
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Refuses a batch holding a sealed keyhandle that does not open here; the
+     * key would be stored but could never authenticate. Tokens of the older
+     * formats are not told apart from plain credential ids and are not checked.
+     */
+    private void checkKeyhandles(List<KeyRecord> batch) {
+        for (KeyRecord record : batch) {
+            FidoKey key = record.getKey();
+            if (KeyhandleSealer.isSealed(key.getKeyhandle())) {
+                try {
+                    sealer.unseal(key.getIcpid(), key.getAppid(), key.getKeyhandle());
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Keyhandle of key " + key.getFkid() + " of tenant " + key.getIcpid()
+                            + " does not open with crypto.property.keyhandle.keys of this cluster", e);
+                }
+            }
+        }
+    }
+
+    private static long readCheckpoint(Path checkpoint) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return 0;
+        }
+        String text = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim();
+        return text.isEmpty() ? 0 : Long.parseLong(text);
+    }
+
+    /**
+     * Tracks the batches done, which complete out of order, and the line up
+     * to which every batch is done.
+     */
+    private static final class Progress {
+
+        private final Path checkpoint;
+        private final TreeMap<Long, Long> completed = new TreeMap<>();
+        private long done;
+
+        private Progress(long done, Path checkpoint) {
+            this.done = done;
+            this.checkpoint = checkpoint;
+        }
+
+        synchronized void complete(long from, long to) {
+            completed.put(from, to);
+            long before = done;
+            Long next;
+            while ((next = completed.remove(done)) != null) {
+                done = next;
+            }
+            if (done != before && checkpoint != null) {
+                write(done);
+            }
+        }
+
+        synchronized long getDone() {
+            return done;
+        }
+
+        private void write(long line) {
+            try {
+                Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+                Files.write(tmp, Long.toString(line).getBytes(StandardCharsets.US_ASCII));
+                Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final class Throughput {
+
+        private final String verb;
+        private final long start = System.nanoTime();
+        private final LongAdder rows = new LongAdder();
+        private volatile long lastReport = System.currentTimeMillis();
+
+        private Throughput(String verb) {
+            this.verb = verb;
+        }
+
+        void add(int count) {
+            rows.add(count);
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_MILLIS) {
+                lastReport = now;
+                report();
+            }
+        }
+
+        long done() {
+            report();
+            return rows.sum();
+        }
+
+        private void report() {
+            long count = rows.sum();
+            double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+            log.info(String.format("%s %d keys, %.0f rows/s", verb, count, count / seconds));
+        }
+    }
+
+    private static void write(Writer out, JsonObject json) {
+        try {
+            out.write(json.toString());
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static JsonObject toJson(KeyRecord record) {
+        FidoKey key = record.getKey();
+        JsonObjectBuilder job = Json.createObjectBuilder()
+                .add("fkid", key.getFkid())
+                .add("sid", key.getSid())
+                .add("icpid", key.getIcpid())
+                .add("username", key.getUsername())
+                .add("keyhandle", key.getKeyhandle())
+                .add("counter", key.getCounter())
+                .add("status", key.getStatus());
+        addIfSet(job, "credentialHash", record.getCredentialHash());
+        addIfSet(job, "userid", key.getUserid());
+        addIfSet(job, "appid", key.getAppid());
+        addIfSet(job, "publickey", key.getPublickey());
+        addIfSet(job, "transports", key.getTransports());
+        addIfSet(job, "attsid", key.getAttsid());
+        addIfSet(job, "attcid", key.getAttcid());
+        addIfSet(job, "fidoVersion", key.getFidoVersion());
+        addIfSet(job, "fidoProtocol", key.getFidoProtocol());
+        addIfSet(job, "aaguid", key.getAaguid());
+        addIfSet(job, "registrationSettings", key.getRegistrationSettings());
+        addIfSet(job, "registrationSettingsVersion", key.getRegistrationSettingsVersion());
+        addIfSet(job, "createDate", key.getCreateDate() == null ? null : key.getCreateDate().getTime());
+        addIfSet(job, "createLocation", key.getCreateLocation());
+        addIfSet(job, "modifyDate", key.getModifyDate() == null ? null : key.getModifyDate().getTime());
+        addIfSet(job, "modifyLocation", key.getModifyLocation());
+        addIfSet(job, "signatureKeytype", key.getSignatureKeytype());
+        addIfSet(job, "signature", key.getSignature());
+        return job.build();
+    }
+
+    private static void addIfSet(JsonObjectBuilder job, String name, String value) {
+        if (value != null) {
+            job.add(name, value);
+        }
+    }
+
+    private static void addIfSet(JsonObjectBuilder job, String name, Number value) {
+        if (value != null) {
+            job.add(name, value.longValue());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the line is not a key written by
+     * export
+     */
+    static KeyRecord fromJson(String text, long line) {
+        try (JsonReader reader = Json.createReader(new StringReader(text))) {
+            JsonObject json = reader.readObject();
+            FidoKey key = new FidoKey();
+            key.setFkid(json.getJsonNumber("fkid").longValue());
+            key.setSid((short) json.getInt("sid"));
+            key.setIcpid(json.getString("icpid"));
+            key.setUsername(json.getString("username"));
+            key.setKeyhandleToken(json.getString("keyhandle"));
+            key.setCounter(json.getInt("counter"));
+            key.setStatus(json.getString("status"));
+            key.setUserid(json.getString("userid", null));
+            key.setAppid(json.getString("appid", null));
+            key.setPublickey(json.getString("publickey", null));
+            key.setTransports(json.containsKey("transports") ? (short) json.getInt("transports") : null);
+            key.setAttsid(json.containsKey("attsid") ? (short) json.getInt("attsid") : null);
+            key.setAttcid(json.containsKey("attcid") ? json.getInt("attcid") : null);
+            key.setFidoVersion(json.getString("fidoVersion", null));
+            key.setFidoProtocol(json.getString("fidoProtocol", null));
+            key.setAaguid(json.getString("aaguid", null));
+            key.setRegistrationSettings(json.getString("registrationSettings", null));
+            key.setRegistrationSettingsVersion(json.containsKey("registrationSettingsVersion")
+                    ? json.getInt("registrationSettingsVersion") : null);
+            key.setCreateDate(date(json, "createDate"));
+            key.setCreateLocation(json.getString("createLocation", null));
+            key.setModifyDate(date(json, "modifyDate"));
+            key.setModifyLocation(json.getString("modifyLocation", null));
+            key.setSignatureKeytype(json.getString("signatureKeytype", null));
+            key.setSignature(json.getString("signature", null));
+            return new KeyRecord(key, json.getString("credentialHash", null));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Line " + line + " is not an exported key: " + e.getMessage(), e);
+        }
+    }
+
+    private static Date date(JsonObject json, String name) {
+        JsonValue value = json.get(name);
+        return (value instanceof JsonNumber) ? new Date(((JsonNumber) value).longValue()) : null;
+    }
+}
@@ -0,0 +1,35 @@
+package dal;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Continuation token of a paginated key listing. It carries the fkid of the
+ * last key returned, as base64url, and is opaque to clients: they only echo
+ * it back to get the next page.
+ */
+public final class KeyPageToken {
+
+    private KeyPageToken() { }
+
+    public static String encode(long lastFkid) {
+        byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(lastFkid).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @return the fkid the next page starts after
+     * @throws IllegalArgumentException if the token was not issued by encode
+     */
+    public static long decode(String token) {
+        byte[] bytes = Base64.getUrlDecoder().decode(token);
+        if (bytes.length != Long.BYTES) {
+            throw new IllegalArgumentException("Malformed key page token");
+        }
+        long lastFkid = ByteBuffer.wrap(bytes).getLong();
+        if (lastFkid <= 0) {
+            throw new IllegalArgumentException("Malformed key page token");
+        }
+        return lastFkid;
+    }
+}
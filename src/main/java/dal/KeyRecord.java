@@ -0,0 +1,29 @@
+package dal;
+
+import model.FidoKey;
+
+/**
+ * A key as bulk transfer moves it: every column, and the hash of its
+ * credential id, which cannot be derived from the encrypted keyhandle.
+ */
+final class KeyRecord {
+
+    private final FidoKey key;
+    private final String credentialHash;
+
+    KeyRecord(FidoKey key, String credentialHash) {
+        this.key = key;
+        this.credentialHash = credentialHash;
+    }
+
+    FidoKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the credential id hash, or null for a key without one
+     */
+    String getCredentialHash() {
+        return credentialHash;
+    }
+}
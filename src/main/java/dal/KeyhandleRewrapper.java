@@ -0,0 +1,180 @@
+package dal;
+
+import common.Common;
+import crypto.KeyhandleSealer;
+import lombok.extern.java.Log;
+import model.FidoKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background migration of keyhandle tokens to the active sealing key: legacy
+ * AES-CBC tokens after an upgrade, and tokens under an older key after a
+ * rotation.
+ *
+ * A thread pages through each shard in fkid order, reading only keys whose
+ * token is not current, and seals each one again at no more than rate keys a
+ * second, so the migration does not compete with traffic. A token is only
+ * replaced if it is still the one that was read. Once every shard has been
+ * gone through the thread ends; the next start picks up anything left, such
+ * as keys that failed to open.
+ */
+@Log
+@Component("keyhandleRewrapper")
+public class KeyhandleRewrapper {
+
+    private static final int PAGE_SIZE = 100;
+
+    @Autowired
+    private Database database;
+
+    private KeyhandleSealer sealer;
+    private int rate;
+
+    private final Object wakeup = new Object();
+    private volatile boolean running;
+    private Thread worker;
+
+    private final LongAdder rewrapped = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile boolean done;
+
+    public KeyhandleRewrapper() { }
+
+    /**
+     * Creates a rewrapper without its thread; used by tests.
+     */
+    KeyhandleRewrapper(Database database, KeyhandleSealer sealer, int rate) {
+        this.database = database;
+        this.sealer = sealer;
+        this.rate = rate;
+        this.running = true;
+    }
+
+    @PostConstruct
+    public void start() {
+        sealer = KeyhandleSealer.getInstance();
+        rate = Integer.parseInt(Common.getProperty("dal.property.rewrap.rate"));
+        if (rate <= 0) {
+            log.info("Keyhandle re-wrapping disabled");
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "keyhandle-rewrapper");
+        worker.setDaemon(true);
+        worker.start();
+        log.info("Keyhandle re-wrapping started, rate=" + rate + "/s");
+    }
+
+    // Woken rather than interrupted, as in CounterWriter
+    @PreDestroy
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            rewrapAll();
+        } catch (RuntimeException e) {
+            log.severe("Keyhandle re-wrapping stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Goes through every shard once, pacing itself to the rate.
+     *
+     * @return number of keyhandles sealed again
+     */
+    long rewrapAll() {
+        long start = System.nanoTime();
+        long count = 0;
+        for (String shard : database.getShards()) {
+            long after = 0;
+            List<FidoKey> page;
+            do {
+                page = database.getStaleKeyhandles(shard, sealer.getActivePrefix(), after, PAGE_SIZE);
+                for (FidoKey key : page) {
+                    if (!running) {
+                        return count;
+                    }
+                    after = key.getFkid();
+                    if (rewrap(key)) {
+                        count++;
+                    }
+                    pace(start, count);
+                }
+            } while (page.size() == PAGE_SIZE);
+        }
+        done = true;
+        log.info("Keyhandle re-wrapping done: " + rewrapped.sum() + " sealed again, " + failures.sum()
+                + " could not be opened, " + skipped.sum() + " changed meanwhile");
+        return count;
+    }
+
+    private boolean rewrap(FidoKey key) {
+        String token;
+        try {
+            token = sealer.rewrap(key.getIcpid(), key.getAppid(), key.getKeyhandle());
+        } catch (GeneralSecurityException e) {
+            failures.increment();
+            log.warning("Could not open keyhandle of key " + key.getFkid() + ": " + e.getMessage());
+            return false;
+        }
+        if (!database.replaceKeyhandle(key, token)) {
+            skipped.increment();
+            return false;
+        }
+        rewrapped.increment();
+        return true;
+    }
+
+    private void pace(long start, long count) {
+        long due = start + count * TimeUnit.SECONDS.toNanos(1) / rate;
+        long wait = TimeUnit.NANOSECONDS.toMillis(due - System.nanoTime());
+        if (wait > 0) {
+            synchronized (wakeup) {
+                try {
+                    if (running) {
+                        wakeup.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+            }
+        }
+    }
+
+    public long getRewrappedCount() {
+        return rewrapped.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return true once every shard has been gone through
+     */
+    public boolean isDone() {
+        return done;
+    }
+}
@@ -0,0 +1,272 @@
+package dal;
+
+import crypto.KeyhandleSealer;
+import model.FidoKey;
+import session.DigestKey;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * The columns of a registered key that authentication needs: enough to build
+ * a challenge for the key, verify its signature and check its counter.
+ * Leaves out the registration settings, attestation signature and audit
+ * columns.
+ *
+ * Views are what the FidoKeyCache holds, so they are kept compact. The
+ * keyhandle and public key are stored as the bytes their sealed token or
+ * base64 text encodes and turned back into text the first time they are read; the transports
+ * bitmask and the timestamps are primitives, and icpid, appid, protocol and
+ * status, which few distinct values repeat across all keys, are interned.
+ * toFidoKey goes back to the entity where one is needed.
+ */
+public final class PreauthKeyView {
+
+    private static final short NO_TRANSPORTS = -1;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // First byte of a packed value: how the rest turns back into text
+    private static final byte TEXT = 0;
+    private static final byte BASE64 = 1;
+    private static final byte BASE64URL = 2;
+    private static final byte BASE64URL_UNPADDED = 3;
+    private static final byte SEALED = 4;
+
+    private final long fkid;
+    private final short sid;
+    private final short transports;
+    private final int counter;
+    private final long createDate;
+    private final long modifyDate;
+    private final String icpid;
+    private final String username;
+    private final byte[] keyhandle;
+    private final byte[] publickey;
+    private final String appid;
+    private final String fidoProtocol;
+    private final String status;
+
+    // Session key for the keyhandle, worked out on first use
+    private volatile DigestKey keyhandleDigest;
+
+    // Text of the keyhandle and public key, unpacked on first use
+    private volatile String keyhandleText;
+    private volatile String publickeyText;
+
+    public PreauthKeyView(long fkid, short sid, String icpid, String username, String keyhandle, String publickey,
+                          String appid, Short transports, String fidoProtocol, int counter, String status,
+                          Date createDate, Date modifyDate) {
+        this(fkid, sid, intern(icpid), username, pack(keyhandle), pack(publickey), intern(appid),
+                (transports == null) ? NO_TRANSPORTS : transports, intern(fidoProtocol), counter, intern(status),
+                (createDate == null) ? NO_DATE : createDate.getTime(), (modifyDate == null) ? NO_DATE : modifyDate.getTime());
+    }
+
+    private PreauthKeyView(long fkid, short sid, String icpid, String username, byte[] keyhandle, byte[] publickey,
+                           String appid, short transports, String fidoProtocol, int counter, String status,
+                           long createDate, long modifyDate) {
+        this.fkid = fkid;
+        this.sid = sid;
+        this.icpid = icpid;
+        this.username = username;
+        this.keyhandle = keyhandle;
+        this.publickey = publickey;
+        this.appid = appid;
+        this.transports = transports;
+        this.fidoProtocol = fidoProtocol;
+        this.counter = counter;
+        this.status = status;
+        this.createDate = createDate;
+        this.modifyDate = modifyDate;
+    }
+
+    /**
+     * @return the view of a key loaded as an entity
+     */
+    public static PreauthKeyView of(FidoKey key) {
+        return new PreauthKeyView(key.getFkid(), key.getSid(), key.getIcpid(), key.getUsername(), key.getKeyhandle(),
+                key.getPublickey(), key.getAppid(), key.getTransports(), key.getFidoProtocol(), key.getCounter(),
+                key.getStatus(), key.getCreateDate(), key.getModifyDate());
+    }
+
+    /**
+     * @return an entity with the columns of this view set; the registration
+     * settings, attestation and audit locations are left empty
+     */
+    public FidoKey toFidoKey() {
+        FidoKey key = new FidoKey();
+        key.setFkid(fkid);
+        key.setSid(sid);
+        key.setIcpid(icpid);
+        key.setUsername(username);
+        key.setKeyhandleToken(getKeyhandle());
+        key.setPublickey(getPublickey());
+        key.setAppid(appid);
+        key.setTransports(getTransports());
+        key.setFidoProtocol(fidoProtocol);
+        key.setCounter(counter);
+        key.setStatus(status);
+        key.setCreateDate(getCreateDate());
+        key.setModifyDate(getModifyDate());
+        return key;
+    }
+
+    public PreauthKeyView withCounter(int counter) {
+        PreauthKeyView view = new PreauthKeyView(fkid, sid, icpid, username, keyhandle, publickey, appid, transports,
+                fidoProtocol, counter, status, createDate, modifyDate);
+        view.keyhandleDigest = keyhandleDigest;
+        view.keyhandleText = keyhandleText;
+        view.publickeyText = publickeyText;
+        return view;
+    }
+
+    public long getFkid() {
+        return fkid;
+    }
+
+    public short getSid() {
+        return sid;
+    }
+
+    public String getIcpid() {
+        return icpid;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the keyhandle in its stored, encrypted form
+     */
+    public String getKeyhandle() {
+        String text = keyhandleText;
+        if (text == null && keyhandle != null) {
+            text = unpack(keyhandle);
+            keyhandleText = text;
+        }
+        return text;
+    }
+
+    /**
+     * @param clearKeyhandle - this key's keyhandle in the clear
+     * @return the DigestKey preauthenticate stores the key's session under;
+     * hashed once per view, as the keyhandle cannot change under it
+     */
+    public DigestKey getKeyhandleDigest(String clearKeyhandle) {
+        DigestKey digest = keyhandleDigest;
+        if (digest == null) {
+            digest = DigestKey.sha256(clearKeyhandle);
+            keyhandleDigest = digest;
+        }
+        return digest;
+    }
+
+    public String getPublickey() {
+        String text = publickeyText;
+        if (text == null && publickey != null) {
+            text = unpack(publickey);
+            publickeyText = text;
+        }
+        return text;
+    }
+
+    public String getAppid() {
+        return appid;
+    }
+
+    public Short getTransports() {
+        return (transports == NO_TRANSPORTS) ? null : transports;
+    }
+
+    public String getFidoProtocol() {
+        return fidoProtocol;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Date getCreateDate() {
+        return (createDate == NO_DATE) ? null : new Date(createDate);
+    }
+
+    public Date getModifyDate() {
+        return (modifyDate == NO_DATE) ? null : new Date(modifyDate);
+    }
+
+    private static String intern(String value) {
+        return (value == null) ? null : value.intern();
+    }
+
+    /**
+     * Keeps the bytes a keyhandle token or base64 value decodes to, if
+     * encoding them again gives back the same text; anything else is kept as
+     * UTF-8.
+     */
+    static byte[] pack(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] binary = KeyhandleSealer.toBinary(value);
+        if (binary != null) {
+            byte[] packed = tag(SEALED, binary);
+            if (value.equals(unpack(packed))) {
+                return packed;
+            }
+        }
+        for (byte encoding : new byte[] {BASE64, BASE64URL, BASE64URL_UNPADDED}) {
+            byte[] packed = decode(value, encoding);
+            if (packed != null) {
+                return packed;
+            }
+        }
+        return tag(TEXT, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String unpack(byte[] packed) {
+        if (packed == null) {
+            return null;
+        }
+        switch (packed[0]) {
+            case BASE64:
+                return encode(packed, Base64.getEncoder());
+            case BASE64URL:
+                return encode(packed, Base64.getUrlEncoder());
+            case BASE64URL_UNPADDED:
+                return encode(packed, Base64.getUrlEncoder().withoutPadding());
+            case SEALED:
+                return KeyhandleSealer.fromBinary(packed, 1);
+            default:
+                return new String(packed, 1, packed.length - 1, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] decode(String value, byte encoding) {
+        byte[] decoded;
+        try {
+            decoded = (encoding == BASE64) ? Base64.getDecoder().decode(value) : Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        byte[] packed = tag(encoding, decoded);
+        return value.equals(unpack(packed)) ? packed : null;
+    }
+
+    private static String encode(byte[] packed, Base64.Encoder encoder) {
+        ByteBuffer encoded = encoder.encode(ByteBuffer.wrap(packed, 1, packed.length - 1));
+        return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] tag(byte encoding, byte[] data) {
+        byte[] packed = new byte[data.length + 1];
+        packed[0] = encoding;
+        System.arraycopy(data, 0, packed, 1, data.length);
+        return packed;
+    }
+}
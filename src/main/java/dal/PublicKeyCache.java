@@ -0,0 +1,91 @@
+package dal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import common.Common;
+import crypto.VerificationKey;
+import lombok.extern.java.Log;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * Decoded public keys of registered keys, by sid, icpId and fkid, so an
+ * assertion is verified without going through KeyFactory each time.
+ *
+ * Entries are bounded in number (dal.property.publickeys.maxkeys) and do not
+ * expire: a key's public key never changes. An entry is still checked
+ * against the stored text it was decoded from, so a key written again under
+ * the same fkid, as by an import, is decoded afresh. Deregistering a key or
+ * changing its status must call invalidate, like FidoKeyCache.
+ */
+@Log
+@Component("publicKeyCache")
+public class PublicKeyCache {
+
+    private Cache<String, VerificationKey> cache;
+
+    public PublicKeyCache() { }
+
+    PublicKeyCache(long maxKeys) {
+        this.cache = build(maxKeys);
+    }
+
+    @PostConstruct
+    public void start() {
+        long maxKeys = Long.parseLong(Common.getProperty("dal.property.publickeys.maxkeys"));
+        cache = build(maxKeys);
+        log.info("Public key cache started, maxkeys=" + maxKeys);
+    }
+
+    private static Cache<String, VerificationKey> build(long maxKeys) {
+        return Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .recordStats()
+                .build();
+    }
+
+    private static String cacheKey(short sid, String icpId, long fkid) {
+        return sid + "/" + icpId + "/" + fkid;
+    }
+
+    /**
+     * @param encoded - the public key as stored with the key
+     * @throws InvalidKeySpecException if the stored public key does not decode
+     */
+    public VerificationKey get(short sid, String icpId, long fkid, String encoded) throws InvalidKeySpecException {
+        String key = cacheKey(sid, icpId, fkid);
+        VerificationKey cached = cache.getIfPresent(key);
+        if (cached != null && cached.getEncoded().equals(encoded)) {
+            return cached;
+        }
+        VerificationKey decoded = VerificationKey.decode(encoded);
+        cache.put(key, decoded);
+        return decoded;
+    }
+
+    public void invalidate(FidoKeyId keyId) {
+        cache.invalidate(cacheKey(keyId.getSid(), keyId.getIcpId(), keyId.getFkid()));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+}
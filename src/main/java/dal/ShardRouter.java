@@ -0,0 +1,96 @@
+package dal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routing table from tenant (icpId) to the key store shard that holds its
+ * keys. Routes are written as "icpId:shard,...", with "*" for the shard of
+ * every tenant not listed, e.g. "7:big,*:default".
+ *
+ * Settings that differ per shard, such as pool size or cache budget, use the
+ * same form with shard names on the left ("big:200000,*:50000"); a plain
+ * value applies to every shard.
+ */
+public final class ShardRouter {
+
+    public static final String DEFAULT_SHARD = "default";
+
+    private static final String ANY = "*";
+
+    private final Set<String> shards;
+    private final Map<String, String> routes;
+    private final String fallback;
+
+    /**
+     * @param shards - names of the shards, in the order metrics list them
+     * @param routes - routing table, which must have a "*" route
+     * @throws IllegalArgumentException if the table is malformed or routes to
+     * an unknown shard
+     */
+    public ShardRouter(Collection<String> shards, String routes) {
+        this.shards = Collections.unmodifiableSet(new LinkedHashSet<>(shards));
+        if (this.shards.isEmpty()) {
+            throw new IllegalArgumentException("No key store shards configured");
+        }
+        Map<String, String> table = parse(routes);
+        for (String shard : table.values()) {
+            if (!this.shards.contains(shard)) {
+                throw new IllegalArgumentException("Route to unknown shard " + shard);
+            }
+        }
+        this.fallback = table.remove(ANY);
+        if (fallback == null) {
+            throw new IllegalArgumentException("Shard routes need a default (*) route");
+        }
+        this.routes = new HashMap<>(table);
+    }
+
+    /**
+     * @return a router sending every tenant to the default shard
+     */
+    public static ShardRouter single() {
+        return new ShardRouter(Collections.singleton(DEFAULT_SHARD), ANY + ":" + DEFAULT_SHARD);
+    }
+
+    public String shardFor(String icpId) {
+        return routes.getOrDefault(icpId, fallback);
+    }
+
+    public Set<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param setting - plain value, or per-shard values with a "*" default
+     * @return the value of the setting for the shard
+     */
+    public static String perShard(String setting, String shard) {
+        if (setting.indexOf(':') < 0) {
+            return setting.trim();
+        }
+        Map<String, String> values = parse(setting);
+        String value = values.getOrDefault(shard, values.get(ANY));
+        if (value == null) {
+            throw new IllegalArgumentException("No value for shard " + shard + " in " + setting);
+        }
+        return value;
+    }
+
+    private static Map<String, String> parse(String table) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (String entry : table.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0 || colon == entry.length() - 1) {
+                throw new IllegalArgumentException("Malformed shard table entry: " + entry);
+            }
+            entries.put(entry.substring(0, colon).trim(), entry.substring(colon + 1).trim());
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,175 @@
+package dal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Negative tier of the FidoKeyCache: users known to have no active keys, so
+ * that lookups of unknown usernames, which is what credential stuffing mostly
+ * sends, are answered without a query.
+ *
+ * The answer comes only from an exact tier whose entries live for a short,
+ * fixed time, so a registration on another server shows up within the TTL.
+ * A username gets there once it has missed admitafter times. Misses are
+ * counted in a counting Bloom filter with conservative update, whose counters
+ * saturate at 15 and are halved every 10 * maxusers misses; this keeps
+ * usernames tried once from crowding out the ones probed over and over. A
+ * false positive of the filter only admits a username early; it never hides
+ * a key.
+ *
+ * The counters are four bits each, eight to an int of an AtomicIntegerArray,
+ * and are updated with compare-and-set, so concurrent misses contend only
+ * when they touch the same word.
+ */
+final class UnknownUserCache {
+
+    private static final int HASHES = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int COUNTERS_PER_WORD = 8;
+    private static final int COUNTER_BITS = 4;
+    // The low three bits of each counter, which is what is left after halving
+    private static final int HALVED_MASK = 0x77777777;
+
+    private final Cache<String, Boolean> unknown;
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final int admitAfter;
+    private final long resetAfter;
+    private final AtomicLong additions = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder admissions = new LongAdder();
+
+    UnknownUserCache(long maxUsers, long ttlMillis, int admitAfter) {
+        if (maxUsers <= 0 || ttlMillis <= 0 || admitAfter <= 0 || admitAfter > MAX_COUNT) {
+            throw new IllegalArgumentException("Unknown user cache size, TTL and admission count out of range");
+        }
+        this.unknown = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        // At least 8 counters per tracked username, as a power of two
+        int size = Integer.highestOneBit((int) Math.min(maxUsers * 8, 1 << 30) - 1) << 1;
+        size = Math.max(size, 64);
+        this.counters = new AtomicIntegerArray(size / COUNTERS_PER_WORD);
+        this.mask = size - 1;
+        this.admitAfter = admitAfter;
+        this.resetAfter = maxUsers * 10;
+    }
+
+    /**
+     * @return true if the user is known to have no active keys
+     */
+    boolean contains(String key) {
+        if (unknown.getIfPresent(key) == null) {
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Counts a lookup that found no active keys, admitting the user to the
+     * exact tier once it has missed often enough.
+     */
+    void recordMiss(String key) {
+        misses.increment();
+        if (increment(key) >= admitAfter) {
+            unknown.put(key, Boolean.TRUE);
+            admissions.increment();
+        }
+    }
+
+    void invalidate(String key) {
+        unknown.invalidate(key);
+    }
+
+    void invalidateAll() {
+        unknown.invalidateAll();
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        additions.set(0);
+    }
+
+    /**
+     * Adds one to the key's smallest counters only, so a key's estimate is
+     * not inflated by the other keys it shares counters with. A counter that
+     * another miss moved past the minimum in the meantime is left alone.
+     *
+     * @return the key's estimated number of misses
+     */
+    private int increment(String key) {
+        int h = mix(key.hashCode());
+        int step = mix(h) | 1;
+        int min = MAX_COUNT;
+        for (int i = 0; i < HASHES; i++) {
+            min = Math.min(min, counter((h + i * step) & mask));
+        }
+        if (min == MAX_COUNT) {
+            return min;
+        }
+        for (int i = 0; i < HASHES; i++) {
+            incrementIf((h + i * step) & mask, min);
+        }
+        // Exactly one miss reaches the limit and halves the counters
+        if (additions.incrementAndGet() == resetAfter) {
+            for (int i = 0; i < counters.length(); i++) {
+                int word;
+                do {
+                    word = counters.get(i);
+                } while (!counters.compareAndSet(i, word, (word >>> 1) & HALVED_MASK));
+            }
+            additions.addAndGet(-(resetAfter - resetAfter / 2));
+        }
+        return min + 1;
+    }
+
+    private int counter(int index) {
+        int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+        return (counters.get(index / COUNTERS_PER_WORD) >>> shift) & MAX_COUNT;
+    }
+
+    private void incrementIf(int index, int expected) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+        int value;
+        do {
+            value = counters.get(word);
+            if (((value >>> shift) & MAX_COUNT) != expected) {
+                return;
+            }
+        } while (!counters.compareAndSet(word, value, value + (1 << shift)));
+    }
+
+    // Murmur3 finalizer, so the low bits used for indexing depend on all bits
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getAdmissionCount() {
+        return admissions.sum();
+    }
+
+    long size() {
+        return unknown.estimatedSize();
+    }
+}
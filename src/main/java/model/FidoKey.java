@@ -1,12 +1,13 @@
 package model;
 
-import crypto.CryptoUtil;
+import crypto.KeyhandleSealer;
 import lombok.extern.java.Log;
 
 import javax.json.Json;
-import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 import javax.persistence.*;
 import java.io.Serializable;
+import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Date;
@@ -48,6 +49,9 @@ public class FidoKey implements Serializable {
 
     private long fkid;
 
+    //server id where the key was registered
+    private short sid;
+
     private String appid;
 
     private String icpid;
@@ -96,6 +100,9 @@ public class FidoKey implements Serializable {
     @Transient
     private String id;
 
+    @Transient
+    private String credentialId;
+
     public FidoKey() { }
 
     public FidoKey(String keyhandle, int counter, Date createDate, String createLocation, String status, String signatureKeytype) {
@@ -121,6 +128,16 @@ public class FidoKey implements Serializable {
 
     public String getAppid() { return this.appid; }
 
+    public void setAppid(String appid) { this.appid = appid; }
+
+    public String getIcpid() { return this.icpid; }
+
+    public void setIcpid(String icpid) { this.icpid = icpid; }
+
+    public short getSid() { return this.sid; }
+
+    public void setSid(short sid) { this.sid = sid; }
+
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
     public long getAutoId() { return autoId; }
@@ -132,9 +149,10 @@ public class FidoKey implements Serializable {
     }
 
     public void setKeyhandle(String keyhandle) {
+        this.credentialId = keyhandle;
         String keyhandletoken = keyhandle;
         try {
-            keyhandletoken = CryptoUtil.encryptAES(icpid + appid + keyhandle);
+            keyhandletoken = KeyhandleSealer.getInstance().seal(icpid, appid, keyhandle);
         } catch (Exception e) {
             log.severe("Error when encrypting keyhandle: " + e.getMessage());
         }
@@ -142,6 +160,23 @@ public class FidoKey implements Serializable {
         this.keyhandle = keyhandletoken;
     }
 
+    /**
+     * @return the keyhandle in the clear, as the client sends it back as its
+     * credential id, if it was set through setKeyhandle; null for a key read
+     * back from storage
+     */
+    @Transient
+    public String getCredentialId() {
+        return credentialId;
+    }
+
+    /**
+     * Sets the keyhandle as stored, already in its encrypted form.
+     */
+    public void setKeyhandleToken(String keyhandletoken) {
+        this.keyhandle = keyhandletoken;
+    }
+
     public String getPublickey() { return publickey; }
 
     public void setPublickey(String publickey) { this.publickey = publickey; }
@@ -284,6 +319,10 @@ public class FidoKey implements Serializable {
         return this.fkid;
     }
 
+    public void setFkid(long fkid) {
+        this.fkid = fkid;
+    }
+
     public void setId(String id) {
         this.id = id;
     }
@@ -292,47 +331,61 @@ public class FidoKey implements Serializable {
         return this.username;
     }
 
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
     public String toJsonObject(){
-        JsonObjectBuilder job = Json.createObjectBuilder();
-        job.add("fkid", this.getFkid());
-        job.add("username", this.getUsername());
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = Json.createGenerator(writer)) {
+            gen.writeStartObject();
+            writeJson(gen);
+            gen.writeEnd();
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes the fields of toJsonObject into the object the generator is
+     * currently in, so callers can stream keys without building them first.
+     */
+    public void writeJson(JsonGenerator gen) {
+        gen.write("fkid", this.getFkid());
+        gen.write("username", this.getUsername());
         if (this.userid != null) {
-            job.add("userid", this.getUserid());
+            gen.write("userid", this.getUserid());
         }
         if (this.keyhandle != null) {
-            job.add("keyhandle", this.getKeyhandle());
+            gen.write("keyhandle", this.getKeyhandle());
         }
         if (this.publickey != null) {
-            job.add("publickey", this.getPublickey());
+            gen.write("publickey", this.getPublickey());
         }
         if (this.transports != null) {
-            job.add("transports", this.getTransports());
+            gen.write("transports", this.getTransports());
         }
         if (this.attsid != null) {
-            job.add("attsid", this.getAttsid());
+            gen.write("attsid", this.getAttsid());
         }
         if (this.attcid != null) {
-            job.add("attcid", this.getAttsid());
+            gen.write("attcid", this.getAttcid());
         }
         if (this.fidoVersion != null) {
-            job.add("fidoVersion", this.getFidoVersion());
+            gen.write("fidoVersion", this.getFidoVersion());
         }
         if (this.fidoProtocol != null) {
-            job.add("fidoProtocol", this.getFidoProtocol());
+            gen.write("fidoProtocol", this.getFidoProtocol());
         }
         if (this.aaguid != null) {
-            job.add("aaguid", this.getAaguid());
+            gen.write("aaguid", this.getAaguid());
         }
         if (this.registrationSettings != null) {
-            job.add("registrationSettings", this.getRegistrationSettings());
+            gen.write("registrationSettings", this.getRegistrationSettings());
         }
         if (this.registrationSettingsVersion != null) {
-            job.add("registrationSettingsVersion", this.getRegistrationSettingsVersion());
+            gen.write("registrationSettingsVersion", this.getRegistrationSettingsVersion());
         }
 
-        job.add("status", this.getStatus());
-
-        String res = job.build().toString();
-        return res;
+        gen.write("status", this.getStatus());
     }
 }
@@ -0,0 +1,33 @@
+package replication;
+
+import session.SessionStore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process transport that applies every batch straight to another
+ * SessionStore, standing in for a peer node in tests and single-JVM setups.
+ */
+public class LoopbackTransport implements ReplicationTransport {
+
+    private final SessionStore peer;
+    private final LongAdder received = new LongAdder();
+
+    public LoopbackTransport(SessionStore peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void send(ByteBuffer batch) {
+        ReplicationBatch.apply(batch, peer);
+        received.increment();
+    }
+
+    /**
+     * @return number of batches delivered to the peer
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+}
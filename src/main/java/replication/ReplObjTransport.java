@@ -0,0 +1,60 @@
+package replication;
+
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import session.SessionStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries replication batches over the appliance's replication service, the
+ * replObj the session code called directly before the ReplicationPipeline.
+ * A batch goes out as one USER_SESSION_INFO message holding its encoded
+ * bytes; on the other nodes the replication service hands that message to
+ * receive, which applies it to their SessionStore.
+ */
+@Log
+@Component("replObjTransport")
+public class ReplObjTransport implements ReplicationTransport {
+
+    @Autowired
+    SessionStore sessionStore;
+
+    @Override
+    public boolean isEnabled() {
+        return applianceCommon.replicate();
+    }
+
+    @Override
+    public void send(ByteBuffer batch) throws IOException {
+        byte[] bytes = new byte[batch.remaining()];
+        batch.get(bytes);
+        try {
+            replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO,
+                    applianceConstants.REPLICATION_OPERATION_ADD, applianceCommon.getServerId().toString(), bytes);
+        } catch (RuntimeException e) {
+            throw new IOException("Replication service rejected the batch: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Applies a batch another node sent.
+     *
+     * @param serverId - id of the node that sent it
+     * @param batch - the batch as send gave it to the replication service
+     * @return number of events applied, 0 for a batch this node sent
+     */
+    public int receive(String serverId, byte[] batch) {
+        if (applianceCommon.getServerId().toString().equals(serverId)) {
+            return 0;
+        }
+        try {
+            return ReplicationBatch.apply(ByteBuffer.wrap(batch), sessionStore);
+        } catch (IllegalArgumentException e) {
+            log.warning("Dropped replication batch from server " + serverId + ": " + e.getMessage());
+            return 0;
+        }
+    }
+}
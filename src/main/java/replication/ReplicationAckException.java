@@ -0,0 +1,16 @@
+package replication;
+
+/**
+ * Thrown, with replication.property.ackbeforerespond set, when a new session
+ * could not be confirmed on the other nodes: its replication event was
+ * dropped or not acknowledged in time. The session is withdrawn and callers
+ * answer with 503 Service Unavailable.
+ */
+public class ReplicationAckException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReplicationAckException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,114 @@
+package replication;
+
+import session.DigestKey;
+import session.SessionLimitException;
+import session.SessionStore;
+import session.UserSessionInfoCodec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wire form of a batch of replication events: a version byte and an event
+ * count, then per event an operation byte, the key as a short length and
+ * the DigestKey's bytes, and for ADD the session in UserSessionInfoCodec
+ * form.
+ */
+public final class ReplicationBatch {
+
+    public static final byte VERSION = 2;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    private ReplicationBatch() { }
+
+    public static ByteBuffer encode(Collection<ReplicationEvent> events) {
+        int length = 1 + 4;
+        for (ReplicationEvent event : events) {
+            length += 1 + 2 + DigestKey.LENGTH;
+            if (event.getOperation() == ReplicationEvent.Operation.ADD) {
+                length += UserSessionInfoCodec.encodedLength(event.getSession());
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.put(VERSION);
+        out.putInt(events.size());
+        for (ReplicationEvent event : events) {
+            boolean add = event.getOperation() == ReplicationEvent.Operation.ADD;
+            out.put(add ? ADD : REMOVE);
+            out.putShort((short) DigestKey.LENGTH);
+            event.getKey().writeTo(out);
+            if (add) {
+                UserSessionInfoCodec.encode(event.getSession(), out);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+
+    /**
+     * @throws IllegalArgumentException if the batch is of an unknown version or
+     * malformed
+     */
+    public static List<ReplicationEvent> decode(ByteBuffer in) {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported replication batch version " + version);
+            }
+            int count = in.getInt();
+            if (count < 0) {
+                throw new IllegalArgumentException("Invalid replication batch size " + count);
+            }
+            List<ReplicationEvent> events = new ArrayList<>(Math.min(count, in.remaining()));
+            for (int i = 0; i < count; i++) {
+                byte operation = in.get();
+                short keyLength = in.getShort();
+                if (keyLength != DigestKey.LENGTH) {
+                    throw new IllegalArgumentException("Invalid replication key length " + keyLength);
+                }
+                DigestKey k = DigestKey.read(in);
+                if (operation == ADD) {
+                    events.add(ReplicationEvent.add(k, UserSessionInfoCodec.decode(in)));
+                } else if (operation == REMOVE) {
+                    events.add(ReplicationEvent.remove(k));
+                } else {
+                    throw new IllegalArgumentException("Unknown replication operation " + operation);
+                }
+            }
+            return events;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Truncated replication batch", e);
+        }
+    }
+
+    /**
+     * Applies a received batch to the local session store. Sessions the local
+     * store refuses for its admission limits are skipped.
+     *
+     * @return number of events applied
+     */
+    public static int apply(ByteBuffer batch, SessionStore store) {
+        List<ReplicationEvent> events = decode(batch);
+        int applied = 0;
+        for (ReplicationEvent event : events) {
+            if (event.getOperation() == ReplicationEvent.Operation.ADD) {
+                try {
+                    store.put(event.getKey(), event.getSession());
+                } catch (SessionLimitException e) {
+                    continue;
+                }
+            } else {
+                store.consume(event.getKey());
+            }
+            applied++;
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,59 @@
+package replication;
+
+import session.DigestKey;
+import session.UserSessionInfo;
+
+/**
+ * A change to the session map, as shipped to the other nodes.
+ */
+public final class ReplicationEvent {
+
+    public enum Operation { ADD, REMOVE }
+
+    private final Operation operation;
+    private final DigestKey key;
+    private final UserSessionInfo session;
+
+    // Assigned when published
+    long seq;
+    long enqueuedNanos;
+
+    private ReplicationEvent(Operation operation, DigestKey key, UserSessionInfo session) {
+        this.operation = operation;
+        this.key = key;
+        this.session = session;
+    }
+
+    public static ReplicationEvent add(DigestKey key, UserSessionInfo session) {
+        if (key == null || session == null) {
+            throw new IllegalArgumentException("Replicated session needs a key and a session");
+        }
+        return new ReplicationEvent(Operation.ADD, key, session);
+    }
+
+    public static ReplicationEvent remove(DigestKey key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Replicated removal needs a key");
+        }
+        return new ReplicationEvent(Operation.REMOVE, key, null);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public DigestKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the session for ADD events, null for REMOVE
+     */
+    public UserSessionInfo getSession() {
+        return session;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+}
@@ -0,0 +1,324 @@
+package replication;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import session.DigestKey;
+import session.UserSessionInfo;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous replication of the session map to the other nodes, replacing
+ * the synchronous replObj call per session.
+ *
+ * Request threads publish add and remove events into a bounded queue and
+ * return at once. A single sender thread drains the queue into batches,
+ * closing a batch when it reaches batchsize events or lingermillis after its
+ * first event, keeps only the last event per key and ships the batch over the
+ * ReplicationTransport. Failed batches are retried in order, so the peers see
+ * the changes in the order they were published. When the queue is full, new
+ * events are dropped and counted rather than blocking the request.
+ *
+ * Every event gets a sequence number. With ackbeforerespond set, callers
+ * wait in awaitAck until the batch holding their last event has been sent, at
+ * the cost of up to one linger interval plus a round trip per request, and
+ * fail the request with a ReplicationAckException when the event was dropped
+ * or the wait timed out.
+ */
+@Log
+@Component("replicationPipeline")
+public class ReplicationPipeline {
+
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 5_000;
+
+    @Autowired(required = false)
+    ReplicationTransport transport;
+
+    private ArrayBlockingQueue<ReplicationEvent> queue;
+    private int batchSize;
+    private long lingerNanos;
+    private boolean ackBeforeRespond;
+    private long ackTimeoutMillis;
+
+    // Sequence numbers are handed out and queued under one lock so the queue
+    // is always in sequence order
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private long lastSeq;
+
+    private final AtomicLong ackedSeq = new AtomicLong();
+    private final Object ackMonitor = new Object();
+
+    private volatile long inFlightSinceNanos;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private volatile boolean running;
+    private Thread sender;
+
+    public ReplicationPipeline() { }
+
+    /**
+     * Creates a started pipeline on the given transport; used by tests.
+     */
+    ReplicationPipeline(ReplicationTransport transport, int queueSize, int batchSize, long lingerMillis,
+                        boolean ackBeforeRespond, long ackTimeoutMillis) {
+        this.transport = transport;
+        configure(queueSize, batchSize, lingerMillis, ackBeforeRespond, ackTimeoutMillis);
+        startSender();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (transport == null || !transport.isEnabled()) {
+            log.info("No replication transport configured, session replication disabled");
+            return;
+        }
+        configure(Integer.parseInt(Common.getProperty("replication.property.queuesize")),
+                Integer.parseInt(Common.getProperty("replication.property.batchsize")),
+                Long.parseLong(Common.getProperty("replication.property.lingermillis")),
+                Boolean.parseBoolean(Common.getProperty("replication.property.ackbeforerespond")),
+                Long.parseLong(Common.getProperty("replication.property.acktimeoutmillis")));
+        startSender();
+        log.info("Session replication started on " + transport.getClass().getSimpleName());
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (sender != null) {
+            sender.interrupt();
+        }
+    }
+
+    private void configure(int queueSize, int batchSize, long lingerMillis, boolean ackBeforeRespond, long ackTimeoutMillis) {
+        if (queueSize <= 0 || batchSize <= 0 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Replication queue size and batch size must be positive");
+        }
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.ackBeforeRespond = ackBeforeRespond;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    private void startSender() {
+        running = true;
+        sender = new Thread(this::run, "session-replication");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @return true if sessions are being replicated to other nodes
+     */
+    public boolean isEnabled() {
+        return running;
+    }
+
+    /**
+     * @return true if requests should wait for their replication to be
+     * acknowledged before responding
+     */
+    public boolean isAckBeforeRespond() {
+        return ackBeforeRespond;
+    }
+
+    /**
+     * Queues a new session for the other nodes.
+     *
+     * @return sequence number of the event, or -1 if it was not queued
+     */
+    public long add(DigestKey key, UserSessionInfo session) {
+        return publish(ReplicationEvent.add(key, session));
+    }
+
+    /**
+     * Queues the removal of a session from the other nodes.
+     *
+     * @return sequence number of the event, or -1 if it was not queued
+     */
+    public long remove(DigestKey key) {
+        return publish(ReplicationEvent.remove(key));
+    }
+
+    private long publish(ReplicationEvent event) {
+        if (!running) {
+            return -1;
+        }
+        publishLock.lock();
+        try {
+            event.seq = lastSeq + 1;
+            event.enqueuedNanos = System.nanoTime();
+            if (!queue.offer(event)) {
+                dropped.increment();
+                log.warning("Replication queue full, dropped event for key=" + event.getKey());
+                return -1;
+            }
+            lastSeq = event.seq;
+        } finally {
+            publishLock.unlock();
+        }
+        published.increment();
+        return event.seq;
+    }
+
+    /**
+     * Waits, up to acktimeoutmillis, until every event up to and including seq
+     * has been delivered. Does not wait when ackbeforerespond is off.
+     *
+     * @param seq - what add or remove returned; 0 if nothing was published
+     * @return true if delivered or not waiting, false if the event was
+     * dropped or not acknowledged in time
+     */
+    public boolean awaitAck(long seq) {
+        if (!ackBeforeRespond || seq == 0) {
+            return true;
+        }
+        if (seq < 0) {
+            log.warning("Replication event was dropped, it will not be acknowledged");
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        synchronized (ackMonitor) {
+            while (ackedSeq.get() < seq) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    log.warning("Replication not acknowledged within " + ackTimeoutMillis + "ms, seq=" + seq);
+                    return false;
+                }
+                try {
+                    ackMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of events waiting to be sent
+     */
+    public int getQueueDepth() {
+        return (queue == null) ? 0 : queue.size();
+    }
+
+    /**
+     * @return age in milliseconds of the oldest event not yet delivered, 0 if
+     * the pipeline is idle
+     */
+    public long getLagMillis() {
+        long oldest = inFlightSinceNanos;
+        if (oldest == 0 && queue != null) {
+            ReplicationEvent head = queue.peek();
+            oldest = (head == null) ? 0 : head.enqueuedNanos;
+        }
+        return (oldest == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+    }
+
+    /**
+     * @return sequence number up to which all events have been delivered
+     */
+    public long getAckedSeq() {
+        return ackedSeq.get();
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private void run() {
+        List<ReplicationEvent> drained = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                ReplicationEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                inFlightSinceNanos = first.enqueuedNanos;
+                drained.add(first);
+                long closeAt = first.enqueuedNanos + lingerNanos;
+                while (drained.size() < batchSize) {
+                    if (queue.drainTo(drained, batchSize - drained.size()) > 0) {
+                        continue;
+                    }
+                    long wait = closeAt - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    ReplicationEvent next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    drained.add(next);
+                }
+
+                send(drained);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                drained.clear();
+                inFlightSinceNanos = 0;
+            }
+        }
+    }
+
+    private void send(List<ReplicationEvent> drained) throws InterruptedException {
+        // Only the last change to each key matters to the peers
+        Map<DigestKey, ReplicationEvent> coalesced = new LinkedHashMap<>(drained.size() * 2);
+        for (ReplicationEvent event : drained) {
+            coalesced.remove(event.getKey());
+            coalesced.put(event.getKey(), event);
+        }
+        long seq = drained.get(drained.size() - 1).seq;
+
+        long backoff = RETRY_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                transport.send(ReplicationBatch.encode(coalesced.values()));
+                batches.increment();
+                ackedSeq.set(seq);
+                synchronized (ackMonitor) {
+                    ackMonitor.notifyAll();
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                log.severe("Replication batch failed, retrying in " + backoff + "ms: " + e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF_MILLIS);
+            }
+        }
+    }
+}
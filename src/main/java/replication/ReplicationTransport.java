@@ -0,0 +1,34 @@
+package replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries encoded batches of session changes to the other nodes. The receiving
+ * side hands each batch to ReplicationBatch.apply.
+ *
+ * ReplObjTransport is the Spring bean that carries them over the appliance's
+ * replication service, and applies the batches other nodes send in
+ * ReplObjTransport.receive; without an enabled transport, the
+ * ReplicationPipeline stays disabled.
+ */
+public interface ReplicationTransport {
+
+    /**
+     * Delivers one batch. Called from the single pipeline thread, so batches
+     * are sent one at a time and in order. Returning normally counts as an
+     * acknowledgement from the peers.
+     *
+     * @param batch - encoded batch, from position to limit
+     * @throws IOException if the batch could not be delivered; it is retried
+     */
+    void send(ByteBuffer batch) throws IOException;
+
+    /**
+     * @return false if this node has no peers to replicate to, which leaves
+     * the pipeline disabled
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+}
@@ -1,18 +1,25 @@
 package service;
 
 import com.google.common.base.Strings;
+import crypto.CryptoUtil;
+import crypto.KeyhandleSealer;
 import dal.Database;
+import dal.FidoKeyCache;
+import dal.PreauthKeyView;
 import fido.FidoPolicyObject;
 import fido.RegistrationPolicyOptions;
 import lombok.extern.java.Log;
 import model.FidoKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import replication.ReplicationAckException;
+import replication.ReplicationPipeline;
+import session.DigestKey;
+import session.SealedChallenges;
+import session.SessionStore;
 
 import javax.json.*;
-import java.io.UnsupportedEncodingException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -25,6 +32,18 @@ public class Fido2Preregister {
     @Autowired
     Database database;
 
+    @Autowired
+    FidoKeyCache fidoKeyCache;
+
+    @Autowired
+    SessionStore sessionStore;
+
+    @Autowired
+    SealedChallenges sealedChallenges;
+
+    @Autowired
+    ReplicationPipeline replicationPipeline;
+
     public String execute(String icpId, String username, String displayName, JsonObject options, JsonObject extensions) {
 
         if (Strings.isNullOrEmpty(username)) {
@@ -36,17 +55,17 @@ public class Fido2Preregister {
             throw new IllegalArgumentException("displayName empty or null");
         }
 
-        List<FidoKey> fks = new ArrayList<>();
+        List<PreauthKeyView> registered = new ArrayList<>();
         FidoKey fk = null;
         try {
-            fks.addAll(database.getKeysByUsernameStatus(icpId, username, "Active"));
+            registered.addAll(fidoKeyCache.getActiveKeys(icpId, username));
+            if (!registered.isEmpty()) {
+                // The policy lookup and the user handle take a whole key; only this one is loaded in full
+                fk = database.getByFkid(icpId, username, registered.get(0).getFkid());
+            }
         } catch (Exception e) {
             log.severe(e.getMessage());
         }
-
-        if(fks.size() > 0) {
-            fk = fks.get(0);
-        }
         //Gather useful information
         FidoPolicyObject fidoPolicy = getpolicybean.getPolicyByDidUsername(icpId, username, fk);
         if(fidoPolicy == null){
@@ -58,7 +77,7 @@ public class Fido2Preregister {
         RegistrationPolicyOptions regOp = fidoPolicy.getRegistrationOptions();
         String userId ;
         if(fk == null) {
-            userId = U2FUtility.getRandom(SKFSConstants.DEFAULT_NUM_USERID_BYTES);
+            userId = CryptoUtil.getRandom(SKFSConstants.DEFAULT_NUM_USERID_BYTES);
         }else{
             userId = fk.getUserid();
         }
@@ -69,21 +88,18 @@ public class Fido2Preregister {
         //if not supplied.
         //Since we cannot guess the effective domain, should the logic be use rpid if supplied, otherwise use appid(?).
         String rpname = fidoPolicy.getRpOptions().getName();
-        String nonceHash = null;
 
         //Create response object
         JsonObjectBuilder returnObjectBuilder = Json.createObjectBuilder();
         try{
-            nonceHash = SKFSCommon.getDigest(challenge, "SHA-256");
             returnObjectBuilder
                     .add(SKFSConstants.FIDO2_PREREG_ATTR_RP, generatePublicKeyCredentialRpEntity(fidoPolicy.getRpOptions()))
                     .add(SKFSConstants.FIDO2_PREREG_ATTR_USER, generatePublicKeyCredentialUserEntity(regOp,
                             icpId, username, userId, displayName, null)) //TODO handle user icon if it exists
-                    .add(SKFSConstants.FIDO2_PREREG_ATTR_CHALLENGE, challenge)
                     .add(SKFSConstants.FIDO2_PREREG_ATTR_KEYPARAMS, generatePublicKeyCredentialParametersArray(fidoPolicy.getAlgorithmsOptions()))
-                    .add(SKFSConstants.FIDO2_PREREG_ATTR_EXCLUDECRED, generateExcludeCredentialsList(regOp, icpId, username, fks));
+                    .add(SKFSConstants.FIDO2_PREREG_ATTR_EXCLUDECRED, generateExcludeCredentialsList(icpId, regOp, registered));
         }
-        catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException | SKFEException ex) {
+        catch (SKFEException ex) {
             SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0003", ex.getLocalizedMessage());
             throw new SKIllegalArgumentException(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0003") + ex.getLocalizedMessage()));
         }
@@ -105,8 +121,6 @@ public class Fido2Preregister {
             returnObjectBuilder.add(SKFSConstants.FIDO2_PREAUTH_ATTR_EXTENSIONS, extensionsJson);
         }
 
-        JsonObject returnObject = returnObjectBuilder.build();
-
         //Store registration challenge info (TODO change UserSessionInfo to builder pattern)
         String userVerificationReq = (authSelect != null) ? authSelect.getString(SKFSConstants.FIDO2_ATTR_USERVERIFICATION, null) : null;
         UserSessionInfo session = new UserSessionInfo(username, challenge,
@@ -119,17 +133,23 @@ public class Fido2Preregister {
         session.setuserVerificationReq(userVerificationReq);
         session.setAttestationPreferance(attestPref);
         session.setPolicyMapKey(fidoPolicy.getPolicyMapKey());
-        skceMaps.getMapObj().put(SKFSConstants.MAP_USER_SESSION_INFO, nonceHash, session);
-        session.setMapkey(nonceHash);
-
-        //Replicate stored registration info
-        try {
-            if (applianceCommon.replicate()) {
-                replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
+        session.setIcpId(icpId);
+
+        if (sealedChallenges.isEnabled()) {
+            //Stateless mode, the session travels with the client as the challenge itself
+            challenge = sealedChallenges.seal(icpId, session);
+        } else {
+            DigestKey nonceHash = DigestKey.sha256(challenge);
+            sessionStore.put(nonceHash, session);
+
+            //Replicate stored registration info
+            if (!replicationPipeline.awaitAck(replicationPipeline.add(nonceHash, session))) {
+                sessionStore.consume(nonceHash);
+                throw new ReplicationAckException("Registration challenge was not replicated");
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e.getLocalizedMessage());
         }
+        returnObjectBuilder.add(SKFSConstants.FIDO2_PREREG_ATTR_CHALLENGE, challenge);
+        JsonObject returnObject = returnObjectBuilder.build();
 
         SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, SKFSCommon.getMessageProperty("FIDO-MSG-0021"), " username=" + username);
 
@@ -197,7 +217,7 @@ public class Fido2Preregister {
     private String generateChallenge(AlgorithmsPolicyOptions cryptoOp){
 
         int numBytes =  SKFSConstants.DEFAULT_NUM_CHALLENGE_BYTES;
-        return U2FUtility.getRandom(numBytes);
+        return CryptoUtil.getRandom(numBytes);
     }
 
     //TODO verify order is maintained
@@ -237,19 +257,21 @@ public class Fido2Preregister {
         return publicKeyBuilder.build();
     }
 
-    private JsonArray generateExcludeCredentialsList(RegistrationPolicyOptions regOp,
-                                                     Long did, String username, List<FidoKeys> fks) throws SKFEException{
+    private JsonArray generateExcludeCredentialsList(String icpId, RegistrationPolicyOptions regOp,
+                                                     List<PreauthKeyView> registered) {
         JsonArrayBuilder excludeCredentialsBuilder = Json.createArrayBuilder();
 
         if(regOp.getExcludeCredentials().equalsIgnoreCase(SKFSConstants.POLICY_CONST_ENABLED)){
-//            Collection<FidoKeys> fks = getkeybean.getByUsernameStatus(did, username, "Active");
-            for(FidoKeys fk: fks){
+            for(PreauthKeyView fk: registered){
                 if(fk.getFidoProtocol().equals(SKFSConstants.FIDO_PROTOCOL_VERSION_2_0)){
+                    String credentialId = decryptKH(icpId, fk);
+                    if (credentialId == null) {
+                        continue;
+                    }
+                    // A PublicKeyCredentialDescriptor is type, id and transports; it has no alg
                     JsonObjectBuilder excludedCredential = Json.createObjectBuilder()
                             .add(SKFSConstants.FIDO2_ATTR_TYPE, "public-key") //TODO fix this hardcoded assumption
-                            .add(SKFSConstants.FIDO2_ATTR_ID, decryptKH(fk.getKeyhandle()))
-                            .add(SKFSConstants.FIDO2_ATTR_ALG, RegistrationSettings
-                                    .parse(fk.getRegistrationSettings(), fk.getRegistrationSettingsVersion()).getAlg());
+                            .add(SKFSConstants.FIDO2_ATTR_ID, credentialId);
 
                     //TODO transports are a hint that not all browsers support atm.
 //                    if(fk.getTransports() != null){
@@ -360,9 +382,18 @@ public class Fido2Preregister {
         return extensionJsonBuilder.build();
     }
 
-    //TODO actually decrypt keyhandle if it is encrypted
-    private String decryptKH(String keyhandle){
-        return keyhandle;
+    // FIDO2 keys stored before keyhandle sealing hold the credential id as it is;
+    // null when the sealed token does not open, so it is never sent as an id
+    private String decryptKH(String icpId, PreauthKeyView fk){
+        if (!KeyhandleSealer.isSealed(fk.getKeyhandle())) {
+            return fk.getKeyhandle();
+        }
+        try {
+            return KeyhandleSealer.getInstance().unseal(icpId, fk.getAppid(), fk.getKeyhandle());
+        } catch (GeneralSecurityException e) {
+            log.severe("Could not open keyhandle of key " + fk.getFkid() + ": " + e.getMessage());
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,108 @@
+package session;
+
+import crypto.CryptoPrimitives;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Key of a session in the SessionStore: the SHA-256 of the keyhandle or
+ * challenge the session is for.
+ *
+ * The 32 bytes are held as four longs, so equals is four comparisons and
+ * hashCode is the first word, which a digest already spreads evenly. No text
+ * is made for a key unless toString is called; that text is the unpadded
+ * base64url Common.getDigest gives, which is how keys used to be stored.
+ */
+public final class DigestKey {
+
+    public static final int LENGTH = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private DigestKey(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * @return the key for the SHA-256 of the UTF-8 text
+     */
+    public static DigestKey sha256(String text) {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static DigestKey sha256(byte[] data) {
+        try {
+            return of(CryptoPrimitives.digest("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the digest is not 32 bytes
+     */
+    public static DigestKey of(byte[] digest) {
+        if (digest.length != LENGTH) {
+            throw new IllegalArgumentException("Session key digest must be " + LENGTH + " bytes, not " + digest.length);
+        }
+        return read(ByteBuffer.wrap(digest));
+    }
+
+    /**
+     * @return the key written by writeTo at the buffer's position, advancing
+     * it
+     */
+    public static DigestKey read(ByteBuffer in) {
+        return new DigestKey(in.getLong(), in.getLong(), in.getLong(), in.getLong());
+    }
+
+    /**
+     * @param text - a key as toString gives it
+     * @throws IllegalArgumentException if the text is not the base64url of 32
+     * bytes
+     */
+    public static DigestKey fromString(String text) {
+        return of(Base64.getUrlDecoder().decode(text));
+    }
+
+    public void writeTo(ByteBuffer out) {
+        out.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer bytes = ByteBuffer.allocate(LENGTH);
+        writeTo(bytes);
+        return bytes.array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DigestKey)) {
+            return false;
+        }
+        DigestKey other = (DigestKey) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(toBytes());
+    }
+}
@@ -0,0 +1,233 @@
+package session;
+
+import common.Common;
+import crypto.ChallengeRandom;
+import crypto.ConfiguredKeys;
+import crypto.CryptoPrimitives;
+import lombok.extern.java.Log;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stateless challenge mode. Instead of keeping a UserSessionInfo in the
+ * SessionStore (and replicating it to every peer), the session is encoded,
+ * sealed with AES-GCM and handed out as the challenge itself. The client signs
+ * and echoes the challenge back in its clientData, where register and
+ * authenticate unseal it again.
+ *
+ * Token layout, base64url without padding: version byte, 12 byte GCM nonce,
+ * then the encrypted UserSessionInfoCodec bytes and the 16 byte tag. The
+ * version byte and the tenant (icpId) the token was sealed for are bound in as
+ * associated data, so a token only opens for the tenant it was issued to.
+ *
+ * A token is accepted only within the session timeout of its creation and only
+ * once: a time-bucketed replay cache remembers the nonce of every token used in
+ * the current and previous window. The replay cache is local to this node, so
+ * all nodes behind a load balancer should share the seal key and route a
+ * ceremony's second leg with the same affinity as its first. The seal key,
+ * session.property.sealkey, has no default; see ConfiguredKeys for its form.
+ */
+@Log
+@Component("sealedChallenges")
+public class SealedChallenges {
+
+    private static final byte TOKEN_VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    // Allowed difference between the clocks of the node that sealed a token and the one opening it
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int REPLAY_BUCKETS = 3;
+
+    private boolean enabled;
+    private SecretKey sealKey;
+    private long timeoutMillis;
+
+    private final AtomicReferenceArray<ReplayBucket> replayBuckets = new AtomicReferenceArray<>(REPLAY_BUCKETS);
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+
+    public SealedChallenges() { }
+
+    SealedChallenges(byte[] key, long timeoutMillis) {
+        configure(key, timeoutMillis);
+        this.enabled = true;
+    }
+
+    @PostConstruct
+    public void init() {
+        enabled = Boolean.parseBoolean(Common.getProperty("session.property.stateless"));
+        if (enabled) {
+            // No default key: a key anyone can read would let them forge sessions
+            configure(ConfiguredKeys.aes("session.property.sealkey"),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(Common.getProperty("session.property.timeout"))));
+            log.info("Stateless challenge mode enabled");
+        }
+    }
+
+    private void configure(byte[] key, long timeoutMillis) {
+        this.sealKey = new SecretKeySpec(key, "AES");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return true if challenges are sealed instead of stored server side
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Seals the session into a token to be used as the challenge; the session
+     * is marked as the tenant's.
+     */
+    public String seal(String icpId, UserSessionInfo session) {
+        session.setIcpId(icpId);
+        int plainLength = UserSessionInfoCodec.encodedLength(session);
+        ByteBuffer plain = ByteBuffer.allocate(plainLength);
+        UserSessionInfoCodec.encode(session, plain);
+
+        byte[] token = new byte[1 + NONCE_LENGTH + plainLength + TAG_BITS / 8];
+        token[0] = TOKEN_VERSION;
+        ChallengeRandom.nextBytes(token, 1, NONCE_LENGTH);
+
+        try {
+            Cipher cipher = CryptoPrimitives.cipher(ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_BITS, token, 1, NONCE_LENGTH));
+            cipher.updateAAD(token, 0, 1);
+            cipher.updateAAD(icpId.getBytes(StandardCharsets.UTF_8));
+            cipher.doFinal(plain.array(), 0, plainLength, token, 1 + NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not seal challenge: " + e.getMessage(), e);
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * Opens a token produced by seal() and marks it used. The returned
+     * session's nonce is the token itself, since that is what the client was
+     * asked to sign.
+     *
+     * @param icpId - tenant the request is for
+     * @return the session, or null if the token is malformed, forged, sealed
+     * for another tenant, expired or has been used before
+     */
+    public UserSessionInfo unseal(String icpId, String challenge) {
+        byte[] token;
+        try {
+            token = Base64.getUrlDecoder().decode(challenge);
+        } catch (IllegalArgumentException e) {
+            rejected.increment();
+            return null;
+        }
+        if (token.length < 1 + NONCE_LENGTH + TAG_BITS / 8 || token[0] != TOKEN_VERSION) {
+            rejected.increment();
+            return null;
+        }
+
+        UserSessionInfo session;
+        try {
+            Cipher cipher = CryptoPrimitives.cipher(ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, sealKey, new GCMParameterSpec(TAG_BITS, token, 1, NONCE_LENGTH));
+            cipher.updateAAD(token, 0, 1);
+            cipher.updateAAD(icpId.getBytes(StandardCharsets.UTF_8));
+            byte[] plain = cipher.doFinal(token, 1 + NONCE_LENGTH, token.length - 1 - NONCE_LENGTH);
+            session = UserSessionInfoCodec.decode(ByteBuffer.wrap(plain));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            log.warning("Rejected sealed challenge: " + e.getMessage());
+            rejected.increment();
+            return null;
+        }
+
+        if (!icpId.equals(session.getIcpId())) {
+            rejected.increment();
+            return null;
+        }
+
+        long created = session.getCreationtime();
+        long age = System.currentTimeMillis() - created;
+        if (!session.hasCreationdate() || age > timeoutMillis || age < -CLOCK_SKEW_MILLIS) {
+            rejected.increment();
+            return null;
+        }
+
+        if (!markUsed(ByteBuffer.wrap(token, 1, NONCE_LENGTH).getLong(), created)) {
+            log.warning("Replayed sealed challenge for username=" + session.getUsername());
+            replays.increment();
+            return null;
+        }
+
+        session.setNonce(challenge);
+        return session;
+    }
+
+    /**
+     * @return number of tokens rejected as malformed, forged or expired
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of tokens rejected because they had already been used
+     */
+    public long getReplayCount() {
+        return replays.sum();
+    }
+
+    /**
+     * Records a token as used in the bucket for its creation window. Buckets
+     * are one timeout wide; since older tokens are rejected before getting
+     * here, only the current and previous windows are live and the third
+     * bucket is recycled as time moves on.
+     *
+     * @return false if the token was already recorded
+     */
+    private boolean markUsed(long tokenId, long createdMillis) {
+        long window = Math.floorDiv(createdMillis, timeoutMillis);
+        int index = (int) Math.floorMod(window, (long) REPLAY_BUCKETS);
+
+        ReplayBucket bucket = replayBuckets.get(index);
+        while (bucket == null || bucket.window != window) {
+            if (bucket != null && bucket.window > window) {
+                // Slot already recycled for a later window; the token is too old
+                return false;
+            }
+            ReplayBucket fresh = new ReplayBucket(window);
+            if (replayBuckets.compareAndSet(index, bucket, fresh)) {
+                bucket = fresh;
+            } else {
+                bucket = replayBuckets.get(index);
+            }
+        }
+        return bucket.used.add(tokenId);
+    }
+
+    private static final class ReplayBucket {
+
+        private final long window;
+        private final Set<Long> used = ConcurrentHashMap.newKeySet();
+
+        private ReplayBucket(long window) {
+            this.window = window;
+        }
+    }
+}
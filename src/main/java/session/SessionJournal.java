@@ -0,0 +1,392 @@
+package session;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of SessionStore changes, so outstanding challenges
+ * survive a restart of the node.
+ *
+ * The journal is a sequence of fixed size, memory-mapped segment files. Every
+ * put, consume and expiry is appended to the active segment as one record:
+ *
+ *   int length | byte type | key | [long expiresAt | encoded session] | int crc
+ *
+ * where length counts everything after itself, the key is a short length and
+ * the DigestKey's bytes, expiry and session are present for puts only, the
+ * session uses UserSessionInfoCodec and the CRC32 covers everything between
+ * length and crc. A zero length marks the end of a segment. Appending is a copy into the
+ * mapping under a lock; no request waits for the disk. A background
+ * task forces dirty segments every flushmillis (group commit), so what a crash
+ * of the process leaves behind is whatever is in the page cache, and a crash
+ * of the machine loses at most the last flush interval.
+ *
+ * On startup the segments are replayed in order; the last record for each key
+ * decides, and sessions whose expiry has passed are dropped. Torn records are
+ * detected by their CRC and end the replay of that segment.
+ *
+ * Since no session outlives the session timeout, every record in a closed
+ * segment is dead once the latest expiry written to it has passed. Compaction
+ * therefore never copies live records forward: the background task deletes
+ * closed segments, oldest first, as soon as they hold nothing but expired
+ * sessions.
+ */
+@Log
+@Component("sessionJournal")
+public class SessionJournal implements SessionStore.Listener {
+
+    private static final byte PUT = 1;
+    private static final byte CONSUME = 2;
+    private static final byte EXPIRE = 3;
+
+    private static final String SEGMENT_PREFIX = "session-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    // length, type, key length and crc
+    private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4;
+
+    @Autowired
+    SessionStore sessionStore;
+
+    private Path directory;
+    private int segmentBytes;
+
+    // Guarded by this
+    private Segment active;
+    private final List<Segment> closed = new ArrayList<>();
+    private final CRC32 appendCrc = new CRC32();
+
+    private ScheduledExecutorService flusher;
+
+    public SessionJournal() { }
+
+    /**
+     * Creates a journal on the given directory without the background flusher;
+     * used by tests.
+     */
+    SessionJournal(SessionStore sessionStore, Path directory, int segmentBytes) {
+        this.sessionStore = sessionStore;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!Boolean.parseBoolean(Common.getProperty("session.property.journal.enabled"))) {
+            return;
+        }
+        directory = Paths.get(Common.getProperty("session.property.journal.dir"));
+        segmentBytes = Integer.parseInt(Common.getProperty("session.property.journal.segmentbytes"));
+        long flushMillis = Long.parseLong(Common.getProperty("session.property.journal.flushmillis"));
+
+        open();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        log.info("Session journal started in " + directory + ", flush=" + flushMillis + "ms");
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdownNow();
+        sessionStore.setListener(null);
+        flush();
+    }
+
+    /**
+     * Replays the existing segments into the store, starts a fresh segment and
+     * begins recording.
+     */
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> segments = listSegments();
+        long restored = replay(segments);
+
+        synchronized (this) {
+            long seq = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = Segment.create(directory.resolve(SEGMENT_PREFIX + seq + SEGMENT_SUFFIX), seq, segmentBytes);
+        }
+        sessionStore.setListener(this);
+        log.info("Restored " + restored + " sessions from " + segments.size() + " journal segments");
+    }
+
+    @Override
+    public void onPut(DigestKey key, UserSessionInfo session, long expiresAtMillis) {
+        append(PUT, key, session, expiresAtMillis);
+    }
+
+    @Override
+    public void onConsume(DigestKey key) {
+        append(CONSUME, key, null, 0);
+    }
+
+    @Override
+    public void onExpire(DigestKey key) {
+        append(EXPIRE, key, null, 0);
+    }
+
+    private synchronized void append(byte type, DigestKey key, UserSessionInfo session, long expiresAtMillis) {
+        if (active == null) {
+            return;
+        }
+        int bodyLength = 1 + 2 + DigestKey.LENGTH
+                + ((type == PUT) ? 8 + UserSessionInfoCodec.encodedLength(session) : 0);
+        int recordLength = 4 + bodyLength + 4;
+        if (recordLength + 4 > segmentBytes) {
+            log.severe("Session record too large for the journal, key=" + key);
+            return;
+        }
+
+        try {
+            if (active.buffer.remaining() < recordLength + 4) {
+                roll();
+            }
+        } catch (IOException e) {
+            log.severe("Could not start a new journal segment: " + e.getMessage());
+            return;
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.put(type);
+        buffer.putShort((short) DigestKey.LENGTH);
+        key.writeTo(buffer);
+        if (type == PUT) {
+            buffer.putLong(expiresAtMillis);
+            UserSessionInfoCodec.encode(session, buffer);
+            active.maxExpiresAt = Math.max(active.maxExpiresAt, expiresAtMillis);
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 4).limit(start + 4 + bodyLength);
+        appendCrc.reset();
+        appendCrc.update(body);
+        buffer.putInt((int) appendCrc.getValue());
+
+        // Length last, so a reader never sees a complete length before its record
+        buffer.putInt(start, recordLength - 4);
+        active.dirty = true;
+    }
+
+    private void roll() throws IOException {
+        closed.add(active);
+        long seq = active.seq + 1;
+        active = Segment.create(directory.resolve(SEGMENT_PREFIX + seq + SEGMENT_SUFFIX), seq, segmentBytes);
+    }
+
+    /**
+     * Group commit: forces every segment written since the last flush, then
+     * deletes closed segments that only hold expired sessions.
+     */
+    void flush() {
+        flush(System.currentTimeMillis());
+    }
+
+    /**
+     * @param nowMillis - wall clock time to judge expiry by
+     */
+    void flush(long nowMillis) {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            if (active != null && active.dirty) {
+                dirty.add(active);
+            }
+            for (Segment segment : closed) {
+                if (segment.dirty) {
+                    dirty.add(segment);
+                }
+            }
+        }
+        try {
+            for (Segment segment : dirty) {
+                // A record appended while forcing stays dirty for the next round
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+            compact(nowMillis);
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the periodic flusher
+            log.severe("Error while flushing session journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes closed segments oldest first. A segment is only dropped once
+     * every older one is gone, so a consume record never disappears while the
+     * put it cancels could still be replayed.
+     */
+    private void compact(long now) {
+        List<Segment> reclaimable = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Segment> it = closed.iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (segment.dirty || segment.maxExpiresAt >= now) {
+                    break;
+                }
+                reclaimable.add(segment);
+                it.remove();
+            }
+        }
+        for (Segment segment : reclaimable) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                log.warning("Could not delete journal segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private long replay(TreeMap<Long, Path> segments) throws IOException {
+        Map<DigestKey, Pending> live = new HashMap<>();
+        for (Map.Entry<Long, Path> file : segments.entrySet()) {
+            Segment segment = Segment.map(file.getValue(), file.getKey());
+            readSegment(segment, live);
+            synchronized (this) {
+                closed.add(segment);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long restored = 0;
+        for (Map.Entry<DigestKey, Pending> entry : live.entrySet()) {
+            Pending pending = entry.getValue();
+            if (pending.expiresAt <= now) {
+                continue;
+            }
+            try {
+                UserSessionInfo session = UserSessionInfoCodec.decode(ByteBuffer.wrap(pending.session));
+                sessionStore.restore(entry.getKey(), session, pending.expiresAt - now);
+                restored++;
+            } catch (IllegalArgumentException e) {
+                log.warning("Skipping unreadable session in journal: " + e.getMessage());
+            }
+        }
+        return restored;
+    }
+
+    private void readSegment(Segment segment, Map<DigestKey, Pending> live) {
+        ByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < RECORD_OVERHEAD - 4 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(start + 4).limit(start + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(start + length)) {
+                log.warning("Torn record in journal segment " + segment.path + " at " + start);
+                break;
+            }
+
+            byte type = buffer.get();
+            if (buffer.getShort() != DigestKey.LENGTH) {
+                log.warning("Skipping journal record with an unreadable key in " + segment.path + " at " + start);
+                buffer.position(start + 4 + length);
+                continue;
+            }
+            DigestKey key = DigestKey.read(buffer);
+
+            if (type == PUT) {
+                long expiresAt = buffer.getLong();
+                byte[] session = new byte[start + length - buffer.position()];
+                buffer.get(session);
+                live.put(key, new Pending(expiresAt, session));
+                segment.maxExpiresAt = Math.max(segment.maxExpiresAt, expiresAt);
+            } else {
+                live.remove(key);
+            }
+            buffer.position(start + 4 + length);
+        }
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    log.warning("Ignoring unexpected file in journal directory: " + name);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static final class Pending {
+
+        private final long expiresAt;
+        private final byte[] session;
+
+        private Pending(long expiresAt, byte[] session) {
+            this.expiresAt = expiresAt;
+            this.session = session;
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final long seq;
+        private final MappedByteBuffer buffer;
+        private long maxExpiresAt;
+        private volatile boolean dirty;
+
+        private Segment(Path path, long seq, MappedByteBuffer buffer) {
+            this.path = path;
+            this.seq = seq;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long seq, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(path, seq, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        static Segment map(Path path, long seq) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Segment(path, seq, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package session;
+
+/**
+ * Thrown when a new session would exceed the outstanding challenge limit of
+ * its tenant or the memory budget of the session store. Callers answer with
+ * 429 Too Many Requests.
+ */
+public class SessionLimitException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionLimitException(String message) {
+        super(message);
+    }
+}
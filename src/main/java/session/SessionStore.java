@@ -0,0 +1,674 @@
+package session;
+
+import common.Common;
+import lombok.extern.java.Log;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory store for outstanding registration and authentication challenges
+ * (the sessions formerly kept under MAP_USER_SESSION_INFO).
+ *
+ * Expiry is driven by a hierarchical timing wheel on the monotonic clock: three
+ * levels of 64 slots each, the lowest level advancing one slot per tick. Each
+ * session sits in exactly one slot of a doubly linked bucket, so insert, lookup,
+ * consume and expiry are O(1) and no full-map sweep is ever needed.
+ *
+ * A session is single use: whoever wins the compare-and-set on its state in
+ * consume() owns it, and every other consume, lookup or expiry of the same
+ * entry sees it as gone. Consumed entries stay in their wheel slot until the
+ * wheel passes over it, so consume never takes the wheel lock.
+ *
+ * Admission is bounded three ways. Each user (per tenant) may hold at most
+ * maxperuser outstanding challenges; a new one evicts that user's oldest. The
+ * sessions one request stores through putAll count as a single challenge and
+ * are evicted together. Each icpId may hold at most maxpericp, and all
+ * sessions together at most maxbytes in their encoded form; beyond either,
+ * put() refuses the session with a SessionLimitException so the caller can
+ * shed load.
+ *
+ * Sessions are keyed by the DigestKey of their keyhandle or challenge.
+ *
+ * Changes can be observed through a Listener, which is how the SessionJournal
+ * keeps sessions across restarts.
+ */
+@Log
+@Component("sessionStore")
+public class SessionStore {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 3;
+    private static final long WHEEL_SPAN = 1L << (WHEEL_BITS * LEVELS);
+
+    // Smoothing factor for the eviction rate, applied once per tick
+    private static final double RATE_ALPHA = 0.2;
+
+    private final ConcurrentHashMap<DigestKey, Entry> sessions = new ConcurrentHashMap<>();
+
+    // Bucket heads, guarded by wheelLock together with processedTick
+    private final Entry[][] wheel = new Entry[LEVELS][WHEEL_SIZE];
+    private final Object wheelLock = new Object();
+    private long processedTick;
+
+    private final LongAdder expiredCount = new LongAdder();
+    private volatile double evictionRate;
+
+    // Admission limits and the accounting behind them
+    private int maxPerUser = Integer.MAX_VALUE;
+    private int maxPerIcp = Integer.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private final ConcurrentHashMap<String, ArrayDeque<Entry>> userEntries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> icpCounts = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final LongAdder userEvictions = new LongAdder();
+    private final LongAdder icpRejections = new LongAdder();
+    private final LongAdder memoryRejections = new LongAdder();
+
+    private long startNanos;
+    private long tickNanos;
+    private long tickMillis;
+    private long timeoutMillis;
+    private long timeoutTicks;
+
+    private volatile Listener listener;
+
+    private ScheduledExecutorService ticker;
+
+    public SessionStore() { }
+
+    /**
+     * Creates a store that is advanced by the caller instead of a background
+     * ticker; used by tests, including those standing in for a peer node.
+     *
+     * @param timeoutMillis - lifetime of a session
+     * @param tickMillis - resolution of the timing wheel
+     */
+    public SessionStore(long timeoutMillis, long tickMillis) {
+        configure(timeoutMillis, tickMillis);
+    }
+
+    @PostConstruct
+    public void start() {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(Common.getProperty("session.property.timeout")));
+        long tickMillis = Long.parseLong(Common.getProperty("session.property.tickmillis"));
+        configure(timeoutMillis, tickMillis);
+        setLimits(Integer.parseInt(Common.getProperty("session.property.maxperuser")),
+                Integer.parseInt(Common.getProperty("session.property.maxpericp")),
+                Long.parseLong(Common.getProperty("session.property.maxbytes")));
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        log.info("Session store started, timeout=" + timeoutMillis + "ms, tick=" + tickMillis + "ms");
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    private void configure(long timeoutMillis, long tickMillis) {
+        if (timeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Session timeout and tick must be positive");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.tickMillis = tickMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutTicks = (timeoutMillis + tickMillis - 1) / tickMillis;
+        this.startNanos = System.nanoTime();
+    }
+
+    void setLimits(int maxPerUser, int maxPerIcp, long maxBytes) {
+        if (maxPerUser <= 0 || maxPerIcp <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Session limits must be positive");
+        }
+        this.maxPerUser = maxPerUser;
+        this.maxPerIcp = maxPerIcp;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Stores a session under the given map key, replacing any previous session
+     * with that key. The session expires after the configured timeout. If the
+     * user already holds the maximum number of sessions, their oldest is
+     * evicted.
+     *
+     * @throws SessionLimitException if the session's tenant is at its limit or
+     * the store is out of memory budget
+     */
+    public void put(DigestKey key, UserSessionInfo session) {
+        int weight = UserSessionInfoCodec.encodedLength(session);
+        admit(session.getIcpId(), weight, true);
+        Entry entry = new Entry(key, session, currentTick() + timeoutTicks, weight, null);
+        insert(entry);
+        trackUser(entry.userKey, Collections.singletonList(entry));
+
+        Listener l = listener;
+        if (l != null) {
+            l.onPut(key, session, System.currentTimeMillis() + timeoutMillis);
+        }
+    }
+
+    /**
+     * Stores the sessions of one request, such as a U2F preauthentication
+     * that issues a challenge per key handle. Either all of them are admitted
+     * or none is, and together they count once against maxperuser, so a user
+     * with many keys does not evict the request's own sessions.
+     *
+     * @throws SessionLimitException if any of the sessions would take its
+     * tenant past its limit or the store past its memory budget; none is
+     * stored then
+     */
+    public void putAll(Map<DigestKey, UserSessionInfo> request) {
+        long deadline = currentTick() + timeoutTicks;
+        Object unit = new Object();
+        List<Entry> entries = new ArrayList<>(request.size());
+        try {
+            for (Map.Entry<DigestKey, UserSessionInfo> e : request.entrySet()) {
+                int weight = UserSessionInfoCodec.encodedLength(e.getValue());
+                admit(e.getValue().getIcpId(), weight, true);
+                entries.add(new Entry(e.getKey(), e.getValue(), deadline, weight, unit));
+            }
+        } catch (SessionLimitException e) {
+            for (Entry entry : entries) {
+                releaseCounts(entry);
+            }
+            throw e;
+        }
+
+        Map<String, List<Entry>> byUser = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            insert(entry);
+            if (entry.userKey != null) {
+                byUser.computeIfAbsent(entry.userKey, k -> new ArrayList<>()).add(entry);
+            }
+        }
+        for (Map.Entry<String, List<Entry>> user : byUser.entrySet()) {
+            trackUser(user.getKey(), user.getValue());
+        }
+
+        Listener l = listener;
+        if (l != null) {
+            long expiresAtMillis = System.currentTimeMillis() + timeoutMillis;
+            for (Entry entry : entries) {
+                l.onPut(entry.key, entry.session, expiresAtMillis);
+            }
+        }
+    }
+
+    /**
+     * Puts back a session recovered after a restart with whatever is left of
+     * its lifetime. The listener is not told about it.
+     */
+    void restore(DigestKey key, UserSessionInfo session, long remainingMillis) {
+        int weight = UserSessionInfoCodec.encodedLength(session);
+        admit(session.getIcpId(), weight, false);
+        Entry entry = new Entry(key, session, currentTick() + (remainingMillis + tickMillis - 1) / tickMillis, weight, null);
+        insert(entry);
+        trackUser(entry.userKey, Collections.singletonList(entry));
+    }
+
+    /**
+     * Reserves room for a session with its tenant and in the memory budget.
+     *
+     * @param enforce - false to account for the session even over the limits
+     */
+    private void admit(String icpId, int weight, boolean enforce) {
+        AtomicInteger icpCount = null;
+        if (icpId != null) {
+            icpCount = icpCounts.computeIfAbsent(icpId, k -> new AtomicInteger());
+            int count;
+            do {
+                count = icpCount.get();
+                if (enforce && count >= maxPerIcp) {
+                    icpRejections.increment();
+                    throw new SessionLimitException("Too many outstanding challenges for icpId " + icpId);
+                }
+            } while (!icpCount.compareAndSet(count, count + 1));
+        }
+        if (usedBytes.addAndGet(weight) > maxBytes && enforce) {
+            usedBytes.addAndGet(-weight);
+            if (icpCount != null) {
+                icpCount.decrementAndGet();
+            }
+            memoryRejections.increment();
+            throw new SessionLimitException("Session store memory budget exhausted");
+        }
+    }
+
+    private void insert(Entry entry) {
+        Entry previous = sessions.put(entry.key, entry);
+
+        synchronized (wheelLock) {
+            if (previous != null) {
+                if (previous.claim(Entry.REPLACED)) {
+                    release(previous);
+                }
+                unlink(previous);
+            }
+            if (entry.isLive()) {
+                if (entry.deadline <= processedTick) {
+                    entry.deadline = processedTick + 1;
+                }
+                schedule(entry, processedTick);
+            }
+        }
+    }
+
+    /**
+     * Adds one request's entries to their user's sessions, oldest first, and
+     * evicts the oldest requests beyond maxperuser. Entries of a request are
+     * added together, so each request is one run in the queue. Evicted
+     * sessions are gone just as if they had expired.
+     */
+    private void trackUser(String userKey, List<Entry> entries) {
+        if (userKey == null) {
+            return;
+        }
+        List<Entry> evicted = new ArrayList<>(1);
+        userEntries.compute(userKey, (k, queue) -> {
+            for (Entry entry : entries) {
+                // Already consumed, and released, before it got here
+                if (entry.isLive()) {
+                    if (queue == null) {
+                        queue = new ArrayDeque<>();
+                    }
+                    queue.addLast(entry);
+                }
+            }
+            if (queue == null) {
+                return null;
+            }
+            for (int units = units(queue); units > maxPerUser; units--) {
+                Object oldestUnit = queue.peekFirst().unit;
+                while (!queue.isEmpty() && queue.peekFirst().unit == oldestUnit) {
+                    Entry oldest = queue.pollFirst();
+                    if (oldest.claim(Entry.EVICTED)) {
+                        evicted.add(oldest);
+                    }
+                }
+            }
+            return queue;
+        });
+
+        Listener l = listener;
+        for (Entry oldest : evicted) {
+            sessions.remove(oldest.key, oldest);
+            releaseCounts(oldest);
+            userEvictions.increment();
+            if (l != null) {
+                l.onExpire(oldest.key);
+            }
+        }
+    }
+
+    /**
+     * @return number of requests with sessions in the queue
+     */
+    private static int units(ArrayDeque<Entry> queue) {
+        int units = 0;
+        Object last = null;
+        for (Entry entry : queue) {
+            if (entry.unit != last) {
+                units++;
+                last = entry.unit;
+            }
+        }
+        return units;
+    }
+
+    /**
+     * Gives back everything a session held once its state has been claimed.
+     */
+    private void release(Entry entry) {
+        if (entry.userKey != null) {
+            userEntries.computeIfPresent(entry.userKey, (k, queue) -> {
+                queue.remove(entry);
+                return queue.isEmpty() ? null : queue;
+            });
+        }
+        releaseCounts(entry);
+    }
+
+    private void releaseCounts(Entry entry) {
+        if (entry.icpId != null) {
+            AtomicInteger icpCount = icpCounts.get(entry.icpId);
+            if (icpCount != null) {
+                icpCount.decrementAndGet();
+            }
+        }
+        usedBytes.addAndGet(-entry.weight);
+    }
+
+    /**
+     * @return the live session stored under key, or null if there is none or
+     * it has passed its deadline but not yet been swept
+     */
+    public UserSessionInfo get(DigestKey key) {
+        Entry entry = sessions.get(key);
+        if (entry == null || !entry.isLive() || entry.deadline <= currentTick()) {
+            return null;
+        }
+        return entry.session;
+    }
+
+    /**
+     * Atomically takes the session stored under key. Of any number of
+     * concurrent callers for the same key, at most one receives the session.
+     *
+     * @return the session, or null if there was none, it has expired or it was
+     * already consumed
+     */
+    public UserSessionInfo consume(DigestKey key) {
+        Entry entry = sessions.get(key);
+        if (entry == null || !entry.claim(Entry.CONSUMED)) {
+            return null;
+        }
+        sessions.remove(key, entry);
+        release(entry);
+
+        Listener l = listener;
+        if (entry.deadline <= currentTick()) {
+            // Past its deadline but not yet swept
+            expiredCount.increment();
+            if (l != null) {
+                l.onExpire(key);
+            }
+            return null;
+        }
+        if (l != null) {
+            l.onConsume(key);
+        }
+        return entry.session;
+    }
+
+    /**
+     * Registers the single listener told about puts, consumes and expiries, or
+     * removes it when null. Callbacks run on the calling thread (the expiry
+     * ticker for expiries) and must not call back into the store.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return number of sessions currently held, including any that have
+     * passed their deadline within the current tick
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return total number of sessions removed because they expired
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    /**
+     * @return smoothed number of sessions expiring per second
+     */
+    public double getEvictionRate() {
+        return evictionRate;
+    }
+
+    /**
+     * @return number of sessions evicted because their user started another
+     * beyond maxperuser
+     */
+    public long getUserEvictionCount() {
+        return userEvictions.sum();
+    }
+
+    /**
+     * @return number of sessions refused because their icpId was at maxpericp
+     */
+    public long getIcpRejectionCount() {
+        return icpRejections.sum();
+    }
+
+    /**
+     * @return number of sessions refused because the memory budget was spent
+     */
+    public long getMemoryRejectionCount() {
+        return memoryRejections.sum();
+    }
+
+    /**
+     * @return encoded size of all sessions held, as counted against maxbytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Moves the wheel forward to the current monotonic time, cascading higher
+     * levels down and expiring every session in the slots passed over.
+     */
+    void advance() {
+        try {
+            advanceTo(currentTick());
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the periodic ticker
+            log.severe("Error while expiring sessions: " + e.getMessage());
+        }
+    }
+
+    void advanceTo(long targetTick) {
+        long expired = 0;
+        long ticks = 0;
+        Listener l = listener;
+
+        synchronized (wheelLock) {
+            while (processedTick < targetTick) {
+                long tick = processedTick + 1;
+
+                if ((tick & WHEEL_MASK) == 0) {
+                    if (((tick >>> WHEEL_BITS) & WHEEL_MASK) == 0) {
+                        cascade(2, (int) ((tick >>> (2 * WHEEL_BITS)) & WHEEL_MASK), tick);
+                    }
+                    cascade(1, (int) ((tick >>> WHEEL_BITS) & WHEEL_MASK), tick);
+                }
+
+                Entry entry = detach(0, (int) (tick & WHEEL_MASK));
+                while (entry != null) {
+                    Entry next = entry.next;
+                    entry.next = null;
+                    if (entry.deadline > tick) {
+                        if (entry.isLive()) {
+                            schedule(entry, tick);
+                        }
+                    } else if (entry.claim(Entry.EXPIRED)) {
+                        sessions.remove(entry.key, entry);
+                        release(entry);
+                        expired++;
+                        if (l != null) {
+                            l.onExpire(entry.key);
+                        }
+                    }
+                    entry = next;
+                }
+
+                processedTick = tick;
+                ticks++;
+            }
+        }
+
+        if (ticks > 0) {
+            expiredCount.add(expired);
+            double perSecond = expired / (ticks * (tickNanos / 1e9));
+            evictionRate = RATE_ALPHA * perSecond + (1 - RATE_ALPHA) * evictionRate;
+            if (expired > 0) {
+                log.fine("Expired " + expired + " sessions, " + sessions.size() + " remaining");
+            }
+        }
+    }
+
+    long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void cascade(int level, int slot, long tick) {
+        Entry entry = detach(level, slot);
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.next = null;
+            if (entry.isLive()) {
+                schedule(entry, tick);
+            }
+            entry = next;
+        }
+    }
+
+    private void schedule(Entry entry, long base) {
+        long delta = entry.deadline - base;
+        int level;
+        long slot;
+        if (delta < WHEEL_SIZE) {
+            level = 0;
+            slot = entry.deadline;
+        } else if (delta < 1L << (2 * WHEEL_BITS)) {
+            level = 1;
+            slot = entry.deadline >>> WHEEL_BITS;
+        } else if (delta < WHEEL_SPAN) {
+            level = 2;
+            slot = entry.deadline >>> (2 * WHEEL_BITS);
+        } else {
+            // Beyond the horizon of the wheel; parked in the furthest slot and
+            // rescheduled each time it cascades until it comes within range.
+            level = 2;
+            slot = (base + WHEEL_SPAN - 1) >>> (2 * WHEEL_BITS);
+        }
+        link(entry, level, (int) (slot & WHEEL_MASK));
+    }
+
+    private void link(Entry entry, int level, int slot) {
+        Entry head = wheel[level][slot];
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        wheel[level][slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.level < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[entry.level][entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = -1;
+    }
+
+    private Entry detach(int level, int slot) {
+        Entry head = wheel[level][slot];
+        wheel[level][slot] = null;
+        for (Entry e = head; e != null; e = e.next) {
+            e.prev = null;
+            e.level = -1;
+        }
+        return head;
+    }
+
+    /**
+     * Observer of session lifecycle events.
+     */
+    public interface Listener {
+
+        /**
+         * @param expiresAtMillis - wall clock time at which the session expires
+         */
+        void onPut(DigestKey key, UserSessionInfo session, long expiresAtMillis);
+
+        void onConsume(DigestKey key);
+
+        void onExpire(DigestKey key);
+    }
+
+    /**
+     * A session together with its position in the wheel. The state is changed
+     * only by compare-and-set; the wheel position fields are guarded by
+     * wheelLock.
+     */
+    private static final class Entry {
+
+        static final int LIVE = 0;
+        static final int CONSUMED = 1;
+        static final int EXPIRED = 2;
+        static final int REPLACED = 3;
+        static final int EVICTED = 4;
+
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private final DigestKey key;
+        private final UserSessionInfo session;
+        private final String icpId;
+        private final String userKey;
+        private final int weight;
+        // The request the entry was stored with; the entry itself if alone
+        private final Object unit;
+        private long deadline;
+        private volatile int state = LIVE;
+
+        private Entry prev;
+        private Entry next;
+        private int level = -1;
+        private int slot;
+
+        private Entry(DigestKey key, UserSessionInfo session, long deadline, int weight, Object unit) {
+            this.key = key;
+            this.session = session;
+            this.icpId = session.getIcpId();
+            this.userKey = (session.getUsername() == null) ? null
+                    : (icpId == null) ? session.getUsername() : icpId + "/" + session.getUsername();
+            this.weight = weight;
+            this.unit = (unit == null) ? this : unit;
+            this.deadline = deadline;
+        }
+
+        boolean isLive() {
+            return state == LIVE;
+        }
+
+        boolean claim(int newState) {
+            return STATE.compareAndSet(this, LIVE, newState);
+        }
+    }
+}
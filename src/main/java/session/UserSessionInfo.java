@@ -38,6 +38,9 @@ public class UserSessionInfo implements Serializable {
 
     private String mapkey;
 
+    //tenant the session was created for
+    private String icpId = null;
+
     /**
      * Constructor of this class.
      *
@@ -75,9 +78,20 @@ public class UserSessionInfo implements Serializable {
         }
     }
 
+    public boolean hasCreationdate() {
+        return creationdate != null;
+    }
+
+    /**
+     * @return creation time in epoch millis, read without copying the Date;
+     * only meaningful when hasCreationdate() is true
+     */
+    public long getCreationtime() {
+        return (creationdate == null) ? 0 : creationdate.getTime();
+    }
+
     public long getSessionAge() {
-        Date rightnow = new Date();
-        long age = (rightnow.getTime() / 1000) - (creationdate.getTime() / 1000);
+        long age = (System.currentTimeMillis() / 1000) - (creationdate.getTime() / 1000);
         return age;
     }
 
@@ -0,0 +1,318 @@
+package session;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Compact binary form of a UserSessionInfo, used wherever a session leaves the
+ * JVM instead of Java serialization.
+ *
+ * Layout: a version byte, a varint bitmap with one bit per nullable field (set
+ * when the field is present), then each present field in declaration order.
+ * Strings are a varint byte length followed by UTF-8, numbers are zigzag
+ * varints and the creation date is epoch millis. Encoding writes straight into
+ * the caller's buffer and allocates nothing.
+ */
+public final class UserSessionInfoCodec {
+
+    public static final byte VERSION = 2;
+
+    private static final int USERNAME = 0;
+    private static final int DISPLAY_NAME = 1;
+    private static final int RP_NAME = 2;
+    private static final int NONCE = 3;
+    private static final int INITNONCE = 4;
+    private static final int TXTIMESTAMP = 5;
+    private static final int TXPAYLOAD = 6;
+    private static final int TXID = 7;
+    private static final int USER_ID = 8;
+    private static final int SESSIONTYPE = 9;
+    private static final int CREATIONDATE = 10;
+    private static final int USER_PUBLIC_KEY = 11;
+    private static final int SKID = 12;
+    private static final int SID = 13;
+    private static final int SESSIONID = 14;
+    private static final int USER_ICON = 15;
+    private static final int USER_VERIFICATION_REQ = 16;
+    private static final int ATTESTATION_PREFERANCE = 17;
+    private static final int POLICY_MAP_KEY = 18;
+    private static final int MAPKEY = 19;
+    private static final int ICPID = 20;
+
+    private UserSessionInfoCodec() { }
+
+    /**
+     * @return exact number of bytes encode() writes for this session
+     */
+    public static int encodedLength(UserSessionInfo session) {
+        int length = 1 + varintLength(presence(session))
+                + stringLength(session.getUsername())
+                + stringLength(session.getDisplayName())
+                + stringLength(session.getRpName())
+                + stringLength(session.getNonce())
+                + stringLength(session.getInitnonce())
+                + stringLength(session.getTxpayload())
+                + stringLength(session.getTxid())
+                + stringLength(session.getUserId())
+                + stringLength(session.getSessiontype())
+                + stringLength(session.getUserPublicKey())
+                + stringLength(session.getSessionid())
+                + stringLength(session.getUserIcon())
+                + stringLength(session.getUserVerificationReq())
+                + stringLength(session.getAttestationPreferance())
+                + stringLength(session.getPolicyMapKey())
+                + stringLength(session.getMapkey())
+                + stringLength(session.getIcpId())
+                + varintLength(zigzag(session.getFkid()));
+        if (session.getTxtimestamp() != null) {
+            length += varintLength(zigzag(session.getTxtimestamp()));
+        }
+        if (session.hasCreationdate()) {
+            length += varintLength(zigzag(session.getCreationtime()));
+        }
+        if (session.getSkid() != null) {
+            length += varintLength(zigzag(session.getSkid()));
+        }
+        if (session.getSid() != null) {
+            length += varintLength(zigzag(session.getSid()));
+        }
+        return length;
+    }
+
+    /**
+     * Writes the session at the buffer's position, advancing it.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than encodedLength()
+     * bytes remain
+     */
+    public static void encode(UserSessionInfo session, ByteBuffer out) {
+        out.put(VERSION);
+        writeVarint(out, presence(session));
+
+        writeString(out, session.getUsername());
+        writeString(out, session.getDisplayName());
+        writeString(out, session.getRpName());
+        writeString(out, session.getNonce());
+        writeString(out, session.getInitnonce());
+        if (session.getTxtimestamp() != null) {
+            writeVarint(out, zigzag(session.getTxtimestamp()));
+        }
+        writeString(out, session.getTxpayload());
+        writeString(out, session.getTxid());
+        writeString(out, session.getUserId());
+        writeString(out, session.getSessiontype());
+        if (session.hasCreationdate()) {
+            writeVarint(out, zigzag(session.getCreationtime()));
+        }
+        writeString(out, session.getUserPublicKey());
+        writeVarint(out, zigzag(session.getFkid()));
+        if (session.getSkid() != null) {
+            writeVarint(out, zigzag(session.getSkid()));
+        }
+        if (session.getSid() != null) {
+            writeVarint(out, zigzag(session.getSid()));
+        }
+        writeString(out, session.getSessionid());
+        writeString(out, session.getUserIcon());
+        writeString(out, session.getUserVerificationReq());
+        writeString(out, session.getAttestationPreferance());
+        writeString(out, session.getPolicyMapKey());
+        writeString(out, session.getMapkey());
+        writeString(out, session.getIcpId());
+    }
+
+    /**
+     * Reads a session written by encode() from the buffer's position,
+     * advancing it.
+     *
+     * @throws IllegalArgumentException if the data is of an unknown version or
+     * truncated
+     */
+    public static UserSessionInfo decode(ByteBuffer in) {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported session encoding version " + version);
+            }
+            long presence = readVarint(in);
+
+            UserSessionInfo session = new UserSessionInfo();
+            session.setUsername(readString(in, presence, USERNAME));
+            session.setDisplayName(readString(in, presence, DISPLAY_NAME));
+            session.setRpName(readString(in, presence, RP_NAME));
+            session.setNonce(readString(in, presence, NONCE));
+            session.setInitnonce(readString(in, presence, INITNONCE));
+            session.setTxtimestamp(isPresent(presence, TXTIMESTAMP) ? unzigzag(readVarint(in)) : null);
+            session.setTxpayload(readString(in, presence, TXPAYLOAD));
+            session.setTxid(readString(in, presence, TXID));
+            session.setUserId(readString(in, presence, USER_ID));
+            session.setSessiontype(readString(in, presence, SESSIONTYPE));
+            session.setCreationdate(isPresent(presence, CREATIONDATE) ? new Date(unzigzag(readVarint(in))) : null);
+            session.setUserPublicKey(readString(in, presence, USER_PUBLIC_KEY));
+            session.setFkid(unzigzag(readVarint(in)));
+            session.setSkid(isPresent(presence, SKID) ? (short) unzigzag(readVarint(in)) : null);
+            session.setSid(isPresent(presence, SID) ? (short) unzigzag(readVarint(in)) : null);
+            session.setSessionid(readString(in, presence, SESSIONID));
+            session.setUserIcon(readString(in, presence, USER_ICON));
+            session.setUserVerificationReq(readString(in, presence, USER_VERIFICATION_REQ));
+            session.setAttestationPreferance(readString(in, presence, ATTESTATION_PREFERANCE));
+            session.setPolicyMapKey(readString(in, presence, POLICY_MAP_KEY));
+            session.setMapkey(readString(in, presence, MAPKEY));
+            session.setIcpId(readString(in, presence, ICPID));
+            return session;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated session encoding", e);
+        }
+    }
+
+    private static long presence(UserSessionInfo session) {
+        long bits = 0;
+        bits |= bit(session.getUsername(), USERNAME);
+        bits |= bit(session.getDisplayName(), DISPLAY_NAME);
+        bits |= bit(session.getRpName(), RP_NAME);
+        bits |= bit(session.getNonce(), NONCE);
+        bits |= bit(session.getInitnonce(), INITNONCE);
+        bits |= bit(session.getTxtimestamp(), TXTIMESTAMP);
+        bits |= bit(session.getTxpayload(), TXPAYLOAD);
+        bits |= bit(session.getTxid(), TXID);
+        bits |= bit(session.getUserId(), USER_ID);
+        bits |= bit(session.getSessiontype(), SESSIONTYPE);
+        bits |= session.hasCreationdate() ? 1L << CREATIONDATE : 0;
+        bits |= bit(session.getUserPublicKey(), USER_PUBLIC_KEY);
+        bits |= bit(session.getSkid(), SKID);
+        bits |= bit(session.getSid(), SID);
+        bits |= bit(session.getSessionid(), SESSIONID);
+        bits |= bit(session.getUserIcon(), USER_ICON);
+        bits |= bit(session.getUserVerificationReq(), USER_VERIFICATION_REQ);
+        bits |= bit(session.getAttestationPreferance(), ATTESTATION_PREFERANCE);
+        bits |= bit(session.getPolicyMapKey(), POLICY_MAP_KEY);
+        bits |= bit(session.getMapkey(), MAPKEY);
+        bits |= bit(session.getIcpId(), ICPID);
+        return bits;
+    }
+
+    private static long bit(Object field, int index) {
+        return (field == null) ? 0 : 1L << index;
+    }
+
+    private static boolean isPresent(long presence, int index) {
+        return (presence & (1L << index)) != 0;
+    }
+
+    private static int stringLength(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int utf8 = utf8Length(s);
+        return varintLength(utf8) + utf8;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, written as '?' like String.getBytes does
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeString(ByteBuffer out, String s) {
+        if (s == null) {
+            return;
+        }
+        writeVarint(out, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in, long presence, int index) {
+        if (!isPresent(presence, index)) {
+            return null;
+        }
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        int len = (int) length;
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
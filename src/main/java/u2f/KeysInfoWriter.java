@@ -0,0 +1,82 @@
+package u2f;
+
+import common.Constants;
+import dal.Database;
+import dal.FidoKeyId;
+import dal.KeyPageToken;
+import model.FidoKey;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Body of a getkeysinfo response. Reads one bounded page of the user's keys
+ * and then writes it to the response stream, so no database connection is
+ * held while the client reads:
+ *
+ * {"Response": {"keys": [{..., "keyid": ...}, ...], "next": token}}
+ *
+ * next is present only when more keys follow; it is the KeyPageToken to pass
+ * as the cursor of the next call.
+ */
+class KeysInfoWriter implements StreamingOutput {
+
+    private final Database database;
+    private final String icpId;
+    private final String username;
+    private final long afterFkid;
+    private final int pageSize;
+
+    private int written;
+    private long lastFkid;
+
+    KeysInfoWriter(Database database, String icpId, String username, long afterFkid, int pageSize) {
+        this.database = database;
+        this.icpId = icpId;
+        this.username = username;
+        this.afterFkid = afterFkid;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public void write(OutputStream output) {
+        try (JsonGenerator gen = Json.createGenerator(output)) {
+            gen.writeStartObject();
+            gen.writeStartObject(Constants.JSON_KEY_SERVLET_RETURN_RESPONSE);
+            gen.writeStartArray("keys");
+            // One row past the page tells whether there is a next page
+            List<FidoKey> keys = database.getKeyPage(icpId, username, afterFkid, pageSize + 1);
+            for (FidoKey key : keys) {
+                writeKey(gen, key);
+            }
+            gen.writeEnd();
+            if (keys.size() > pageSize) {
+                gen.write("next", KeyPageToken.encode(lastFkid));
+            }
+            gen.writeEnd();
+            gen.writeEnd();
+        }
+    }
+
+    private void writeKey(JsonGenerator gen, FidoKey key) {
+        if (written == pageSize) {
+            return;
+        }
+        gen.writeStartObject();
+        key.writeJson(gen);
+        gen.write("keyid", FidoKeyId.of(key).toString());
+        gen.writeEnd();
+        written++;
+        lastFkid = key.getFkid();
+    }
+
+    /**
+     * @return number of keys written, once write has returned
+     */
+    int getWritten() {
+        return written;
+    }
+}
@@ -27,6 +27,13 @@ public class U2FRegistrationChallenge extends U2FChallenge implements Serializab
         return this.nonce;
     }
 
+    /**
+     * Replaces the random nonce, used when the challenge is a sealed session.
+     */
+    void setNonce(String nonce) {
+        this.nonce = nonce;
+    }
+
     public final JsonObject toJsonObject() {
 
         JsonObject jsonObj = Json.createObjectBuilder()
@@ -1,15 +1,30 @@
 package u2f;
 
 import ch.qos.logback.core.status.Status;
+import common.ClientData;
 import common.Common;
 import common.Constants;
 import crypto.CryptoUtil;
+import crypto.KeyhandleSealer;
+import dal.CounterWriter;
 import dal.Database;
+import dal.ExcludeCredentialView;
+import dal.FidoKeyCache;
+import dal.FidoKeyId;
+import dal.KeyPageToken;
+import dal.PreauthKeyView;
+import dal.PublicKeyCache;
 import lombok.extern.java.Log;
 import model.FidoKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import replication.ReplicationAckException;
+import replication.ReplicationPipeline;
 import service.Fido2Preregister;
+import session.DigestKey;
+import session.SealedChallenges;
+import session.SessionLimitException;
+import session.SessionStore;
 import session.SessionType;
 import session.UserSessionInfo;
 import transaction.requests.PreregistrationRequest;
@@ -18,14 +33,16 @@ import util.Pair;
 import util.ReturnPair;
 
 import javax.json.*;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @Log
 @Service
@@ -34,9 +51,27 @@ public class U2FServletHelper {
     @Autowired
     Database database;
 
+    @Autowired
+    FidoKeyCache fidoKeyCache;
+
+    @Autowired
+    PublicKeyCache publicKeyCache;
+
+    @Autowired
+    CounterWriter counterWriter;
+
     @Autowired
     Fido2Preregister fido2Preregister;
 
+    @Autowired
+    SessionStore sessionStore;
+
+    @Autowired
+    SealedChallenges sealedChallenges;
+
+    @Autowired
+    ReplicationPipeline replicationPipeline;
+
     public Response preregister(PreregistrationRequest preregistration) {
 
         Date in = new Date();
@@ -68,7 +103,7 @@ public class U2FServletHelper {
 
         if (preregistration.getSVCInfo().getProtocol().equalsIgnoreCase(Constants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
             U2FRegistrationChallenge regChallenge;
-            Pair<U2FRegistrationChallenge, Response> regChallengePair = createU2FRegistrationChallenge(protocol, username);
+            Pair<U2FRegistrationChallenge, Response> regChallengePair = createU2FRegistrationChallenge(icpId, protocol, username);
 
             if (regChallengePair.getSecond() != null) {
                 return regChallengePair.getSecond();
@@ -155,6 +190,12 @@ public class U2FServletHelper {
             response = fido2Preregister.execute(icpId, username, preregistration.getPayload().getDisplayname(), jsonOptions, jsonExtensions);
         } catch (IllegalArgumentException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (SessionLimitException e) {
+            log.warning(e.getMessage());
+            return Response.status(Response.Status.TOO_MANY_REQUESTS).entity(e.getMessage()).build();
+        } catch (ReplicationAckException e) {
+            log.warning(e.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
         }
         Date out = new Date();
         long rt = out.getTime() - in.getTime();
@@ -184,7 +225,7 @@ public class U2FServletHelper {
         }
     }
 
-    private Pair<U2FRegistrationChallenge, Response> createU2FRegistrationChallenge(String protocol, String username) {
+    private Pair<U2FRegistrationChallenge, Response> createU2FRegistrationChallenge(String icpId, String protocol, String username) {
 
         Pair<U2FRegistrationChallenge, Response> pair = new Pair<>();
         U2FRegistrationChallenge regChallenge = null;
@@ -199,17 +240,20 @@ public class U2FServletHelper {
                 pair.setSecond(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not generate nonce for challenge.").build());
             } else {
                 String nonce = regChallenge.getNonce();
-                String nonceHash = Common.getDigest(nonce, "SHA-256");
 
                 UserSessionInfo session = new UserSessionInfo(username, nonce, SessionType.REGISTER, "", "");
-                session.setMapkey(nonceHash);
+                session.setIcpId(icpId);
+                if (sealedChallenges.isEnabled()) {
+                    regChallenge.setNonce(sealedChallenges.seal(icpId, session));
+                } else {
+                    sessionStore.put(DigestKey.sha256(nonce), session);
+                }
 
                 log.fine("Session created for username=" + username);
             }
-        } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException e) {
-            String error = "Exception during challenge generation: " + e.getMessage();
-            log.severe(error);
-            pair.setSecond(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(error).build());
+        } catch (SessionLimitException e) {
+            log.warning(e.getMessage());
+            pair.setSecond(Response.status(Response.Status.TOO_MANY_REQUESTS).entity(e.getMessage()).build());
         }
 
         pair.setFirst(regChallenge);
@@ -223,16 +267,18 @@ public class U2FServletHelper {
         try {
             log.fine("Making a silent preauthenticate call to fetch all the key handles.");
 
-            Collection<FidoKey> kh_coll = database.getByUsername(icpId, username);
+            Collection<ExcludeCredentialView> kh_coll = database.getExcludeCredentials(icpId, username);
             if (kh_coll != null) {
                 authresponses = new String[kh_coll.size()];
-                Iterator<FidoKey> it = kh_coll.iterator();
+                String[] clear = KeyhandleSealer.getInstance().unsealAll(icpId, kh_coll,
+                        ExcludeCredentialView::getAppid, ExcludeCredentialView::getKeyhandle);
+                Iterator<ExcludeCredentialView> it = kh_coll.iterator();
                 int i = 0;
 
                 while (it.hasNext()) {
-                    FidoKey key = (FidoKey) it.next();
+                    ExcludeCredentialView key = it.next();
                     if (key != null) {
-                        String keyhandle = decryptKH(key.getKeyhandle());
+                        String keyhandle = clearOrEmpty(clear[i]);
 
                         // Do a silent preauthenticate call to get auth wsresponse for this key handle.
                         // Fetch transports and create a jsonarray and pass it on to the auth challenge object
@@ -313,6 +359,34 @@ public class U2FServletHelper {
             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.getMessageProperty("FIDO-ERR-5002") + registration.getSVCInfo().getProtocol()).build();
         }
 
+        //  3. Take the registration session; it is single use whatever the outcome.
+        //  The session is checked here against the challenge, username and
+        //  appid of the response; the registration EJBs verify the rest
+        String browserdata = browserdata(registration.getSVCInfo().getProtocol(), registration.getPayload().getResponse());
+        UserSessionInfo session = consumeChallengeSession(String.valueOf(did), browserdata);
+        if (session == null || !session.getSessiontype().equalsIgnoreCase(Constants.FIDO_USERSESSION_REG)) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0006", "");
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.getMessageProperty("FIDO-ERR-0006")).build();
+        }
+
+        String username_received = (String) applianceCommon.getJsonValue(registration.getPayload().getMetadata().toString(),
+                SKFSConstants.FIDO_METADATA_KEY_USERNAME, "String");
+        if (username_received == null || !username_received.equalsIgnoreCase(session.getUsername())) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0037", "");
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.getMessageProperty("FIDO-ERR-0037")).build();
+        }
+
+        //  Registration sessions carry no appid; it is the domain's, as in preauthenticate
+        if (registration.getSVCInfo().getProtocol().equalsIgnoreCase(SKFSConstants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
+            String appid = applianceMaps.getDomain(did).getSkfeAppid();
+            String origin = Common.getOriginfromBrowserdata(browserdata);
+            if (origin == null || !originverifierbean.execute(appid, origin)) {
+                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0032", "");
+                return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.getMessageProperty("FIDO-ERR-0032")
+                        + " : " + appid + "-" + origin).build();
+            }
+        }
+
         String responseJSON;
 
         try {
@@ -327,6 +401,7 @@ public class U2FServletHelper {
             SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", ex.getMessage());
             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.getMessageProperty("FIDO-ERR-0001") + ex.getMessage()).build();
         }
+        fidoKeyCache.invalidate(String.valueOf(did), session.getUsername());
         SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0037", "");
 
         out = new Date();
@@ -429,6 +504,7 @@ public class U2FServletHelper {
         //  3. Do processing
         //  Look into the database to check for key handles
         String[] keyhandles;
+        DigestKey[] khDigests;
         String[] upkeys;
         String[] appids;
         JsonArray[] transports;
@@ -438,35 +514,37 @@ public class U2FServletHelper {
         if (preauthentication.getSVCInfo().getProtocol().equalsIgnoreCase(SKFSConstants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
             try {
                 SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0031", "");
-                Collection<FidoKeys> kh_coll
-                        = getkeybean.getByUsernameStatus(did, preauthentication.getPayload().getUsername(), applianceConstants.ACTIVE_STATUS);
+                Collection<PreauthKeyView> kh_coll
+                        = fidoKeyCache.getActiveKeys(String.valueOf(did), preauthentication.getPayload().getUsername());
                 if (kh_coll == null || kh_coll.size() <= 0) {
                     SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0007", "");
                     return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0007"))).build();
                 }
 
                 keyhandles = new String[kh_coll.size()];
+                khDigests = new DigestKey[kh_coll.size()];
                 upkeys = new String[kh_coll.size()];
                 appids = new String[kh_coll.size()];
                 regkeyids = new Long[kh_coll.size()];
                 serverids = new Short[kh_coll.size()];
                 transports = new JsonArray[kh_coll.size()];
 
-                Iterator it = kh_coll.iterator();
+                String[] clear = KeyhandleSealer.getInstance().unsealAll(String.valueOf(did), kh_coll,
+                        PreauthKeyView::getAppid, PreauthKeyView::getKeyhandle);
+                Iterator<PreauthKeyView> it = kh_coll.iterator();
                 int i = 0;
 
                 //  Populate all key handles and their respective origins.
                 SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0032", "");
                 while (it.hasNext()) {
-                    FidoKeys key = (FidoKeys) it.next();
+                    PreauthKeyView key = it.next();
                     if (key != null) {
-                        String mapkey = key.getFidoKeysPK().getSid() + "-" + key.getFidoKeysPK().getDid() + "-" + key.getFidoKeysPK().getUsername() + "-" + key.getFidoKeysPK().getFkid();
-                        FidoKeysInfo fkinfoObj = new FidoKeysInfo(key);
-                        skceMaps.getMapObj().put(SKFSConstants.MAP_FIDO_KEYS, mapkey, fkinfoObj);
-                        keyhandles[i] = decryptKH(key.getKeyhandle());
+                        keyhandles[i] = clearOrEmpty(clear[i]);
+                        //  the session key, hashed once for as long as the key stays cached
+                        khDigests[i] = (clear[i] == null) ? null : key.getKeyhandleDigest(clear[i]);
                         upkeys[i] = key.getPublickey();
-                        regkeyids[i] = key.getFidoKeysPK().getFkid();
-                        serverids[i] = key.getFidoKeysPK().getSid();
+                        regkeyids[i] = key.getFkid();
+                        serverids[i] = key.getSid();
                         appids[i] = key.getAppid();
                         transports[i] = SKFSCommon.getTransportJson(key.getTransports().intValue());
                         i++;
@@ -497,42 +575,64 @@ public class U2FServletHelper {
                         " key handles count = " + keyhandles.length);
 
                 if (authresponses != null) {
-                    String nonce = U2FUtility.getRandom(Integer.parseInt(SKFSCommon.getConfigurationProperty("skfs.cfg.property.entropylength")));
+                    String nonce = CryptoUtil.getRandom(Integer.parseInt(SKFSCommon.getConfigurationProperty("skfs.cfg.property.entropylength")));
+
+                    //  In stateless mode one sealed challenge covers every key handle,
+                    //  the key itself is looked up again on authenticate.
+                    boolean stateless = sealedChallenges.isEnabled();
+                    if (stateless) {
+                        UserSessionInfo session = new UserSessionInfo(preauthentication.getPayload().getUsername(),
+                                nonce, appid, SKFSConstants.FIDO_USERSESSION_AUTH, "", "");
+                        session.setSid(applianceCommon.getServerId().shortValue());
+                        nonce = sealedChallenges.seal(String.valueOf(did), session);
+                    }
 
                     JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
                     JsonArrayBuilder allowedCredBuilder = Json.createArrayBuilder();
+                    Map<DigestKey, UserSessionInfo> preauthSessions = new LinkedHashMap<>();
                     for (int k = 0; k < authresponses.length; k++) {
                         U2FAuthenticationChallenge authChallenge = authresponses[k];
 
                         //  fetch the details of auth nonce
                         String keyhandle = authChallenge.getKeyhandle();
                         JsonArray trasnportArrsy = authChallenge.getTransports();
-                        String KHHash = SKFSCommon.getDigest(keyhandle, "SHA-256");
-
-                        //  add a user session of type preauthenticate.
-                        UserSessionInfo session = new UserSessionInfo(preauthentication.getPayload().getUsername(),
-                                nonce, appid, SKFSConstants.FIDO_USERSESSION_AUTH, upkeys[k], "");
-                        session.setFkid(regkeyids[k]);
-                        session.setSkid(serverids[k]);
-                        session.setSid(applianceCommon.getServerId().shortValue());
-                        skceMaps.getMapObj().put(SKFSConstants.MAP_USER_SESSION_INFO, KHHash, session);
-
-                        //replicate map to other server
-                        session.setMapkey(KHHash);
-                        try {
-                            if (applianceCommon.replicate()) {
-                                replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
-                            }
-                        } catch (Exception e) {
-                            throw new RuntimeException(e.getLocalizedMessage());
+                        DigestKey KHHash = (khDigests[k] != null) ? khDigests[k] : DigestKey.sha256(keyhandle);
+
+                        if (!stateless) {
+                            //  add a user session of type preauthenticate.
+                            UserSessionInfo session = new UserSessionInfo(preauthentication.getPayload().getUsername(),
+                                    nonce, appid, SKFSConstants.FIDO_USERSESSION_AUTH, upkeys[k], "");
+                            session.setFkid(regkeyids[k]);
+                            session.setSkid(serverids[k]);
+                            session.setSid(applianceCommon.getServerId().shortValue());
+                            session.setIcpId(String.valueOf(did));
+                            preauthSessions.put(KHHash, session);
                         }
-                        //end publish
                         SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0021", " username=" + preauthentication.getPayload().getUsername());
 
                         arrayBuilder.add(authChallenge.toJsonObject(appid));
                         //                    allowedCredBuilder.add(Json.createObjectBuilder().add("type", "public-key").add("id", keyhandle).add("transports", trasnportArrsy));
                         allowedCredBuilder.add(Json.createObjectBuilder().add("type", "public-key").add("id", keyhandle)); // TODO: fix transport array (removed it)
                     }
+                    //  the sessions of every key handle are admitted, and count against
+                    //  the user's limit, as one
+                    sessionStore.putAll(preauthSessions);
+
+                    //replicate map to other server
+                    long replicationSeq = 0;
+                    boolean dropped = false;
+                    for (Map.Entry<DigestKey, UserSessionInfo> stored : preauthSessions.entrySet()) {
+                        long seq = replicationPipeline.add(stored.getKey(), stored.getValue());
+                        dropped |= seq < 0;
+                        replicationSeq = Math.max(replicationSeq, seq);
+                    }
+                    //  batches are acknowledged in order, so one wait covers every key handle
+                    if (!replicationPipeline.awaitAck(dropped ? -1 : replicationSeq)) {
+                        for (DigestKey stored : preauthSessions.keySet()) {
+                            sessionStore.consume(stored);
+                        }
+                        throw new ReplicationAckException("Authentication challenges were not replicated");
+                    }
                     signDataArray = arrayBuilder.build();
                     if (signDataArray == null) {
                         jsonObject = Json.createObjectBuilder()
@@ -548,10 +648,12 @@ public class U2FServletHelper {
                                         build();
                     }
                 }
-            } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
-                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", ex.getMessage());
-                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0001")
-                        + ex.getMessage())).build();
+            } catch (SessionLimitException ex) {
+                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0008", ex.getMessage());
+                return Response.status(Response.Status.TOO_MANY_REQUESTS).entity(SKFSCommon.buildReturn(ex.getMessage())).build();
+            } catch (ReplicationAckException ex) {
+                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0008", ex.getMessage());
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(SKFSCommon.buildReturn(ex.getMessage())).build();
             }
             responseJSON = Json.createObjectBuilder()
                     .add(SKFSConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, jsonObject)
@@ -731,23 +833,9 @@ public class U2FServletHelper {
                             + " Missing 'clientData'")).build();
                 }
 
-                //parse browserdata
-                try {
-                    String browserdataJson = new String(Base64.getUrlDecoder().decode(browserdata), "UTF-8");
-                    JsonReader jsonReader = Json.createReader(new StringReader(browserdataJson));
-                    JsonObject jsonObject = jsonReader.readObject();
-                    jsonReader.close();
-
-                    String bdreqtype = jsonObject.getString(SKFSConstants.JSON_KEY_REQUESTTYPE);
-                    String bdnonce = jsonObject.getString(SKFSConstants.JSON_KEY_NONCE);
-                    String bdorigin = jsonObject.getString(SKFSConstants.JSON_KEY_SERVERORIGIN);
-                    if (bdreqtype == null || bdnonce == null || bdorigin == null) {
-                        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE,
-                                SKFSCommon.getMessageProperty("FIDO-ERR-5011"), " Missing 'registrationData'");
-                        return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-5011")
-                                + " Missing 'registrationData'")).build();
-                    }
-                } catch (Exception ex) {
+                //parse browserdata; typ, challenge and origin must all be there as strings
+                ClientData clientData = ClientData.parseU2f(browserdata);
+                if (clientData == null) {
                     SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE,
                             SKFSCommon.getMessageProperty("FIDO-ERR-5011"), " Invalid 'clientDATA'");
                     return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-5011")
@@ -796,20 +884,20 @@ public class U2FServletHelper {
                 long regkeyid;
                 short serverid;
                 String username = "";
-                String KHhash;
+                DigestKey KHhash;
                 String challenge = null;
                 String appid_Received = "";
 
-                try {
-                    //  calculate the hash of keyhandle received
-                    KHhash = SKFSCommon.getDigest(keyhandle, "SHA-256");
-                } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
-                    SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", " Error generating hash");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0001") + " Error generating hash")).build();
-                }
+                //  calculate the hash of keyhandle received
+                KHhash = DigestKey.sha256(keyhandle);
 
-                //  Look for the sessionid in the sessionmap and retrieve the username
-                UserSessionInfo user = (UserSessionInfo) skceMaps.getMapObj().get(SKFSConstants.MAP_USER_SESSION_INFO, KHhash);
+                //  Take the session out of the sessionmap; it is single use whatever the outcome
+                UserSessionInfo user = sealedChallenges.isEnabled()
+                        ? sealedChallenges.unseal(String.valueOf(did), clientData.getChallenge())
+                        : sessionStore.consume(KHhash);
+                if (user != null && !sealedChallenges.isEnabled()) {
+                    replicationPipeline.remove(KHhash);
+                }
                 if (user == null) {
                     SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0006", "");
                     return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0006"))).build();
@@ -829,7 +917,7 @@ public class U2FServletHelper {
                 }
 
                 //appid verifier
-                String origin = SKFSCommon.getOriginfromBrowserdata(browserdata);
+                String origin = clientData.getOrigin();
                 if (!originverifierbean.execute(appid_Received, origin)) {
                     SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0032", "");
                     return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0032")
@@ -837,10 +925,19 @@ public class U2FServletHelper {
                 }
 
                 //  3. Do processing
-                //  fetch the user public key from the session map.
-                String userpublickey = user.getUserPublicKey();
-                regkeyid = user.getFkid();
-                serverid = user.getSkid();
+                //  The key is found through the credential id index. It must be the
+                //  user's, still active and, unless the session is sealed and names
+                //  no key, the one the session was made for
+                PreauthKeyView key = fidoKeyCache.getByCredential(String.valueOf(did), keyhandle);
+                if (key == null || !key.getUsername().equals(username)
+                        || !FidoKeyCache.ACTIVE_STATUS.equals(key.getStatus())
+                        || (!sealedChallenges.isEnabled() && key.getFkid() != user.getFkid())) {
+                    SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0006", " Unknown keyhandle");
+                    return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0006"))).build();
+                }
+                String userpublickey = key.getPublickey();
+                regkeyid = key.getFkid();
+                serverid = key.getSid();
 
                 //  instantiate the fido interface and send the information for processing
                 FEreturn fer;
@@ -867,24 +964,12 @@ public class U2FServletHelper {
 //                    return SKFSCommon.buildAuthenticateResponse("", logs, SKFSCommon.getMessageProperty("FIDO-ERR-0001") + " Error generating hash");
 //                }
                         if (userpresence != SKFSConstants.USER_PRESENT_FLAG) {
-                            //  Remove the sessionid from the sessionmap
-                            skceMaps.getMapObj().remove(SKFSConstants.MAP_USER_SESSION_INFO, KHhash);
-                            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
-
                             SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0031", "");
                             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0031"))).build();
                         }
                         //  Persist sign counter info & the user presence bytes to the database - TBD
-                        FidoKeys key = null;
-                        FidoKeysInfo fkinfo = (FidoKeysInfo) skceMaps.getMapObj().get(SKFSConstants.MAP_FIDO_KEYS, serverid + "-" + did + "-" + username + "-" + regkeyid);
-                        if (fkinfo != null) {
-                            key = fkinfo.getFk();
-                        }
-                        if (key == null) {
-                            key = getkeybean.getByfkid(serverid, did, username, regkeyid);
-                        }
-                        if (key != null) {
-                            int oldCounter = key.getCounter();
+                        {
+                            int oldCounter = counterWriter.currentCounter(String.valueOf(did), key);
                             if (oldCounter != 0) {
                                 if (newCounter <= oldCounter) {
                                     /**
@@ -893,36 +978,15 @@ public class U2FServletHelper {
                                      * issue. So, just throw a warning msg in
                                      * the logs and proceed ahead.
                                      */
-                                    //  Remove the user session from the sessionmap
-                                    skceMaps.getMapObj().remove(SKFSConstants.MAP_USER_SESSION_INFO, KHhash);
-                                    SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
-
                                     SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0030", "");
                                     return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0030"))).build();
                                 }
                             }
                             //  update the sign counter value in the database with the new counter value.
-                            String jparesult = updatekeybean.execute(serverid, did, username, regkeyid, newCounter, modifyloc);
-                            JsonObject jo;
-                            try (JsonReader jr = Json.createReader(new StringReader(jparesult))) {
-                                jo = jr.readObject();
-                            }
-                            Boolean status = jo.getBoolean(SKFSConstants.JSON_KEY_FIDOJPA_RETURN_STATUS);
-                            if (status) {
-                                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0027", "");
-                            } else {
-                                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0026", " new value=" + newCounter);
-                            }
+                            counterWriter.record(String.valueOf(did), username, regkeyid, newCounter, modifyloc);
+                            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0027", "");
                         }
-
-                        //  Remove the sessionid from the sessionmap
-                        skceMaps.getMapObj().remove(SKFSConstants.MAP_USER_SESSION_INFO, KHhash);
-                        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", " username=" + username);
                     } else {
-                        //  Remove the sessionid from the sessionmap
-                        skceMaps.getMapObj().remove(SKFSConstants.MAP_USER_SESSION_INFO, KHhash);
-                        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
-
                         SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0015", "");
                         return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0015") + "")).build();
                     }
@@ -931,6 +995,8 @@ public class U2FServletHelper {
                 }
                 responseJSON = SKFSCommon.buildReturn("Successfully processed authorization response");
             } else {
+                //  FIDO2 authentication sessions are made and kept by fido2preauthbean,
+                //  which looks them up again here
                 try {
                     responseJSON = FIDO2Authejb.execute(did, authentication.getPayload().getResponse().toString(), authentication.getPayload().getMetadata().toString(), "authentication", null ,null, agent, cip);
                 } catch (IllegalArgumentException | SKIllegalArgumentException ex) {
@@ -984,6 +1050,7 @@ public class U2FServletHelper {
             if (authentication.getSVCInfo().getProtocol().equalsIgnoreCase(SKFSConstants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
                 return Response.status(Response.Status.NOT_IMPLEMENTED).entity("U2F not being implemeted").build();
             } else {
+                //  As for authentication, the session is fido2preauthbean's
                 try {
                     responseJSON = FIDO2Authejb.execute(did, authentication.getPayload().getResponse().toString(), authentication.getPayload().getMetadata().toString(), "authorization",
                             authentication.getPayload().getTxid(), authentication.getPayload().getTxpayload(), "", "");
@@ -1068,14 +1135,24 @@ public class U2FServletHelper {
             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0020") + " Missing 'keyid'")).build();
         }
 
-        //  5. handover the job to an ejb
+        FidoKeyId fkid;
+        try {
+            fkid = FidoKeyId.parse(keyid);
+        } catch (IllegalArgumentException ex) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0020", " " + ex.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0020") + " " + ex.getMessage())).build();
+        }
+
+        //  5. remove the key from the repository
         String responseJSON;
-        SKCEReturnObject skcero = u2fderegbean.execute(did, keyid);
-        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0046", skcero);
-        if (skcero.getErrorkey() != null) {
-            responseJSON = SKFSCommon.buildReturn(skcero.getErrormsg());
+        if (!fkid.getIcpId().equals(String.valueOf(did))
+                || !database.deleteKey(fkid.getIcpId(), fkid.getUsername(), fkid.getFkid())) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0020", " No such key " + keyid);
+            responseJSON = SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0020") + " No such key " + keyid);
             return Response.status(Response.Status.BAD_REQUEST).entity(responseJSON).build();
         } else {
+            fidoKeyCache.invalidate(fkid);
+            publicKeyCache.invalidate(fkid);
             // Build the output
             String response = "Successfully deleted user registered security key";
             responseJSON = SKFSCommon.buildReturn(response);
@@ -1139,14 +1216,29 @@ public class U2FServletHelper {
             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " keyid")).build();
         }
 
-        //  6. handover job to an ejb
+        FidoKeyId fkid;
+        try {
+            fkid = FidoKeyId.parse(keyid);
+        } catch (IllegalArgumentException ex) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0002", " " + ex.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " " + ex.getMessage())).build();
+        }
+
+        String status = fidokey.getPayload().getStatus();
+        if (!FidoKeyCache.ACTIVE_STATUS.equals(status) && !FidoKeyCache.INACTIVE_STATUS.equals(status)) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0002", " status");
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " status")).build();
+        }
+
+        //  6. update the key in the repository; the key caches are dropped once it is written
         String responseJSON;
-        SKCEReturnObject skcero = u2factbean.execute(did, keyid, fidokey);
-        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0046", skcero);
-        if (skcero.getErrorkey() != null) {
-            responseJSON = SKFSCommon.buildReturn(skcero.getErrormsg());
+        if (!fkid.getIcpId().equals(String.valueOf(did))
+                || !fidoKeyCache.updateStatus(fkid, status, fidokey.getPayload().getModify_location())) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0002", " No such key " + keyid);
+            responseJSON = SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " No such key " + keyid);
             return Response.status(Response.Status.BAD_REQUEST).entity(responseJSON).build();
         } else {
+            publicKeyCache.invalidate(fkid);
             // Build the output
             String response = "Successfully updated user registered security key";
             responseJSON = SKFSCommon.buildReturn(response);
@@ -1170,28 +1262,34 @@ public class U2FServletHelper {
      * The client applications have to cache these random ids if they wish to
      * de-register keys.
      *
+     * Keys are returned a page at a time, oldest first, and streamed to the
+     * client as they are read, so a user with a very large number of keys
+     * costs no more memory than one with a few.
+     *
      * @param did - FIDO domain id
      * @param username - String username to search keys for
+     * @param cursor - the 'next' token of the previous page; null or empty for
+     * the first page
+     * @param limit - most keys to return; null for the configured default
      *
-     * @return - A Json in String format. The Json will have 3 key-value pairs;
-     * 1. 'Response' : A Json array, each entry signifying metadata of a key
-     * registered; Metadata includes randomid and its time-to-live, creation and
-     * modify location and time info etc., 2. 'Message' : Empty string since
-     * there is no cryptographic work involved in this process. 3. 'Error' :
-     * String, with error message incase something went wrong. Will be empty if
-     * successful.
+     * @return - A Json in String format. 'Response' holds 'keys', a Json array
+     * with an entry of metadata per registered key, and 'next', the cursor of
+     * the next page, present only when more keys follow. Metadata includes the
+     * keyid, creation and modify location and time info etc. Not found if the
+     * user has no keys; bad request if the cursor or limit is not valid.
      */
     @Override
-    public Response getkeysinfo(Long did, String username) {
+    public Response getkeysinfo(Long did, String username, String cursor, Integer limit) {
 
         Date in = new Date();
-        Date out;
         long thId = Thread.currentThread().getId();
         String ID = thId + "-" + in.getTime();
         //  1. Receive request and print inputs
         SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.INFO, "FIDO-MSG-0011", "[TXID=" + ID + "]"
                 + "\n did=" + did
-                + "\n username=" + username);
+                + "\n username=" + username
+                + "\n cursor=" + cursor
+                + "\n limit=" + limit);
 
         //  2. Input checks
         if (username == null || username.isEmpty()) {
@@ -1199,44 +1297,92 @@ public class U2FServletHelper {
             return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " username")).build();
         }
 
-        //  3. Hand over the job to an ejb.
-        String responseJSON;
-        SKCEReturnObject skcero = u2fgetkeysbean.execute(did, username);
-        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0046", skcero);
-        if (skcero.getErrorkey() != null) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(skcero.getErrormsg())).build();
-        } else {
-            // Build the output
-            String keysJsonString = (String) skcero.getReturnval();
-            if (keysJsonString == null) {
-                return Response.status(Response.Status.NOT_FOUND).build();
-            }
-            JsonObject keysJsonObj;
-            try (JsonReader jr = Json.createReader(new StringReader(keysJsonString))) {
-                keysJsonObj = jr.readObject();
+        int maxPage = Integer.parseInt(Common.getProperty("dal.property.keyspage.max"));
+        int pageSize = (limit == null) ? Integer.parseInt(Common.getProperty("dal.property.keyspage.default")) : limit;
+        if (pageSize <= 0 || pageSize > maxPage) {
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0002", " limit");
+            return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " limit")).build();
+        }
+
+        long afterFkid = 0;
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                afterFkid = KeyPageToken.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0002", " cursor");
+                return Response.status(Response.Status.BAD_REQUEST).entity(SKFSCommon.buildReturn(SKFSCommon.getMessageProperty("FIDO-ERR-0002") + " cursor")).build();
             }
+        }
 
-            responseJSON = Json.createObjectBuilder()
-                    .add(SKFSConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, keysJsonObj)
-                    .build().toString();
-            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0040", "");
+        //  3. Stream a page of the user's keys
+        String icpId = String.valueOf(did);
+        if (afterFkid == 0 && !database.hasKeys(icpId, username)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
         }
+        KeysInfoWriter keysInfo = new KeysInfoWriter(database, icpId, username, afterFkid, pageSize);
+        StreamingOutput stream = output -> {
+            keysInfo.write(output);
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0040", "");
 
-        out = new Date();
-        long rt = out.getTime() - in.getTime();
-        //  4. Print output and Return
-        SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.INFO, "FIDO-MSG-0012", "[TXID=" + ID + ", START=" + in.getTime() + ", FINISH=" + out.getTime() + ", TTC=" + rt + "]" + "\nResponse" + responseJSON);
-        return Response.ok().entity(responseJSON).build();
+            Date finish = new Date();
+            long rt = finish.getTime() - in.getTime();
+            //  4. Print output once the response is written
+            SKFSLogger.log(SKFSConstants.SKFE_LOGGER, Level.INFO, "FIDO-MSG-0012", "[TXID=" + ID + ", START=" + in.getTime() + ", FINISH=" + finish.getTime() + ", TTC=" + rt + "]" + "\nResponse keys=" + keysInfo.getWritten());
+        };
+        return Response.ok(stream, MediaType.APPLICATION_JSON).build();
     }
 
-    private String decryptKH(String token) {
-        String decryptedToken = "";
-        try {
-            decryptedToken = CryptoUtil.decryptAES(token);
-        } catch (Exception e) {
-            log.severe("Could not decrypt");
+    /**
+     * @return the clientData of a registration response, or null if it has none
+     */
+    private static String browserdata(String protocol, JsonObject response) {
+        String browserdata;
+        if (protocol.equalsIgnoreCase(Constants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
+            browserdata = response.getString(Constants.JSON_KEY_CLIENTDATA, null);
+        } else {
+            JsonObject authenticatorResponse = response.getJsonObject(Constants.JSON_KEY_SERVLET_INPUT_RESPONSE);
+            browserdata = (authenticatorResponse == null) ? null
+                    : authenticatorResponse.getString(Constants.JSON_KEY_CLIENTDATAJSON, null);
         }
+        return (browserdata == null || browserdata.isEmpty()) ? null : browserdata;
+    }
+
+    /**
+     * Takes the session for the challenge echoed back in the clientData of a
+     * registration response. Registration sessions are keyed by the hash of
+     * their challenge, and the session's own challenge must be the one echoed;
+     * in stateless mode the challenge is the sealed session itself. FIDO2
+     * authentication and authorization sessions are not in the SessionStore:
+     * fido2preauthbean makes them and FIDO2Authejb takes them.
+     *
+     * @param icpId - tenant the request is for
+     * @param browserdata - clientData sent by the client
+     * @return the session, or null if it is missing, expired, already used or
+     * another tenant's
+     */
+    private UserSessionInfo consumeChallengeSession(String icpId, String browserdata) {
+        if (browserdata == null) {
+            return null;
+        }
+
+        String challenge = Common.getChallengefromBrowserdata(browserdata);
+        if (challenge == null) {
+            return null;
+        }
+        if (sealedChallenges.isEnabled()) {
+            return sealedChallenges.unseal(icpId, challenge);
+        }
+
+        DigestKey key = DigestKey.sha256(challenge);
+        UserSessionInfo session = sessionStore.consume(key);
+        if (session != null) {
+            replicationPipeline.remove(key);
+        }
+        return (session != null && challenge.equals(session.getNonce()) && icpId.equals(session.getIcpId())) ? session : null;
+    }
 
-        return decryptedToken;
+    // A keyhandle that could not be opened is logged by the sealer and sent as ""
+    private static String clearOrEmpty(String keyhandle) {
+        return (keyhandle == null) ? "" : keyhandle;
     }
 }
@@ -0,0 +1,58 @@
+package common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the challenge and origin out of a FIDO2 clientDataJSON, as an
+ * authentication does, by decoding it to text and building a javax.json tree
+ * and with ClientData.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientDataBenchmark {
+
+    private String clientData;
+
+    @Setup
+    public void setUp() {
+        String json = "{\"type\":\"webauthn.get\",\"challenge\":\"dCHyaeobGDGnJ3tCdVa2jnkMe_9yDbsUq8JVhXn-oVo\","
+                + "\"origin\":\"https://demo.strongkey.com:8181\",\"crossOrigin\":false,"
+                + "\"other_keys_can_be_added_here\":\"do not compare clientDataJSON against a template.\"}";
+        clientData = Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String tree() {
+        JsonObject object;
+        try (JsonReader reader = Json.createReader(new StringReader(
+                new String(Base64.getUrlDecoder().decode(clientData), StandardCharsets.UTF_8)))) {
+            object = reader.readObject();
+        }
+        return object.getString("challenge") + object.getString("origin");
+    }
+
+    @Benchmark
+    public String scanner() {
+        ClientData parsed = ClientData.parse(clientData);
+        return parsed.getChallenge() + parsed.getOrigin();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ClientDataBenchmark.class.getSimpleName()).build()).run();
+    }
+}
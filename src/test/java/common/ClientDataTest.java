@@ -0,0 +1,344 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks ClientData against the javax.json reader it replaces, on generated
+ * clientData and on mutations of it: both must accept the same input and
+ * read the same fields from it.
+ */
+class ClientDataTest {
+
+    private static final String[] FIELDS = {"type", "typ", "challenge", "origin", "crossOrigin", "tokenBinding"};
+    private static final String MUTATIONS = "{}[]\":,\\ \t\n\r0-+.eEtrufalsn\u0000\u001f\u007f\u00e9\ud83d\ude00";
+
+    @Test
+    void readsTheFields() {
+        ClientData clientData = ClientData.parse(encode("{\"type\":\"webauthn.get\",\"challenge\":\"Y2hhbGxlbmdl\","
+                + "\"origin\":\"https://example.com\",\"crossOrigin\":false,"
+                + "\"tokenBinding\":{\"status\":\"present\",\"id\":\"dGI\"},\"other\":[1,{\"a\":null}]}", false));
+        assertEquals("webauthn.get", clientData.getType());
+        assertEquals("Y2hhbGxlbmdl", clientData.getChallenge());
+        assertEquals("https://example.com", clientData.getOrigin());
+        assertEquals(Boolean.FALSE, clientData.getCrossOrigin());
+        assertEquals("present", clientData.getTokenBindingStatus());
+        assertEquals("dGI", clientData.getTokenBindingId());
+
+        ClientData u2f = ClientData.parse(encode("{\"typ\":\"navigator.id.getAssertion\",\"challenge\":\"a\\/b\\u00e9\"}", true));
+        assertNull(u2f.getType());
+        assertEquals("navigator.id.getAssertion", u2f.getTyp());
+        assertEquals("a/b\u00e9", u2f.getChallenge());
+        assertNull(u2f.getOrigin());
+        assertNull(u2f.getCrossOrigin());
+    }
+
+    // clientData as a U2F token signs it, from the FIDO U2F raw message formats
+    @Test
+    void acceptsAU2fAssertion() {
+        String browserdata = encode("{\"typ\":\"navigator.id.getAssertion\","
+                + "\"challenge\":\"opsXqUifDriAAmWclinfbS0e-USY0CgyJHe_Otd7z8o\","
+                + "\"cid_pubkey\":{\"kty\":\"EC\",\"crv\":\"P-256\","
+                + "\"x\":\"HzQwlfXX7Q4S5MtCCnZUNBw3RMzPO9tOyWjBqRl4tJ8\","
+                + "\"y\":\"XVguGFLIZx1fXg3wNqfdbn75hi4-_7-BxhMljw42Ht4\"},"
+                + "\"origin\":\"http://example.com\"}", false);
+        ClientData clientData = ClientData.parseU2f(browserdata);
+        assertNotNull(clientData);
+        assertEquals("navigator.id.getAssertion", clientData.getTyp());
+        assertEquals("opsXqUifDriAAmWclinfbS0e-USY0CgyJHe_Otd7z8o", clientData.getChallenge());
+        assertEquals("http://example.com", clientData.getOrigin());
+
+        assertNull(ClientData.parseU2f(encode("{\"type\":\"webauthn.get\",\"challenge\":\"c\",\"origin\":\"o\"}", false)));
+        assertNull(ClientData.parseU2f(encode("{\"typ\":\"navigator.id.getAssertion\",\"challenge\":\"c\"}", false)));
+        assertNull(ClientData.parseU2f(encode("{\"typ\":1,\"challenge\":\"c\",\"origin\":\"o\"}", false)));
+        assertNull(ClientData.parseU2f(null));
+    }
+
+    @Test
+    void rejectsWhatIsNotAnObject() {
+        for (String json : new String[]{"", "[]", "\"x\"", "{", "{\"a\":}", "{\"a\":1,}", "{\"a\":01}", "{\"a\":tru}",
+                "\ufeff{}", "{\"a\":\"\u0001\"}", "{\"a\":\"\\x\"}", "{\u000b}"}) {
+            assertThrows(IllegalArgumentException.class, () -> ClientData.parse(encode(json, false)), json);
+        }
+        assertThrows(IllegalArgumentException.class, () -> ClientData.parse("e30+"));
+        assertThrows(IllegalArgumentException.class, () -> ClientData.parse("e3=0"));
+        assertNull(ClientData.parseOrNull("e30=="));
+        assertNotNull(ClientData.parseOrNull("e30="));
+        assertNotNull(ClientData.parseOrNull("e30"));
+    }
+
+    @Test
+    void matchesTheTreeReaderOnGeneratedClientData() {
+        Random random = new Random(25);
+        for (int i = 0; i < 20_000; i++) {
+            String json = object(random, 0, true);
+            assertSame(json, random.nextBoolean());
+        }
+    }
+
+    @Test
+    void matchesTheTreeReaderOnMutatedClientData() {
+        Random random = new Random(2025);
+        for (int i = 0; i < 50_000; i++) {
+            StringBuilder json = new StringBuilder(object(random, 0, true));
+            for (int m = 1 + random.nextInt(3); m > 0; m--) {
+                mutate(random, json);
+            }
+            assertSame(json.toString(), random.nextBoolean());
+        }
+    }
+
+    @Test
+    void decodesBase64urlAsTheJdkDoes() {
+        Random random = new Random(64);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_=+/ ";
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder text = new StringBuilder(encode("{\"challenge\":\"" + i + "\"}", random.nextBoolean()));
+            int changes = random.nextInt(3);
+            for (int c = 0; c < changes && text.length() > 0; c++) {
+                int at = random.nextInt(text.length());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        text.setCharAt(at, alphabet.charAt(random.nextInt(alphabet.length())));
+                        break;
+                    case 1:
+                        text.deleteCharAt(at);
+                        break;
+                    default:
+                        text.insert(at, alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            }
+            byte[] expected;
+            try {
+                expected = Base64.getUrlDecoder().decode(text.toString());
+            } catch (IllegalArgumentException e) {
+                expected = null;
+            }
+            String actual = treeFields(text.toString());
+            String scanned = scannedFields(text.toString());
+            if (expected == null) {
+                assertNull(scanned, text.toString());
+            } else {
+                assertEquals(actual, scanned, text + " = " + Arrays.toString(expected));
+            }
+        }
+    }
+
+    private static void assertSame(String json, boolean padded) {
+        String base64url = encode(json, padded);
+        assertEquals(treeFields(base64url), scannedFields(base64url), json);
+    }
+
+    /**
+     * @return the fields as the reader ClientData replaces reads them, or
+     * null if it does not parse
+     */
+    private static String treeFields(String base64url) {
+        JsonObject object;
+        try (JsonReader reader = Json.createReader(new StringReader(
+                new String(Base64.getUrlDecoder().decode(base64url), StandardCharsets.UTF_8)))) {
+            object = reader.readObject();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        JsonValue crossOrigin = object.get("crossOrigin");
+        JsonValue tokenBinding = object.get("tokenBinding");
+        JsonObject binding = (tokenBinding instanceof JsonObject) ? (JsonObject) tokenBinding : null;
+        return fields(string(object.get("type")), string(object.get("typ")), string(object.get("challenge")), string(object.get("origin")),
+                (crossOrigin == JsonValue.TRUE) ? Boolean.TRUE : (crossOrigin == JsonValue.FALSE) ? Boolean.FALSE : null,
+                (binding == null) ? null : string(binding.get("status")),
+                (binding == null) ? null : string(binding.get("id")));
+    }
+
+    private static String scannedFields(String base64url) {
+        ClientData clientData = ClientData.parseOrNull(base64url);
+        return (clientData == null) ? null : fields(clientData.getType(), clientData.getTyp(), clientData.getChallenge(), clientData.getOrigin(),
+                clientData.getCrossOrigin(), clientData.getTokenBindingStatus(), clientData.getTokenBindingId());
+    }
+
+    private static String string(JsonValue value) {
+        return (value instanceof JsonString) ? ((JsonString) value).getString() : null;
+    }
+
+    private static String fields(Object... values) {
+        return Arrays.toString(values);
+    }
+
+    private static String encode(String json, boolean padded) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return padded ? Base64.getUrlEncoder().encodeToString(bytes)
+                : Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static void mutate(Random random, StringBuilder json) {
+        if (json.length() == 0) {
+            json.append(MUTATIONS.charAt(random.nextInt(MUTATIONS.length())));
+            return;
+        }
+        int at = random.nextInt(json.length());
+        char c = MUTATIONS.charAt(random.nextInt(MUTATIONS.length()));
+        switch (random.nextInt(5)) {
+            case 0:
+                json.setCharAt(at, c);
+                break;
+            case 1:
+                json.deleteCharAt(at);
+                break;
+            case 2:
+                json.insert(at, c);
+                break;
+            case 3:
+                json.setLength(at);
+                break;
+            default:
+                json.append(c);
+        }
+    }
+
+    private static String object(Random random, int depth, boolean top) {
+        List<String> members = new ArrayList<>();
+        if (top) {
+            for (String field : FIELDS) {
+                if (random.nextInt(5) > 0) {
+                    members.add(member(random, field, depth));
+                }
+            }
+            // A repeated member; the last one counts
+            if (random.nextInt(10) == 0) {
+                members.add(member(random, FIELDS[random.nextInt(FIELDS.length)], depth));
+            }
+        }
+        for (int i = random.nextInt(depth < 3 ? 4 : 1); i > 0; i--) {
+            String name = (random.nextInt(4) == 0) ? FIELDS[random.nextInt(FIELDS.length)] : "x" + random.nextInt(100);
+            members.add(member(random, name, depth));
+        }
+        if (!top || random.nextBoolean()) {
+            Collections.shuffle(members, random);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(space(random)).append('{').append(space(random));
+        for (int i = 0; i < members.size(); i++) {
+            if (i > 0) {
+                sb.append(',').append(space(random));
+            }
+            sb.append(members.get(i)).append(space(random));
+        }
+        return sb.append('}').append(space(random)).toString();
+    }
+
+    private static String member(Random random, String name, int depth) {
+        String value;
+        if ("crossOrigin".equals(name) && random.nextInt(4) > 0) {
+            value = random.nextBoolean() ? "true" : "false";
+        } else if ("tokenBinding".equals(name) && random.nextInt(4) > 0) {
+            value = "{" + quote(random, "status") + ":" + quote(random, text(random)) + ","
+                    + quote(random, "id") + ":" + quote(random, text(random)) + "}";
+        } else if (random.nextInt(4) > 0 && !"tokenBinding".equals(name)) {
+            value = quote(random, text(random));
+        } else {
+            value = value(random, depth + 1);
+        }
+        return quote(random, name) + space(random) + ':' + space(random) + value;
+    }
+
+    private static String value(Random random, int depth) {
+        switch (random.nextInt(depth < 4 ? 8 : 6)) {
+            case 0:
+                return quote(random, text(random));
+            case 1:
+                return "true";
+            case 2:
+                return "false";
+            case 3:
+                return "null";
+            case 4:
+                return number(random);
+            case 5:
+                return String.valueOf(random.nextLong());
+            case 6:
+                return object(random, depth, false);
+            default:
+                StringBuilder array = new StringBuilder("[");
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    array.append(value(random, depth + 1)).append(i > 1 ? "," : "");
+                }
+                return array.append(']').toString();
+        }
+    }
+
+    private static String number(Random random) {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextBoolean()) {
+            sb.append('-');
+        }
+        sb.append(random.nextBoolean() ? "0" : String.valueOf(1 + random.nextInt(100_000)));
+        if (random.nextBoolean()) {
+            sb.append('.').append(random.nextInt(1000));
+        }
+        if (random.nextBoolean()) {
+            sb.append(random.nextBoolean() ? 'e' : 'E').append(random.nextBoolean() ? "+" : random.nextBoolean() ? "-" : "")
+                    .append(random.nextInt(300));
+        }
+        return sb.toString();
+    }
+
+    private static String text(Random random) {
+        String[] pieces = {"https://", "example.com", ":8443", "webauthn.get", "navigator.id.finishEnrollment",
+                "Y2hhbGxlbmdl_-", "\u00e9", "\u4e2d", "\ud83d\ude00", "\"", "\\", "/", "\n", "\u0001", " "};
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(5); i > 0; i--) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the text as a JSON string, each character written raw or
+     * escaped at random where either is allowed
+     */
+    private static String quote(Random random, String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean mustEscape = c == '"' || c == '\\' || c < 0x20;
+            if (!mustEscape && random.nextInt(8) > 0) {
+                sb.append(c);
+            } else if (c == '\n' && random.nextBoolean()) {
+                sb.append("\\n");
+            } else if ((c == '"' || c == '\\' || c == '/') && random.nextBoolean()) {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(String.format(random.nextBoolean() ? "\\u%04x" : "\\u%04X", (int) c));
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String space(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return " ";
+            case 1:
+                return "\n\t";
+            case 2:
+                return "\r\n  ";
+            default:
+                return "";
+        }
+    }
+}
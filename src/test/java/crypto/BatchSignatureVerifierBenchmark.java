@@ -0,0 +1,126 @@
+package crypto;
+
+import crypto.BatchSignatureVerifier.Check;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signatures verified per second for a batch of BATCH assertions of one
+ * algorithm: one at a time on the calling thread with a Signature looked up
+ * per check, as a loop over the batch would, against BatchSignatureVerifier
+ * with one thread per core.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSignatureVerifierBenchmark {
+
+    private static final int BATCH = 256;
+
+    @Param({"P-256", "RSA-2048", "Ed25519"})
+    private String keyType;
+
+    private List<Check> checks;
+    private BatchSignatureVerifier verifier;
+
+    // Kept for the one-at-a-time baseline
+    private KeyPair pair;
+    private byte[] edPublic;
+    private List<byte[]> data;
+    private List<byte[]> signatures;
+
+    @Setup
+    public void setUp() throws Exception {
+        checks = new ArrayList<>(BATCH);
+        data = new ArrayList<>(BATCH);
+        signatures = new ArrayList<>(BATCH);
+        byte[] edSecret = new byte[Ed25519.SECRET_KEY_SIZE];
+        if (keyType.equals("Ed25519")) {
+            ChallengeRandom.nextBytes(edSecret);
+            edPublic = new byte[Ed25519.PUBLIC_KEY_SIZE];
+            Ed25519.generatePublicKey(edSecret, 0, edPublic, 0);
+        } else if (keyType.equals("P-256")) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            pair = generator.generateKeyPair();
+        } else {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            pair = generator.generateKeyPair();
+        }
+
+        for (int i = 0; i < BATCH; i++) {
+            byte[] signed = ("authenticator data and client data hash " + i).getBytes(StandardCharsets.UTF_8);
+            byte[] signature;
+            if (keyType.equals("Ed25519")) {
+                signature = new byte[Ed25519.SIGNATURE_SIZE];
+                Ed25519.sign(edSecret, 0, signed, 0, signed.length, signature, 0);
+                checks.add(Check.ed25519(edPublic, signed, signature));
+            } else {
+                Signature signer = Signature.getInstance(algorithm());
+                signer.initSign(pair.getPrivate());
+                signer.update(signed);
+                signature = signer.sign();
+                checks.add(Check.of(algorithm(), pair.getPublic(), signed, signature));
+            }
+            data.add(signed);
+            signatures.add(signature);
+        }
+        verifier = new BatchSignatureVerifier(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        verifier.stop();
+    }
+
+    private String algorithm() {
+        return keyType.equals("P-256") ? "SHA256withECDSA" : "SHA256withRSA";
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int oneAtATime() throws Exception {
+        int valid = 0;
+        for (int i = 0; i < BATCH; i++) {
+            boolean ok;
+            if (edPublic != null) {
+                ok = Ed25519.verify(signatures.get(i), 0, edPublic, 0, data.get(i), 0, data.get(i).length);
+            } else {
+                Signature verifier = Signature.getInstance(algorithm());
+                verifier.initVerify(pair.getPublic());
+                verifier.update(data.get(i));
+                ok = verifier.verify(signatures.get(i));
+            }
+            valid += ok ? 1 : 0;
+        }
+        return valid;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public BatchSignatureVerifier.Outcome[] batch() {
+        return verifier.verify(checks);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BatchSignatureVerifierBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
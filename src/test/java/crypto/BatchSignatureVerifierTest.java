@@ -0,0 +1,89 @@
+package crypto;
+
+import crypto.BatchSignatureVerifier.Check;
+import crypto.BatchSignatureVerifier.Outcome;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchSignatureVerifierTest {
+
+    private final BatchSignatureVerifier verifier = new BatchSignatureVerifier(4);
+
+    @AfterEach
+    void tearDown() {
+        verifier.stop();
+    }
+
+    static byte[] sign(KeyPair pair, String algorithm, byte[] data) throws Exception {
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(pair.getPrivate());
+        signer.update(data);
+        return signer.sign();
+    }
+
+    @Test
+    void returnsAnOutcomePerCheckInOrder() throws Exception {
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair ecPair = ec.generateKeyPair();
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        KeyPair rsaPair = rsa.generateKeyPair();
+        byte[] edSecret = new byte[Ed25519.SECRET_KEY_SIZE];
+        ChallengeRandom.nextBytes(edSecret);
+        byte[] edPublic = new byte[Ed25519.PUBLIC_KEY_SIZE];
+        Ed25519.generatePublicKey(edSecret, 0, edPublic, 0);
+
+        List<Check> checks = new ArrayList<>();
+        List<Outcome> expected = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            byte[] data = ("assertion " + i).getBytes(StandardCharsets.UTF_8);
+            byte[] other = ("tampered " + i).getBytes(StandardCharsets.UTF_8);
+            boolean valid = i % 7 != 0;
+            switch (i % 3) {
+                case 0:
+                    checks.add(Check.of("SHA256withECDSA", ecPair.getPublic(), valid ? data : other,
+                            sign(ecPair, "SHA256withECDSA", data)));
+                    break;
+                case 1:
+                    checks.add(Check.of("SHA256withRSA", rsaPair.getPublic(), valid ? data : other,
+                            sign(rsaPair, "SHA256withRSA", data)));
+                    break;
+                default:
+                    byte[] signature = new byte[Ed25519.SIGNATURE_SIZE];
+                    Ed25519.sign(edSecret, 0, data, 0, data.length, signature, 0);
+                    checks.add(Check.ed25519(edPublic, valid ? data : other, signature));
+            }
+            expected.add(valid ? Outcome.VALID : Outcome.INVALID);
+        }
+        checks.add(Check.of("SHA256withECDSA", ecPair.getPublic(), new byte[1], new byte[] {1, 2, 3}));
+        expected.add(Outcome.ERROR);
+        checks.add(Check.of("NoSuchAlgorithm", ecPair.getPublic(), new byte[1], new byte[1]));
+        expected.add(Outcome.ERROR);
+
+        Outcome[] outcomes = verifier.verify(checks);
+
+        assertEquals(expected, Arrays.asList(outcomes));
+        assertEquals(51, verifier.getVerifiedCount());
+        assertEquals(9, verifier.getInvalidCount());
+        assertEquals(2, verifier.getErrorCount());
+    }
+
+    @Test
+    void handlesAnEmptyBatch() {
+        assertEquals(0, verifier.verify(Collections.emptyList()).length);
+    }
+}
@@ -0,0 +1,64 @@
+package crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a 32 byte challenge from ChallengeRandom with the two SecureRandom
+ * constructions per call that CryptoUtil.getRandom used to make. Run with
+ * -t to see contention on the shared system source, and -prof gc for
+ * allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChallengeRandomBenchmark {
+
+    private static final int CHALLENGE_BYTES = 32;
+
+    private final byte[] bytes = new byte[CHALLENGE_BYTES];
+    private final char[] chars = new char[ChallengeRandom.base64UrlLength(CHALLENGE_BYTES)];
+
+    @Benchmark
+    public String secureRandomPerCall() {
+        SecureRandom random = new SecureRandom();
+        byte[] seed = new byte[20];
+        random.nextBytes(seed);
+        SecureRandom sr = new SecureRandom(seed);
+        byte[] randomBytes = new byte[CHALLENGE_BYTES];
+        sr.nextBytes(randomBytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
+    }
+
+    @Benchmark
+    public String challengeString() {
+        return ChallengeRandom.nextBase64Url(CHALLENGE_BYTES);
+    }
+
+    @Benchmark
+    public char[] challengeChars() {
+        ChallengeRandom.nextBase64Url(CHALLENGE_BYTES, chars, 0);
+        return chars;
+    }
+
+    @Benchmark
+    public byte[] challengeBytes() {
+        ChallengeRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ChallengeRandomBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
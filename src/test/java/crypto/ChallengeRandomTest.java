@@ -0,0 +1,139 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.Provider;
+import java.security.SecureRandomSpi;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChallengeRandomTest {
+
+    private static final int SAMPLE_BYTES = 1 << 20;
+
+    @Test
+    void bytesAreUniform() {
+        byte[] sample = new byte[SAMPLE_BYTES];
+        ChallengeRandom.nextBytes(sample);
+
+        long[] counts = new long[256];
+        long ones = 0;
+        for (byte b : sample) {
+            counts[b & 0xff]++;
+            ones += Integer.bitCount(b & 0xff);
+        }
+
+        // Monobit: ones within 5 standard deviations of half the bits
+        double bits = SAMPLE_BYTES * 8.0;
+        assertTrue(Math.abs(ones - bits / 2) < 5 * Math.sqrt(bits / 4), "ones=" + ones);
+
+        // Chi-square over byte values, 255 degrees of freedom; 350 is past p = 0.0001
+        double expected = SAMPLE_BYTES / 256.0;
+        double chiSquare = 0;
+        for (long count : counts) {
+            chiSquare += (count - expected) * (count - expected) / expected;
+        }
+        assertTrue(chiSquare < 350, "chi-square=" + chiSquare);
+    }
+
+    @Test
+    void base64UrlMatchesEncoderLength() {
+        for (int n = 0; n <= 64; n++) {
+            String value = ChallengeRandom.nextBase64Url(n);
+            assertEquals(ChallengeRandom.base64UrlLength(n), value.length());
+            assertEquals(n, Base64.getUrlDecoder().decode(value).length);
+            assertTrue(value.matches("[A-Za-z0-9_-]*"), value);
+        }
+    }
+
+    @Test
+    void writesOnlyTheRequestedRange() {
+        byte[] bytes = new byte[64];
+        ChallengeRandom.nextBytes(bytes, 16, 32);
+        assertTrue(Arrays.equals(new byte[16], Arrays.copyOfRange(bytes, 0, 16)));
+        assertTrue(Arrays.equals(new byte[16], Arrays.copyOfRange(bytes, 48, 64)));
+        assertFalse(Arrays.equals(new byte[32], Arrays.copyOfRange(bytes, 16, 48)));
+
+        char[] chars = new char[50];
+        Arrays.fill(chars, '.');
+        assertEquals(43, ChallengeRandom.nextBase64Url(32, chars, 5));
+        assertEquals('.', chars[4]);
+        assertEquals('.', chars[48]);
+        assertThrows(IndexOutOfBoundsException.class, () -> ChallengeRandom.nextBase64Url(32, chars, 10));
+    }
+
+    @Test
+    void threadsDoNotRepeatEachOther() throws InterruptedException {
+        byte[] here = new byte[32];
+        ChallengeRandom.nextBytes(here);
+        AtomicReference<byte[]> there = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            byte[] bytes = new byte[32];
+            ChallengeRandom.nextBytes(bytes);
+            there.set(bytes);
+        });
+        thread.start();
+        thread.join();
+
+        assertFalse(Arrays.equals(here, there.get()));
+    }
+
+    @Test
+    void fipsModeDrawsFromTheFipsProvider() {
+        AtomicInteger filled = new AtomicInteger();
+        Provider fips = new Provider(CryptoProviders.FIPS_PROVIDER, 1.0, "stands in for the FIPS provider") {
+            {
+                putService(new Service(this, "SecureRandom", "DEFAULT", CountingRandom.class.getName(), null, null) {
+                    @Override
+                    public Object newInstance(Object constructorParameter) {
+                        return new CountingRandom(filled);
+                    }
+                });
+            }
+        };
+        Security.addProvider(fips);
+        try {
+            new CryptoProviders(true, 10).install();
+            byte[] challenge = new byte[32];
+            ChallengeRandom.nextBytes(challenge);
+            assertEquals(1, filled.get());
+            assertEquals(0x5a, challenge[31]);
+
+            CryptoProviders.uninstall();
+            ChallengeRandom.nextBytes(challenge);
+            assertEquals(1, filled.get());
+        } finally {
+            CryptoProviders.uninstall();
+            Security.removeProvider(CryptoProviders.FIPS_PROVIDER);
+        }
+    }
+
+    public static final class CountingRandom extends SecureRandomSpi {
+
+        private final AtomicInteger filled;
+
+        CountingRandom(AtomicInteger filled) {
+            this.filled = filled;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            Arrays.fill(bytes, (byte) 0x5a);
+            filled.incrementAndGet();
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return new byte[numBytes];
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConfiguredKeysTest {
+
+    private static final byte[] KEY = {
+            0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte) 0x88, (byte) 0x99, (byte) 0xaa, (byte) 0xbb,
+            (byte) 0xcc, (byte) 0xdd, (byte) 0xee, (byte) 0xff};
+
+    @Test
+    void decodesHexAndBase64() {
+        assertArrayEquals(KEY, ConfiguredKeys.aes("k", "00112233445566778899aabbccddeeff"));
+        assertArrayEquals(KEY, ConfiguredKeys.aes("k", " 00112233445566778899AABBCCDDEEFF "));
+        assertArrayEquals(KEY, ConfiguredKeys.aes("k", Base64.getEncoder().encodeToString(KEY)));
+        assertArrayEquals(KEY, ConfiguredKeys.aes("k", Base64.getUrlEncoder().withoutPadding().encodeToString(KEY)));
+
+        byte[] key256 = new byte[32];
+        key256[31] = 1;
+        assertArrayEquals(key256, ConfiguredKeys.aes("k", Base64.getEncoder().encodeToString(key256)));
+    }
+
+    @Test
+    void refusesTextThatIsNotAKey() {
+        for (String text : new String[]{null, "", "0123456789abcdef", "not a key at all!",
+                Base64.getEncoder().encodeToString(new byte[20]), "00112233445566778899aabbccddeeffgg"}) {
+            assertThrows(IllegalStateException.class, () -> ConfiguredKeys.aes("k", text), text);
+        }
+    }
+
+    @Test
+    void refusesPublishedDefaults() {
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> ConfiguredKeys.aes("session.property.sealkey", "9c2e41b07ad8f356"));
+        assertTrue(e.getMessage().contains("session.property.sealkey"));
+    }
+
+    @Test
+    void refusesAMissingProperty() {
+        System.clearProperty("crypto.test.missingkey");
+        assertThrows(IllegalStateException.class, () -> ConfiguredKeys.aes("crypto.test.missingkey"));
+    }
+}
@@ -0,0 +1,74 @@
+package crypto;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getInstance per call against CryptoPrimitives, for the digest of a
+ * challenge and the keyhandle encryption in CryptoUtil. Uses the BC provider;
+ * the FIPS provider's lookups cost more. Run with -t to see the registry
+ * lock under contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoPrimitivesBenchmark {
+
+    private static final String DIGEST = "SHA-256";
+    private static final String CIPHER = "AES/CBC/PKCS7Padding";
+    private static final String PROVIDER = "BC";
+
+    private final byte[] challenge = "0PwFSiWCzFKGE4oMx7bXy0ooNYvIUTxYwvKvCTvpYk4".getBytes(StandardCharsets.US_ASCII);
+    private final SecretKey key = new SecretKeySpec("0123456789abcdef".getBytes(StandardCharsets.US_ASCII), "AES");
+    private final IvParameterSpec iv = new IvParameterSpec("CB442FFF45298BC2".getBytes(StandardCharsets.US_ASCII));
+
+    @Setup
+    public void setUp() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Benchmark
+    public byte[] digestGetInstance() throws Exception {
+        return MessageDigest.getInstance(DIGEST, PROVIDER).digest(challenge);
+    }
+
+    @Benchmark
+    public byte[] digestPooled() throws Exception {
+        return CryptoPrimitives.digest(DIGEST, PROVIDER).digest(challenge);
+    }
+
+    @Benchmark
+    public byte[] cipherGetInstance() throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER, PROVIDER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher.doFinal(challenge);
+    }
+
+    @Benchmark
+    public byte[] cipherPooled() throws Exception {
+        Cipher cipher = CryptoPrimitives.cipher(CIPHER, PROVIDER);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        return cipher.doFinal(challenge);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CryptoPrimitivesBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
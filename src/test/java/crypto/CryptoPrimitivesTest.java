@@ -0,0 +1,53 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CryptoPrimitivesTest {
+
+    @Test
+    void reusesInstancesPerThread() throws Exception {
+        Cipher cipher = CryptoPrimitives.cipher("AES/GCM/NoPadding");
+        assertSame(cipher, CryptoPrimitives.cipher("AES/GCM/NoPadding"));
+        assertSame(cipher, CryptoPrimitives.cipher("AES/GCM/NoPadding", null));
+        assertNotSame(cipher, CryptoPrimitives.cipher("AES/CBC/PKCS5Padding"));
+
+        AtomicReference<Cipher> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                other.set(CryptoPrimitives.cipher("AES/GCM/NoPadding"));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(other.get());
+        assertNotSame(cipher, other.get());
+    }
+
+    @Test
+    void digestsComeBackReset() throws Exception {
+        byte[] data = "challenge".getBytes(StandardCharsets.UTF_8);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+        CryptoPrimitives.digest("SHA-256").update((byte) 1);
+        assertArrayEquals(expected, CryptoPrimitives.digest("SHA-256").digest(data));
+    }
+
+    @Test
+    void createsOncePerThreadAndAlgorithm() throws Exception {
+        CryptoPrimitives.mac("HmacSHA256", null);
+        long created = CryptoPrimitives.getCreatedCount();
+        for (int i = 0; i < 10; i++) {
+            CryptoPrimitives.mac("HmacSHA256", null);
+        }
+        assertEquals(created, CryptoPrimitives.getCreatedCount());
+    }
+}
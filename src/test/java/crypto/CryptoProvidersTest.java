@@ -0,0 +1,69 @@
+package crypto;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.json.JsonObject;
+import java.security.Security;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CryptoProvidersTest {
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @AfterEach
+    void uninstall() {
+        CryptoProviders.uninstall();
+    }
+
+    @Test
+    void picksTheFastestCandidate() {
+        CryptoProviders providers = new CryptoProviders(false, 10);
+
+        for (CryptoProviders.Selection selection : providers.getSelections()) {
+            if (selection.getProvider() == null) {
+                assertTrue(selection.getNanosPerOp().isEmpty(), selection.getAlgorithm());
+                continue;
+            }
+            long chosen = selection.getNanosPerOp().get(selection.getProvider());
+            for (long nanos : selection.getNanosPerOp().values()) {
+                assertTrue(chosen <= nanos, selection.getAlgorithm());
+            }
+            assertEquals(selection.getProvider(), providers.providerFor(selection.getType(), selection.getAlgorithm()));
+        }
+        // Both the JDK and BouncyCastle have these
+        assertTrue(providers.getSelections().stream()
+                .filter(s -> s.getAlgorithm().equals("SHA-256"))
+                .allMatch(s -> s.getNanosPerOp().size() >= 2));
+        assertNull(providers.providerFor(CryptoProviders.DIGEST, "MD5"));
+
+        JsonObject json = providers.toJson();
+        assertFalse(json.getBoolean("fips"));
+        assertEquals(providers.getSelections().size(), json.getJsonArray("algorithms").size());
+    }
+
+    @Test
+    void cryptoPrimitivesUseTheChosenProviders() throws Exception {
+        CryptoProviders providers = new CryptoProviders(false, 10);
+        String before = CryptoPrimitives.digest("SHA-256").getProvider().getName();
+
+        providers.install();
+        String chosen = providers.providerFor(CryptoProviders.DIGEST, "SHA-256");
+        assertEquals(chosen, CryptoPrimitives.digest("SHA-256").getProvider().getName());
+        assertEquals(providers.providerFor(CryptoProviders.CIPHER, "AES/GCM/NoPadding"),
+                CryptoPrimitives.cipher("AES/GCM/NoPadding").getProvider().getName());
+
+        CryptoProviders.uninstall();
+        assertEquals(before, CryptoPrimitives.digest("SHA-256").getProvider().getName());
+    }
+
+    @Test
+    void fipsModeNeedsTheFipsProvider() {
+        assertNull(Security.getProvider(CryptoProviders.FIPS_PROVIDER));
+        assertThrows(IllegalStateException.class, () -> new CryptoProviders(true, 10));
+    }
+}
@@ -0,0 +1,110 @@
+package crypto;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyhandleSealerTest {
+
+    private static final byte[] KEY_1 = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_2 = "fedcba9876543210".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] LEGACY_KEY = "5f7bd348cc866581".getBytes(StandardCharsets.US_ASCII);
+    private static final String APPID = "https://example.com";
+
+    static KeyhandleSealer sealer(int activeKeyId, byte[]... keys) {
+        Map<Integer, byte[]> ring = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            ring.put(i + 1, keys[i]);
+        }
+        return new KeyhandleSealer(ring, activeKeyId, LEGACY_KEY);
+    }
+
+    // What CryptoUtil.encryptAES stored
+    static String legacyToken(String icpId, String appid, String keyhandle) throws GeneralSecurityException {
+        Cipher cipher = CryptoPrimitives.cipher("AES/CBC/PKCS7Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(LEGACY_KEY, "AES"),
+                new IvParameterSpec("CB442FFF45298BC2".getBytes(StandardCharsets.US_ASCII)));
+        byte[] base64 = Base64.getEncoder().encode((icpId + appid + keyhandle).getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(cipher.doFinal(base64));
+    }
+
+    @Test
+    void sealsWithFreshNonceAndOpensForSameTenantOnly() throws Exception {
+        KeyhandleSealer sealer = sealer(1, KEY_1);
+        String token = sealer.seal("1", APPID, "kh1");
+        assertTrue(token.startsWith("$1$"));
+        assertTrue(KeyhandleSealer.isSealed(token));
+        assertNotEquals(token, sealer.seal("1", APPID, "kh1"));
+
+        assertEquals("kh1", sealer.unseal("1", APPID, token));
+        assertThrows(GeneralSecurityException.class, () -> sealer.unseal("2", APPID, token));
+        assertThrows(GeneralSecurityException.class, () -> sealer.unseal("1", "https://other.com", token));
+        assertThrows(GeneralSecurityException.class, () -> sealer.unseal("1", APPID, "$1$" + token.substring(4)));
+        assertThrows(GeneralSecurityException.class, () -> sealer.unseal("1", APPID, "$9$" + token.substring(3)));
+        assertEquals(4, sealer.getFailureCount());
+    }
+
+    @Test
+    void opensOlderKeysAfterRotation() throws Exception {
+        String old = sealer(1, KEY_1).seal("1", APPID, "kh1");
+        KeyhandleSealer rotated = sealer(2, KEY_1, KEY_2);
+
+        assertFalse(rotated.isCurrent(old));
+        assertEquals("kh1", rotated.unseal("1", APPID, old));
+
+        String rewrapped = rotated.rewrap("1", APPID, old);
+        assertTrue(rewrapped.startsWith("$2$"));
+        assertTrue(rotated.isCurrent(rewrapped));
+        assertEquals("kh1", rotated.unseal("1", APPID, rewrapped));
+    }
+
+    @Test
+    void opensLegacyTokens() throws Exception {
+        KeyhandleSealer sealer = sealer(1, KEY_1);
+        String legacy = legacyToken("1", APPID, "kh1");
+
+        assertFalse(KeyhandleSealer.isSealed(legacy));
+        assertEquals("kh1", sealer.unseal("1", APPID, legacy));
+        assertThrows(GeneralSecurityException.class, () -> sealer.unseal("2", APPID, legacy));
+        assertEquals(1, sealer.getLegacyUnsealedCount());
+    }
+
+    @Test
+    void opensAllOfAUsersKeysInOrder() throws Exception {
+        KeyhandleSealer sealer = sealer(1, KEY_1);
+        List<String> tokens = Arrays.asList(sealer.seal("1", APPID, "kh1"), legacyToken("1", APPID, "kh2"),
+                "$1$garbage", sealer.seal("1", APPID, "kh4"));
+
+        String[] clear = sealer.unsealAll("1", tokens, token -> APPID, token -> token);
+
+        assertArrayEquals(new String[] {"kh1", "kh2", null, "kh4"}, clear);
+    }
+
+    @Test
+    void readsTheKeyRingAsHexOrBase64Keys() {
+        byte[] key = new byte[32];
+        key[0] = 1;
+        Map<Integer, byte[]> ring = KeyhandleSealer.parseKeys(
+                " 1:00112233445566778899aabbccddeeff , 7:" + Base64.getEncoder().encodeToString(key));
+        assertEquals(2, ring.size());
+        assertEquals(16, ring.get(1).length);
+        assertArrayEquals(key, ring.get(7));
+
+        for (String text : new String[]{null, " ", "1:a3d17e09c45b8f26", "1:0123456789abcdef", "00112233445566778899aabbccddeeff",
+                "0:00112233445566778899aabbccddeeff", "x:00112233445566778899aabbccddeeff",
+                "1:00112233445566778899aabbccddeeff,1:ffeeddccbbaa99887766554433221100"}) {
+            assertThrows(IllegalStateException.class, () -> KeyhandleSealer.parseKeys(text), text);
+        }
+    }
+}
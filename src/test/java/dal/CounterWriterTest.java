@@ -0,0 +1,160 @@
+package dal;
+
+import model.FidoKey;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CounterWriterTest {
+
+    private JdbcDataSource dataSource;
+    private Database database;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database = new Database(dataSource);
+    }
+
+    private long addKey(String username, String keyhandle) {
+        return database.addKey(DatabaseTest.newKey("1", username, keyhandle, "Active"), DatabaseTest.credentialId(keyhandle));
+    }
+
+    @Test
+    void countersAreVisibleAtOnceAndCoalesced() {
+        long fkid = addKey("alice", "kh1");
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+        CounterWriter writer = new CounterWriter(database, cache, 60_000, 500);
+        cache.getActiveKeys("1", "alice");
+
+        for (int counter = 1; counter <= 100; counter++) {
+            writer.record("1", "alice", fkid, counter, "here");
+        }
+
+        assertEquals(100, cache.getByFkid("1", "alice", fkid).getCounter());
+        PreauthKeyView stored = database.getPreauthKeyByFkid("1", "alice", fkid);
+        assertEquals(0, stored.getCounter());
+        assertEquals(100, writer.currentCounter("1", stored));
+        assertEquals(1, writer.getBacklog());
+
+        writer.stop();
+
+        assertEquals(100, database.getByFkid("1", "alice", fkid).getCounter());
+        assertEquals(0, writer.getBacklog());
+        assertEquals(1, writer.getWrittenCount());
+    }
+
+    @Test
+    void keysOfDifferentShardsAreKeptApart() {
+        Map<String, DataSource> stores = new HashMap<>();
+        for (String shard : Arrays.asList("default", "big")) {
+            JdbcDataSource store = new JdbcDataSource();
+            store.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+            stores.put(shard, store);
+        }
+        Database sharded = new Database(new ShardRouter(Arrays.asList("default", "big"), "2:big,*:default"), stores);
+        long small = sharded.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        long big = sharded.addKey(DatabaseTest.newKey("2", "alice", "kh2", "Active"), DatabaseTest.credentialId("kh2"));
+        // Each shard numbers its keys from the start
+        assertEquals(small, big);
+
+        FidoKeyCache cache = new FidoKeyCache(sharded, 100, 60_000);
+        CounterWriter writer = new CounterWriter(sharded, cache, 60_000, 500);
+        writer.record("1", "alice", small, 5, "here");
+        writer.record("2", "alice", big, 9, "here");
+
+        assertEquals(2, writer.getBacklog());
+        assertEquals(5, writer.currentCounter("1", sharded.getPreauthKeyByFkid("1", "alice", small)));
+        assertEquals(9, writer.currentCounter("2", sharded.getPreauthKeyByFkid("2", "alice", big)));
+
+        writer.stop();
+
+        assertEquals(5, sharded.getByFkid("1", "alice", small).getCounter());
+        assertEquals(9, sharded.getByFkid("2", "alice", big).getCounter());
+    }
+
+    @Test
+    void countersAreFlushedInBatches() throws InterruptedException {
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+        CounterWriter writer = new CounterWriter(database, cache, 10, 4);
+        try {
+            long[] fkids = new long[10];
+            for (int i = 0; i < fkids.length; i++) {
+                fkids[i] = addKey("user" + i, "kh" + i);
+                writer.record("1", "user" + i, fkids[i], 5, "here");
+            }
+            for (int i = 0; i < 100 && writer.getBacklog() > 0; i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, writer.getBacklog());
+            assertTrue(writer.getBatchCount() >= 3);
+            for (int i = 0; i < fkids.length; i++) {
+                assertEquals(5, database.getByFkid("1", "user" + i, fkids[i]).getCounter());
+            }
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    void failedBatchesStayPending() {
+        long fkid = addKey("alice", "kh1");
+        AtomicInteger attempts = new AtomicInteger();
+        Database flaky = new Database(dataSource) {
+            @Override
+            public int updateCounters(Collection<CounterUpdate> updates) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("database unavailable");
+                }
+                return super.updateCounters(updates);
+            }
+        };
+        CounterWriter writer = new CounterWriter(flaky, new FidoKeyCache(flaky, 100, 60_000), 60_000, 500);
+
+        writer.record("1", "alice", fkid, 3, "here");
+        assertFalse(writer.flush());
+        assertEquals(1, writer.getFailureCount());
+        assertEquals(1, writer.getBacklog());
+
+        writer.stop();
+        assertEquals(3, database.getByFkid("1", "alice", fkid).getCounter());
+    }
+
+    @Test
+    void countersNeverMoveBackwards() {
+        long fkid = addKey("alice", "kh1");
+        database.updateCounter("1", "alice", fkid, 10, "elsewhere");
+        CounterWriter writer = new CounterWriter(database, new FidoKeyCache(database, 100, 60_000), 60_000, 500);
+
+        writer.record("1", "alice", fkid, 7, "here");
+        writer.stop();
+
+        FidoKey stored = database.getByFkid("1", "alice", fkid);
+        assertEquals(10, stored.getCounter());
+        assertEquals("elsewhere", stored.getModifyLocation());
+    }
+
+    @Test
+    void countersAfterStopAreWrittenThrough() {
+        long fkid = addKey("alice", "kh1");
+        CounterWriter writer = new CounterWriter(database, new FidoKeyCache(database, 100, 60_000), 60_000, 500);
+        writer.stop();
+
+        writer.record("1", "alice", fkid, 4, "here");
+
+        assertEquals(4, database.getByFkid("1", "alice", fkid).getCounter());
+        assertEquals(0, writer.getBacklog());
+    }
+}
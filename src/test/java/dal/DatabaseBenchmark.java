@@ -0,0 +1,86 @@
+package dal;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup latency of the key repository against the number of stored keys,
+ * on an in-memory H2 database behind the same pool the server uses. Every
+ * user holds four keys, three of them active. With the indexes in place the
+ * latency should stay flat as the key count grows. byCredentialId also pays
+ * for encoding the credential id it looks up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+
+    private static final int KEYS_PER_USER = 4;
+
+    @Param({"1000", "10000", "100000"})
+    public int keyCount;
+
+    private HikariDataSource dataSource;
+    private Database database;
+    private long[] fkids;
+
+    @Setup
+    public void setUp() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=64");
+        config.setMaximumPoolSize(8);
+        dataSource = new HikariDataSource(config);
+        database = new Database(dataSource);
+
+        fkids = new long[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            String status = (i % KEYS_PER_USER == 0) ? "Inactive" : "Active";
+            fkids[i] = database.addKey(DatabaseTest.newKey("1", username(i), "kh" + i, status), DatabaseTest.credentialId("kh" + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.close();
+    }
+
+    private static String username(int key) {
+        return "user" + (key / KEYS_PER_USER) + "@example.com";
+    }
+
+    @Benchmark
+    public Collection<?> byUsernameStatus() {
+        int key = ThreadLocalRandom.current().nextInt(keyCount);
+        return database.getKeysByUsernameStatus("1", username(key), "Active");
+    }
+
+    @Benchmark
+    public Object byFkid() {
+        int key = ThreadLocalRandom.current().nextInt(keyCount);
+        return database.getByFkid("1", username(key), fkids[key]);
+    }
+
+    @Benchmark
+    public Object byCredentialId() {
+        int key = ThreadLocalRandom.current().nextInt(keyCount);
+        return database.getKeyIdByCredential("1", DatabaseTest.credentialId("kh" + key));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(DatabaseBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,286 @@
+package dal;
+
+import model.FidoKey;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseTest {
+
+    private Database database;
+
+    @BeforeEach
+    void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database = new Database(dataSource);
+    }
+
+    static FidoKey newKey(String icpId, String username, String keyhandle, String status) {
+        FidoKey key = new FidoKey();
+        key.setSid((short) 1);
+        key.setIcpid(icpId);
+        key.setUsername(username);
+        key.setKeyhandleToken(keyhandle);
+        key.setAppid("https://example.com");
+        key.setPublickey("pk-" + keyhandle);
+        key.setTransports((short) 4);
+        key.setCounter(0);
+        key.setFidoProtocol("U2F_V2");
+        key.setCreateDate(new Date());
+        key.setCreateLocation("test");
+        key.setStatus(status);
+        return key;
+    }
+
+    static String credentialId(String keyhandle) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(keyhandle.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Long> fkids(List<FidoKey> keys) {
+        List<Long> fkids = new ArrayList<>();
+        for (FidoKey key : keys) {
+            fkids.add(key.getFkid());
+        }
+        return fkids;
+    }
+
+    @Test
+    void looksUpKeysByUserAndStatus() {
+        database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+        database.addKey(newKey("1", "alice", "kh2", "Inactive"), credentialId("kh2"));
+        database.addKey(newKey("1", "bob", "kh3", "Active"), credentialId("kh3"));
+        database.addKey(newKey("2", "alice", "kh4", "Active"), credentialId("kh4"));
+
+        Collection<FidoKey> active = database.getKeysByUsernameStatus("1", "alice", "Active");
+        assertEquals(1, active.size());
+        FidoKey key = active.iterator().next();
+        assertEquals("kh1", key.getKeyhandle());
+        assertEquals("pk-kh1", key.getPublickey());
+        assertEquals(Short.valueOf((short) 4), key.getTransports());
+        assertNull(key.getAttcid());
+
+        assertEquals(2, database.getByUsername("1", "alice").size());
+        assertTrue(database.getByUsername("3", "alice").isEmpty());
+    }
+
+    @Test
+    void projectsKeysForChallenges() {
+        FidoKey registered = newKey("1", "alice", "kh1", "Active");
+        registered.setUserid("handle");
+        registered.setRegistrationSettings("{\"alg\":-7}");
+        long fkid = database.addKey(registered, credentialId("kh1"));
+        database.addKey(newKey("1", "alice", "kh2", "Inactive"), credentialId("kh2"));
+
+        List<PreauthKeyView> preauth = database.getPreauthKeys("1", "alice", "Active");
+        assertEquals(1, preauth.size());
+        PreauthKeyView view = preauth.get(0);
+        assertEquals(fkid, view.getFkid());
+        assertEquals(1, view.getSid());
+        assertEquals("alice", view.getUsername());
+        assertEquals("kh1", view.getKeyhandle());
+        assertEquals("pk-kh1", view.getPublickey());
+        assertEquals("https://example.com", view.getAppid());
+        assertEquals(Short.valueOf((short) 4), view.getTransports());
+        assertEquals("U2F_V2", view.getFidoProtocol());
+        assertEquals("Active", view.getStatus());
+        assertEquals(fkid, database.getPreauthKeyByFkid("1", "alice", fkid).getFkid());
+
+        List<ExcludeCredentialView> exclude = database.getExcludeCredentials("1", "alice", "Active");
+        assertEquals(1, exclude.size());
+        assertEquals("kh1", exclude.get(0).getKeyhandle());
+        assertEquals("handle", exclude.get(0).getUserid());
+        assertEquals(2, database.getExcludeCredentials("1", "alice").size());
+    }
+
+    @Test
+    void looksUpKeysByFkidAndKeyhandle() {
+        long fkid = database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+
+        FidoKey key = database.getByFkid("1", "alice", fkid);
+        assertNotNull(key);
+        assertEquals(fkid, key.getFkid());
+        assertNull(database.getByFkid("1", "bob", fkid));
+        assertNull(database.getByFkid("2", "alice", fkid));
+
+        assertEquals(fkid, database.getByKeyhandle("1", "kh1").getFkid());
+        assertNull(database.getByKeyhandle("1", "kh2"));
+        assertNull(database.getByKeyhandle("2", "kh1"));
+    }
+
+    @Test
+    void keyhandlesAreUnique() {
+        database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+        assertThrows(IllegalStateException.class, () -> database.addKey(newKey("1", "bob", "kh1", "Active"), credentialId("kh1")));
+    }
+
+    @Test
+    void indexesTheCredentialOfARegisteredKey() {
+        System.setProperty("crypto.property.keyhandle.keys", "1:000102030405060708090a0b0c0d0e0f");
+        System.setProperty("crypto.property.keyhandle.activekey", "1");
+        System.setProperty("crypto.property.aeskey", "5f7bd348cc866581");
+        FidoKey registered = newKey("1", "alice", "unused", "Active");
+        registered.setKeyhandle(credentialId("kh1"));
+
+        long fkid = database.addKey(registered);
+        assertEquals(fkid, database.getKeyIdByCredential("1", credentialId("kh1")).getFkid());
+
+        // A key read back from storage has no credential id to index
+        assertThrows(IllegalStateException.class, () -> database.addKey(newKey("1", "alice", "kh2", "Active")));
+    }
+
+    @Test
+    void resolvesCredentialIds() {
+        long fkid = database.addKey(newKey("1", "alice", "kh12", "Active"), credentialId("kh12"));
+
+        FidoKeyId id = database.getKeyIdByCredential("1", credentialId("kh12"));
+        assertEquals("1-1-alice-" + fkid, id.toString());
+        assertEquals(id.toString(), database.getKeyIdByCredential("1", credentialId("kh12") + "==").toString());
+        assertNull(database.getKeyIdByCredential("1", credentialId("kh2")));
+        assertNull(database.getKeyIdByCredential("1", "not base64url!"));
+        assertNull(database.getKeyIdByCredential("2", credentialId("kh12")));
+
+        assertTrue(database.deleteKey("1", "alice", fkid));
+        assertNull(database.getKeyIdByCredential("1", credentialId("kh12")));
+    }
+
+    @Test
+    void duplicateCredentialIdStoresNothing() {
+        database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+        assertThrows(IllegalStateException.class,
+                () -> database.addKey(newKey("1", "bob", "kh2", "Active"), credentialId("kh1")));
+
+        assertTrue(database.getByUsername("1", "bob").isEmpty());
+        assertNull(database.getByKeyhandle("1", "kh2"));
+        assertNull(database.getByKeyhandle("2", "kh1"));
+    }
+
+    @Test
+    void updatesCounterAndStatus() {
+        long fkid = database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+
+        assertTrue(database.updateCounter("1", "alice", fkid, 42, "Sunnyvale, CA"));
+        assertTrue(database.updateStatus("1", "alice", fkid, "Inactive", "Sunnyvale, CA"));
+        assertFalse(database.updateCounter("1", "bob", fkid, 43, "Sunnyvale, CA"));
+
+        FidoKey key = database.getByFkid("1", "alice", fkid);
+        assertEquals(42, key.getCounter());
+        assertEquals("Inactive", key.getStatus());
+        assertEquals("Sunnyvale, CA", key.getModifyLocation());
+        assertNotNull(key.getModifyDate());
+        assertTrue(database.getKeysByUsernameStatus("1", "alice", "Active").isEmpty());
+    }
+
+    @Test
+    void deletesKeys() {
+        long fkid = database.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+
+        assertFalse(database.deleteKey("1", "bob", fkid));
+        assertTrue(database.deleteKey("1", "alice", fkid));
+        assertFalse(database.deleteKey("1", "alice", fkid));
+        assertNull(database.getByKeyhandle("1", "kh1"));
+    }
+
+    @Test
+    void keyIdRoundTrip() {
+        FidoKeyId id = FidoKeyId.parse("1-42-john-doe@example.com-7");
+        assertEquals(1, id.getSid());
+        assertEquals("42", id.getIcpId());
+        assertEquals("john-doe@example.com", id.getUsername());
+        assertEquals(7, id.getFkid());
+        assertEquals("1-42-john-doe@example.com-7", id.toString());
+
+        assertThrows(IllegalArgumentException.class, () -> FidoKeyId.parse("1-42-7"));
+        assertThrows(IllegalArgumentException.class, () -> FidoKeyId.parse("x-42-john-7"));
+    }
+
+    @Test
+    void pagesThroughKeysInFkidOrder() {
+        List<Long> fkids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fkids.add(database.addKey(newKey("1", "alice", "kh" + i, i % 2 == 0 ? "Active" : "Inactive"), credentialId("kh" + i)));
+        }
+        database.addKey(newKey("1", "bob", "kh9", "Active"), credentialId("kh9"));
+
+        List<Long> first = fkids(database.getKeyPage("1", "alice", 0, 2));
+        assertEquals(fkids.subList(0, 2), first);
+
+        assertEquals(fkids.subList(2, 5), fkids(database.getKeyPage("1", "alice", first.get(1), 10)));
+        assertTrue(database.getKeyPage("1", "alice", fkids.get(4), 10).isEmpty());
+        assertTrue(database.hasKeys("1", "alice"));
+        assertFalse(database.hasKeys("2", "alice"));
+    }
+
+    @Test
+    void pageTokenRoundTrip() {
+        assertEquals(42, KeyPageToken.decode(KeyPageToken.encode(42)));
+        assertEquals(Long.MAX_VALUE, KeyPageToken.decode(KeyPageToken.encode(Long.MAX_VALUE)));
+
+        assertThrows(IllegalArgumentException.class, () -> KeyPageToken.decode("not a token"));
+        assertThrows(IllegalArgumentException.class, () -> KeyPageToken.decode("AAAA"));
+        assertThrows(IllegalArgumentException.class, () -> KeyPageToken.decode(KeyPageToken.encode(0)));
+    }
+
+    @Test
+    void routesTenantsToTheirShards() {
+        Map<String, DataSource> stores = new HashMap<>();
+        for (String shard : Arrays.asList("default", "big")) {
+            JdbcDataSource store = new JdbcDataSource();
+            store.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+            stores.put(shard, store);
+        }
+        Database sharded = new Database(new ShardRouter(Arrays.asList("default", "big"), "2:big,*:default"), stores);
+
+        long small = sharded.addKey(newKey("1", "alice", "kh1", "Active"), credentialId("kh1"));
+        long big = sharded.addKey(newKey("2", "alice", "kh2", "Active"), credentialId("kh2"));
+        sharded.addKey(newKey("2", "bob", "kh3", "Active"), credentialId("kh3"));
+
+        assertEquals(1, sharded.getRowCount("default"));
+        assertEquals(2, sharded.getRowCount("big"));
+        assertEquals("big", sharded.shardFor("2"));
+        assertEquals(small, sharded.getByKeyhandle("1", "kh1").getFkid());
+        assertEquals(big, sharded.getKeyIdByCredential("2", credentialId("kh2")).getFkid());
+        assertNull(sharded.getKeyIdByCredential("1", credentialId("kh2")));
+
+        // One batch, written to each shard
+        assertEquals(2, sharded.updateCounters(Arrays.asList(
+                new CounterUpdate("1", "alice", small, 5, "here"),
+                new CounterUpdate("2", "alice", big, 6, "here"))));
+        assertEquals(5, sharded.getByFkid("1", "alice", small).getCounter());
+        assertEquals(6, sharded.getByFkid("2", "alice", big).getCounter());
+
+        long lookups = sharded.getLookupCount("default");
+        sharded.getPreauthKeys("1", "alice", "Active");
+        assertEquals(lookups + 1, sharded.getLookupCount("default"));
+        assertTrue(sharded.getMeanLookupMicros("default") > 0);
+    }
+
+    @Test
+    void parsesShardTables() {
+        ShardRouter router = new ShardRouter(Arrays.asList("default", "big"), "7:big, *:default");
+        assertEquals("big", router.shardFor("7"));
+        assertEquals("default", router.shardFor("8"));
+
+        assertEquals("100", ShardRouter.perShard("100", "big"));
+        assertEquals("200", ShardRouter.perShard("big:200,*:50", "big"));
+        assertEquals("50", ShardRouter.perShard("big:200,*:50", "default"));
+
+        assertThrows(IllegalArgumentException.class, () -> new ShardRouter(Arrays.asList("default"), "7:big,*:default"));
+        assertThrows(IllegalArgumentException.class, () -> new ShardRouter(Arrays.asList("default"), "7:default"));
+        assertThrows(IllegalArgumentException.class, () -> ShardRouter.perShard("big:200", "default"));
+    }
+}
@@ -0,0 +1,259 @@
+package dal;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FidoKeyCacheTest {
+
+    private JdbcDataSource dataSource;
+    private Database database;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database = new Database(dataSource);
+    }
+
+    @Test
+    void readsThroughOncePerUser() {
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh2", "Inactive"), DatabaseTest.credentialId("kh2"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+
+        List<PreauthKeyView> keys = cache.getActiveKeys("1", "alice");
+        assertEquals(1, keys.size());
+        assertSame(keys, cache.getActiveKeys("1", "alice"));
+        assertThrows(UnsupportedOperationException.class, () -> keys.remove(0));
+        assertTrue(cache.getActiveKeys("1", "bob").isEmpty());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void inactiveKeysFallBackToTheDatabase() {
+        long active = database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        long inactive = database.addKey(DatabaseTest.newKey("1", "alice", "kh2", "Inactive"), DatabaseTest.credentialId("kh2"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+
+        assertSame(cache.getActiveKeys("1", "alice").get(0), cache.getByFkid("1", "alice", active));
+        assertEquals("Inactive", cache.getByFkid("1", "alice", inactive).getStatus());
+        assertNull(cache.getByFkid("1", "alice", inactive + 1));
+    }
+
+    @Test
+    void deactivatedKeysAreNoLongerOffered() {
+        long fkid = database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh2", "Active"), DatabaseTest.credentialId("kh2"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+        assertEquals(2, cache.getActiveKeys("1", "alice").size());
+
+        FidoKeyId keyId = new FidoKeyId((short) 1, "1", "alice", fkid);
+        assertTrue(cache.updateStatus(keyId, FidoKeyCache.INACTIVE_STATUS, "Sunnyvale, CA"));
+
+        List<PreauthKeyView> keys = cache.getActiveKeys("1", "alice");
+        assertEquals(1, keys.size());
+        assertNotEquals(fkid, keys.get(0).getFkid());
+        assertEquals("Inactive", cache.getByFkid("1", "alice", fkid).getStatus());
+
+        assertFalse(cache.updateStatus(new FidoKeyId((short) 1, "2", "alice", fkid), FidoKeyCache.ACTIVE_STATUS, null));
+        assertFalse(cache.updateStatus(new FidoKeyId((short) 1, "1", "bob", fkid), FidoKeyCache.ACTIVE_STATUS, null));
+    }
+
+    @Test
+    void credentialIdsResolveWithinTheirTenant() {
+        long fkid = database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+
+        assertEquals(fkid, cache.getByCredential("1", DatabaseTest.credentialId("kh1")).getFkid());
+        assertNull(cache.getByCredential("2", DatabaseTest.credentialId("kh1")));
+    }
+
+    @Test
+    void counterUpdatesPatchTheSnapshot() {
+        long fkid = database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000);
+        PreauthKeyView before = cache.getActiveKeys("1", "alice").get(0);
+
+        assertTrue(cache.updateCounter("1", "alice", fkid, 7, "here"));
+        assertTrue(cache.updateCounter("1", "alice", fkid, 5, "here"));
+
+        assertEquals(0, before.getCounter());
+        assertEquals(7, cache.getByFkid("1", "alice", fkid).getCounter());
+        assertEquals(1, cache.getMissCount());
+        assertFalse(cache.updateCounter("1", "bob", fkid, 8, "here"));
+    }
+
+    @Test
+    void snapshotsExpire() throws InterruptedException {
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 50);
+
+        cache.getActiveKeys("1", "alice");
+        Thread.sleep(100);
+        cache.getActiveKeys("1", "alice");
+
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    void registrationDuringALoadIsNotLost() throws Exception {
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        Database slow = new Database(dataSource) {
+            @Override
+            public List<PreauthKeyView> getPreauthKeys(String icpId, String username, String status) {
+                List<PreauthKeyView> keys = super.getPreauthKeys(icpId, username, status);
+                if (first.getAndSet(false)) {
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return keys;
+            }
+        };
+        FidoKeyCache cache = new FidoKeyCache(slow, 100, 60_000);
+
+        // An authenticate loads the snapshot while a register commits a new key
+        Thread authenticate = new Thread(() -> cache.getActiveKeys("1", "alice"));
+        authenticate.start();
+        loading.await();
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh2", "Active"), DatabaseTest.credentialId("kh2"));
+        Thread register = new Thread(() -> cache.invalidate("1", "alice"));
+        register.start();
+        Thread.sleep(50);
+        release.countDown();
+        authenticate.join();
+        register.join();
+
+        assertEquals(2, cache.getActiveKeys("1", "alice").size());
+    }
+
+    @Test
+    void unknownUsersStopReachingTheDatabase() {
+        AtomicInteger queries = new AtomicInteger();
+        Database counting = new Database(dataSource) {
+            @Override
+            public List<PreauthKeyView> getPreauthKeys(String icpId, String username, String status) {
+                queries.incrementAndGet();
+                return super.getPreauthKeys(icpId, username, status);
+            }
+        };
+        FidoKeyCache cache = new FidoKeyCache(counting, 100, 60_000, new UnknownUserCache(100, 60_000, 2));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.getActiveKeys("1", "mallory").isEmpty());
+        }
+        assertTrue(cache.getActiveKeys("1", "eve").isEmpty());
+
+        assertEquals(3, queries.get());
+        assertEquals(3, cache.getUnknownHitCount());
+        assertEquals(3, cache.getUnknownMissCount());
+        assertEquals(1, cache.getUnknownAdmissionCount());
+        assertEquals(1, cache.getUnknownSize());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void registrationClearsAnUnknownUser() {
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000, new UnknownUserCache(100, 60_000, 1));
+        assertTrue(cache.getActiveKeys("1", "alice").isEmpty());
+        assertEquals(1, cache.getUnknownSize());
+
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        assertTrue(cache.getActiveKeys("1", "alice").isEmpty());
+        cache.invalidate("1", "alice");
+
+        assertEquals(1, cache.getActiveKeys("1", "alice").size());
+        assertEquals(0, cache.getUnknownSize());
+    }
+
+    @Test
+    void unknownUsersExpire() throws InterruptedException {
+        FidoKeyCache cache = new FidoKeyCache(database, 100, 60_000, new UnknownUserCache(100, 50, 1));
+        cache.getActiveKeys("1", "alice");
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        Thread.sleep(100);
+
+        assertEquals(1, cache.getActiveKeys("1", "alice").size());
+    }
+
+    @Test
+    void registrationDuringAnEmptyLoadIsNotLost() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        Database slow = new Database(dataSource) {
+            @Override
+            public List<PreauthKeyView> getPreauthKeys(String icpId, String username, String status) {
+                List<PreauthKeyView> keys = super.getPreauthKeys(icpId, username, status);
+                if (first.getAndSet(false)) {
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return keys;
+            }
+        };
+        FidoKeyCache cache = new FidoKeyCache(slow, 100, 60_000, new UnknownUserCache(100, 60_000, 1));
+
+        // A preauthenticate finds no keys while a register commits the first one
+        Thread preauthenticate = new Thread(() -> cache.getActiveKeys("1", "alice"));
+        preauthenticate.start();
+        loading.await();
+        database.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        Thread register = new Thread(() -> cache.invalidate("1", "alice"));
+        register.start();
+        Thread.sleep(50);
+        release.countDown();
+        preauthenticate.join();
+        register.join();
+
+        assertEquals(1, cache.getActiveKeys("1", "alice").size());
+    }
+
+    @Test
+    void eachShardHasItsOwnCache() {
+        Map<String, DataSource> stores = new HashMap<>();
+        stores.put("default", dataSource);
+        JdbcDataSource big = new JdbcDataSource();
+        big.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        stores.put("big", big);
+        Database sharded = new Database(new ShardRouter(Arrays.asList("default", "big"), "2:big,*:default"), stores);
+        sharded.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        sharded.addKey(DatabaseTest.newKey("2", "alice", "kh2", "Active"), DatabaseTest.credentialId("kh2"));
+        FidoKeyCache cache = new FidoKeyCache(sharded, 100, 60_000);
+
+        assertEquals(1, cache.getActiveKeys("1", "alice").size());
+        assertEquals(1, cache.getActiveKeys("2", "alice").size());
+        cache.getActiveKeys("2", "alice");
+
+        assertEquals(1, cache.size("default"));
+        assertEquals(1, cache.size("big"));
+        assertEquals(0.5, cache.getHitRate("big"));
+        assertEquals(2, cache.size());
+    }
+}
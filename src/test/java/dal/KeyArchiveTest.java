@@ -0,0 +1,151 @@
+package dal;
+
+import crypto.KeyhandleSealer;
+import model.FidoKey;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyArchiveTest {
+
+    private static final String APPID = "https://example.com";
+    private static final KeyhandleSealer SEALER = sealer("0123456789abcdef");
+
+    private static KeyhandleSealer sealer(String key) {
+        return new KeyhandleSealer(Collections.singletonMap(1, key.getBytes(StandardCharsets.US_ASCII)), 1,
+                "5f7bd348cc866581".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Database newDatabase() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        return new Database(dataSource);
+    }
+
+    private static String export(Database database, String icpId) {
+        StringWriter out = new StringWriter();
+        new KeyArchive(database, SEALER).export(icpId, out, 2);
+        return out.toString();
+    }
+
+    @Test
+    void movesKeysWithTheirIds() throws Exception {
+        Database source = newDatabase();
+        FidoKey key = DatabaseTest.newKey("1", "alice", "kh1", "Active");
+        key.setRegistrationSettings("{\"alg\":-7}");
+        long fkid = source.addKey(key, DatabaseTest.credentialId("kh1"));
+        for (int i = 2; i <= 5; i++) {
+            source.addKey(DatabaseTest.newKey("1", "user" + i, "kh" + i, "Active"), DatabaseTest.credentialId("kh" + i));
+        }
+        source.addKey(DatabaseTest.newKey("2", "bob", "kh9", "Active"), DatabaseTest.credentialId("kh9"));
+        String lines = export(source, "1");
+        assertEquals(5, lines.split("\n").length);
+
+        Database target = newDatabase();
+        long imported = new KeyArchive(target, SEALER).importKeys(new BufferedReader(new StringReader(lines)), null, 3, 2, true);
+
+        assertEquals(5, imported);
+        FidoKey copy = target.getByFkid("1", "alice", fkid);
+        assertEquals("kh1", copy.getKeyhandle());
+        assertEquals("{\"alg\":-7}", copy.getRegistrationSettings());
+        assertEquals(key.getCreateDate(), copy.getCreateDate());
+        assertEquals(fkid, target.getKeyIdByCredential("1", DatabaseTest.credentialId("kh1")).getFkid());
+        assertEquals(1, target.getPreauthKeys("1", "user5", "Active").size());
+        assertFalse(target.hasKeys("2", "bob"));
+        assertEquals(lines, export(target, null));
+
+        // New keys are numbered after the imported ones
+        assertTrue(target.addKey(DatabaseTest.newKey("1", "carol", "kh8", "Active"), DatabaseTest.credentialId("kh8")) > 5);
+    }
+
+    @Test
+    void resumesFromTheCheckpoint(@TempDir Path dir) throws Exception {
+        Database source = newDatabase();
+        for (int i = 1; i <= 6; i++) {
+            source.addKey(DatabaseTest.newKey("1", "user" + i, "kh" + i, "Active"), DatabaseTest.credentialId("kh" + i));
+        }
+        String lines = export(source, null);
+        Path checkpoint = dir.resolve("keys.progress");
+        Files.write(checkpoint, "4".getBytes(StandardCharsets.US_ASCII));
+
+        Database target = newDatabase();
+        long imported = new KeyArchive(target, SEALER).importKeys(new BufferedReader(new StringReader(lines)), checkpoint, 2, 1, false);
+
+        assertEquals(2, imported);
+        assertFalse(target.hasKeys("1", "user4"));
+        assertTrue(target.hasKeys("1", "user5"));
+        assertEquals("6", new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void importingTwiceReplacesKeys() throws Exception {
+        Database source = newDatabase();
+        long fkid = source.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        String lines = export(source, null);
+
+        Database target = newDatabase();
+        KeyArchive archive = new KeyArchive(target, SEALER);
+        archive.importKeys(new BufferedReader(new StringReader(lines)), null, 1, 10, false);
+        source.updateCounter("1", "alice", fkid, 9, "here");
+        archive.importKeys(new BufferedReader(new StringReader(export(source, null))), null, 1, 10, false);
+
+        assertEquals(1, target.getRowCount(ShardRouter.DEFAULT_SHARD));
+        assertEquals(9, target.getByFkid("1", "alice", fkid).getCounter());
+    }
+
+    @Test
+    void refusesToOverwriteAnotherTenantsKey() throws Exception {
+        Database source = newDatabase();
+        long fkid = source.addKey(DatabaseTest.newKey("1", "alice", "kh1", "Active"), DatabaseTest.credentialId("kh1"));
+        Database target = newDatabase();
+        assertEquals(fkid, target.addKey(DatabaseTest.newKey("2", "bob", "kh2", "Active"), DatabaseTest.credentialId("kh2")));
+
+        KeyArchive archive = new KeyArchive(target, SEALER);
+        assertThrows(IllegalStateException.class, () -> archive.importKeys(
+                new BufferedReader(new StringReader(export(source, null))), null, 1, 10, false));
+
+        assertEquals("kh2", target.getByFkid("2", "bob", fkid).getKeyhandle());
+        assertEquals(fkid, target.getKeyIdByCredential("2", DatabaseTest.credentialId("kh2")).getFkid());
+        assertFalse(target.hasKeys("1", "alice"));
+    }
+
+    @Test
+    void refusesKeyhandlesSealedUnderAnotherKeyRing() throws Exception {
+        Database source = newDatabase();
+        FidoKey key = DatabaseTest.newKey("1", "alice", sealer("fedcba9876543210").seal("1", APPID, "kh1"), "Active");
+        key.setAppid(APPID);
+        source.addKey(key, DatabaseTest.credentialId("kh1"));
+        String lines = export(source, null);
+
+        Database target = newDatabase();
+        assertThrows(IllegalStateException.class, () -> new KeyArchive(target, SEALER)
+                .importKeys(new BufferedReader(new StringReader(lines)), null, 1, 10, false));
+        assertFalse(target.hasKeys("1", "alice"));
+
+        FidoKey shared = DatabaseTest.newKey("1", "carol", SEALER.seal("1", APPID, "kh2"), "Active");
+        shared.setAppid(APPID);
+        source.addKey(shared, DatabaseTest.credentialId("kh2"));
+        Database other = newDatabase();
+        new KeyArchive(other, SEALER).importKeys(new BufferedReader(new StringReader(export(source, null)
+                .substring(lines.length()))), null, 1, 10, false);
+        assertTrue(other.hasKeys("1", "carol"));
+    }
+
+    @Test
+    void rejectsLinesThatAreNotKeys() {
+        Database target = newDatabase();
+        assertThrows(IllegalArgumentException.class, () -> new KeyArchive(target, SEALER)
+                .importKeys(new BufferedReader(new StringReader("{\"fkid\":1}\n")), null, 1, 10, false));
+    }
+}
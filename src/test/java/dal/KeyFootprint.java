@@ -0,0 +1,80 @@
+package dal;
+
+import model.FidoKey;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Retained heap of a cache's worth of keys, as entities and as the compact
+ * PreauthKeyView the FidoKeyCache holds, measured with JOL. Keys carry values
+ * of realistic size: a 144 byte encrypted keyhandle token and a 91 byte DER
+ * public key, both base64, and registration settings on the entity.
+ * Shared interned strings count towards the first key that holds them only.
+ */
+public class KeyFootprint {
+
+    private static final Random RANDOM = new Random(1);
+
+    static FidoKey newKey(long fkid) {
+        FidoKey key = new FidoKey();
+        key.setFkid(fkid);
+        key.setSid((short) 1);
+        key.setIcpid("1");
+        key.setUsername("user" + fkid + "@example.com");
+        key.setUserid(base64url(32));
+        key.setKeyhandleToken(Base64.getEncoder().encodeToString(bytes(144)));
+        key.setAppid("https://example.com/app-id.json");
+        key.setPublickey(Base64.getEncoder().encodeToString(bytes(91)));
+        key.setTransports((short) 4);
+        key.setAttsid((short) 1);
+        key.setAttcid(1);
+        key.setCounter(12);
+        key.setFidoVersion("U2F_V2");
+        key.setFidoProtocol("U2F_V2");
+        key.setAaguid("00000000-0000-0000-0000-000000000000");
+        key.setRegistrationSettings("{\"alg\":\"ES256\",\"up\":true,\"uv\":false,\"rk\":false,\"attestation\":\"none\"}");
+        key.setRegistrationSettingsVersion(1);
+        key.setCreateDate(new Date());
+        key.setCreateLocation("Cupertino");
+        key.setModifyDate(new Date());
+        key.setModifyLocation("Cupertino");
+        key.setStatus("Active");
+        key.setSignatureKeytype("EC");
+        key.setSignature(base64url(72));
+        return key;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String base64url(int length) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes(length));
+    }
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+        List<FidoKey> entities = new ArrayList<>(count);
+        List<PreauthKeyView> views = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            FidoKey key = newKey(i);
+            entities.add(key);
+            views.add(PreauthKeyView.of(key));
+        }
+
+        GraphLayout entityLayout = GraphLayout.parseInstance(entities);
+        GraphLayout viewLayout = GraphLayout.parseInstance(views);
+        System.out.println(GraphLayout.parseInstance(entities.get(0)).toFootprint());
+        System.out.println(GraphLayout.parseInstance(views.get(0)).toFootprint());
+        System.out.printf("%d keys: entities %d bytes (%d per key), views %d bytes (%d per key)%n", count,
+                entityLayout.totalSize(), entityLayout.totalSize() / count,
+                viewLayout.totalSize(), viewLayout.totalSize() / count);
+    }
+}
@@ -0,0 +1,124 @@
+package dal;
+
+import model.FidoKey;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a user's keys for challenge generation as full FidoKeys against the
+ * PreauthKeyView and ExcludeCredentialView projections, for a user with many
+ * registered FIDO2 keys. Run with the gc profiler (-prof gc) to see
+ * allocation per call; characters read per call are printed at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyProjectionBenchmark {
+
+    @Param({"10", "100"})
+    public int keysPerUser;
+
+    private Database database;
+
+    @Setup
+    public void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database = new Database(dataSource);
+
+        String registrationSettings = repeat('r', 4096);
+        String signature = repeat('s', 512);
+        for (int i = 0; i < keysPerUser; i++) {
+            FidoKey key = DatabaseTest.newKey("1", "johndoe@example.com", "kh" + i + repeat('k', 160), "Active");
+            key.setPublickey(repeat('p', 120));
+            key.setUserid("Wq8E7Zm3rQpSd1C5Lr9kXg");
+            key.setFidoProtocol("FIDO2_0");
+            key.setRegistrationSettings(registrationSettings);
+            key.setRegistrationSettingsVersion(1);
+            key.setSignature(signature);
+            key.setSignatureKeytype("EC");
+            key.setModifyLocation("Sunnyvale, CA");
+            database.addKey(key, DatabaseTest.credentialId("kh" + i));
+        }
+
+        System.out.println();
+        System.out.println("chars per call: full=" + fullChars(fullKeys())
+                + " preauth=" + preauthChars(preauthViews())
+                + " exclude=" + excludeChars(excludeViews()));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int length(String value) {
+        return (value == null) ? 0 : value.length();
+    }
+
+    private static long fullChars(Collection<FidoKey> keys) {
+        long chars = 0;
+        for (FidoKey key : keys) {
+            chars += length(key.getIcpid()) + length(key.getUsername()) + length(key.getUserid())
+                    + length(key.getKeyhandle()) + length(key.getAppid()) + length(key.getPublickey())
+                    + length(key.getFidoVersion()) + length(key.getFidoProtocol()) + length(key.getAaguid())
+                    + length(key.getRegistrationSettings()) + length(key.getCreateLocation())
+                    + length(key.getModifyLocation()) + length(key.getStatus())
+                    + length(key.getSignatureKeytype()) + length(key.getSignature());
+        }
+        return chars;
+    }
+
+    private static long preauthChars(List<PreauthKeyView> keys) {
+        long chars = 0;
+        for (PreauthKeyView key : keys) {
+            chars += length(key.getUsername()) + length(key.getKeyhandle()) + length(key.getPublickey())
+                    + length(key.getAppid()) + length(key.getFidoProtocol()) + length(key.getStatus());
+        }
+        return chars;
+    }
+
+    private static long excludeChars(List<ExcludeCredentialView> keys) {
+        long chars = 0;
+        for (ExcludeCredentialView key : keys) {
+            chars += length(key.getKeyhandle()) + length(key.getAppid()) + length(key.getFidoProtocol())
+                    + length(key.getUserid());
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public Collection<FidoKey> fullKeys() {
+        return database.getKeysByUsernameStatus("1", "johndoe@example.com", "Active");
+    }
+
+    @Benchmark
+    public List<PreauthKeyView> preauthViews() {
+        return database.getPreauthKeys("1", "johndoe@example.com", "Active");
+    }
+
+    @Benchmark
+    public List<ExcludeCredentialView> excludeViews() {
+        return database.getExcludeCredentials("1", "johndoe@example.com", "Active");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(KeyProjectionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
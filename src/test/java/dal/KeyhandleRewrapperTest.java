@@ -0,0 +1,87 @@
+package dal;
+
+import crypto.CryptoUtil;
+import crypto.KeyhandleSealer;
+import model.FidoKey;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyhandleRewrapperTest {
+
+    private static final String LEGACY_KEY = "5f7bd348cc866581";
+    private static final String APPID = "https://example.com";
+
+    static {
+        // Read by CryptoUtil, which wrote the legacy tokens
+        System.setProperty("crypto.property.aeskey", LEGACY_KEY);
+    }
+
+    private Database database;
+
+    @BeforeEach
+    void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        database = new Database(dataSource);
+    }
+
+    private static KeyhandleSealer sealer(int activeKeyId) {
+        Map<Integer, byte[]> keys = new HashMap<>();
+        keys.put(1, "0123456789abcdef".getBytes(StandardCharsets.US_ASCII));
+        keys.put(2, "fedcba9876543210".getBytes(StandardCharsets.US_ASCII));
+        return new KeyhandleSealer(keys, activeKeyId, LEGACY_KEY.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void addKey(String username, String token, String keyhandle) {
+        FidoKey key = DatabaseTest.newKey("1", username, token, "Active");
+        database.addKey(key, DatabaseTest.credentialId(keyhandle));
+    }
+
+    @Test
+    void movesLegacyAndOlderTokensToTheActiveKey() throws Exception {
+        KeyhandleSealer old = sealer(1);
+        for (int i = 0; i < 250; i++) {
+            String keyhandle = "kh" + i;
+            addKey("user" + i, (i % 2 == 0) ? CryptoUtil.encryptAES("1" + APPID + keyhandle) : old.seal("1", APPID, keyhandle),
+                    keyhandle);
+        }
+        addKey("broken", "$9$AAAA", "broken");
+
+        KeyhandleSealer sealer = sealer(2);
+        KeyhandleRewrapper rewrapper = new KeyhandleRewrapper(database, sealer, 1_000_000);
+        assertEquals(250, rewrapper.rewrapAll());
+        assertEquals(1, rewrapper.getFailureCount());
+        assertTrue(rewrapper.isDone());
+
+        List<FidoKey> stale = database.getStaleKeyhandles(ShardRouter.DEFAULT_SHARD, sealer.getActivePrefix(), 0, 1000);
+        assertEquals(1, stale.size());
+        assertEquals("broken", stale.get(0).getUsername());
+
+        for (int i = 0; i < 250; i += 49) {
+            FidoKey key = database.getByUsername("1", "user" + i).iterator().next();
+            assertTrue(sealer.isCurrent(key.getKeyhandle()));
+            assertEquals("kh" + i, sealer.unseal("1", APPID, key.getKeyhandle()));
+            // The keyhandle hash follows the new token
+            assertEquals(key.getFkid(), database.getByKeyhandle("1", key.getKeyhandle()).getFkid());
+        }
+    }
+
+    @Test
+    void leavesATokenChangedSinceItWasRead() throws Exception {
+        addKey("alice", CryptoUtil.encryptAES("1" + APPID + "kh1"), "kh1");
+        KeyhandleSealer sealer = sealer(2);
+        FidoKey read = database.getStaleKeyhandles(ShardRouter.DEFAULT_SHARD, sealer.getActivePrefix(), 0, 10).get(0);
+
+        assertTrue(database.replaceKeyhandle(read, sealer.rewrap("1", APPID, read.getKeyhandle())));
+        assertFalse(database.replaceKeyhandle(read, sealer.rewrap("1", APPID, read.getKeyhandle())));
+    }
+}
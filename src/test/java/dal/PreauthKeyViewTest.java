@@ -0,0 +1,86 @@
+package dal;
+
+import crypto.KeyhandleSealer;
+import model.FidoKey;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreauthKeyViewTest {
+
+    @Test
+    void packedValuesReadBackUnchanged() {
+        for (String value : new String[] {
+                "q83vEjRWeJA=", "q83vEjRWeJA_-w==", "q83vEjRWeJA_-w", "kh1", "QR==", "not base64!", "ünïcode", "",
+                "$1$q83vEjRWeJA", "$300$q83vEjRWeJA", "$1$", "$x$q83v", "$1$q83vEjRWeJA="}) {
+            assertEquals(value, PreauthKeyView.unpack(PreauthKeyView.pack(value)), value);
+        }
+        assertNull(PreauthKeyView.unpack(PreauthKeyView.pack(null)));
+
+        // Decoded base64 plus one byte for the encoding
+        assertEquals(9, PreauthKeyView.pack("q83vEjRWeJA=").length);
+    }
+
+    @Test
+    void sealedKeyhandlesPackAsBinary() {
+        KeyhandleSealer sealer = new KeyhandleSealer(
+                Collections.singletonMap(7, new byte[16]), 7, new byte[16]);
+        String token = sealer.seal("1", "https://example.com", "q83vEjRWeJA_-w");
+
+        byte[] packed = PreauthKeyView.pack(token);
+        assertEquals(token, PreauthKeyView.unpack(packed));
+        // Encoding and key id bytes plus the sealed bytes the base64 stands for
+        assertEquals(2 + (token.length() - 3) * 3 / 4, packed.length);
+        assertTrue(packed.length < token.length());
+    }
+
+    @Test
+    void viewKeepsTheColumnsOfTheEntity() {
+        FidoKey key = KeyFootprint.newKey(42);
+        PreauthKeyView view = PreauthKeyView.of(key);
+
+        assertEquals(key.getFkid(), view.getFkid());
+        assertEquals(key.getKeyhandle(), view.getKeyhandle());
+        assertEquals(key.getPublickey(), view.getPublickey());
+        assertSame(key.getAppid().intern(), view.getAppid());
+        assertSame(key.getIcpid().intern(), view.getIcpid());
+        assertEquals(key.getCreateDate(), view.getCreateDate());
+        assertEquals(key.getModifyDate(), view.getModifyDate());
+        assertEquals(key.getTransports(), view.getTransports());
+        PreauthKeyView bare = new PreauthKeyView(1, (short) 1, "1", "alice", "kh1", null, null, null, null, 0, "Active", null, null);
+        assertNull(bare.getTransports());
+        assertNull(bare.getCreateDate());
+        assertNull(bare.getPublickey());
+        assertEquals(7, view.withCounter(7).getCounter());
+        assertEquals(key.getKeyhandle(), view.withCounter(7).getKeyhandle());
+    }
+
+    @Test
+    void convertsBackToTheEntity() {
+        FidoKey key = KeyFootprint.newKey(42);
+        FidoKey back = PreauthKeyView.of(key).toFidoKey();
+
+        assertEquals(key.getFkid(), back.getFkid());
+        assertEquals(key.getIcpid(), back.getIcpid());
+        assertEquals(key.getUsername(), back.getUsername());
+        assertEquals(key.getKeyhandle(), back.getKeyhandle());
+        assertEquals(key.getPublickey(), back.getPublickey());
+        assertEquals(key.getTransports(), back.getTransports());
+        assertEquals(key.getCounter(), back.getCounter());
+        assertEquals(key.getStatus(), back.getStatus());
+        assertEquals(key.getCreateDate(), back.getCreateDate());
+    }
+
+    @Test
+    void viewIsAFractionOfTheEntity() {
+        FidoKey key = KeyFootprint.newKey(42);
+        PreauthKeyView view = PreauthKeyView.of(key);
+
+        long entity = GraphLayout.parseInstance(key).totalSize();
+        long compact = GraphLayout.parseInstance(view).totalSize();
+        assertTrue(compact * 2 < entity, "view " + compact + " bytes, entity " + entity + " bytes");
+    }
+}
@@ -0,0 +1,94 @@
+package dal;
+
+import crypto.VerificationKey;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of verifying a U2F assertion signature (P-256) and an RSA-2048 one
+ * with the public key decoded for every verification (cold) and taken from a
+ * warm PublicKeyCache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublicKeyCacheBenchmark {
+
+    private final byte[] data = new byte[69];
+
+    private String ecKey;
+    private byte[] ecSignature;
+    private String rsaKey;
+    private byte[] rsaSignature;
+    private PublicKeyCache cache;
+
+    @Setup
+    public void setUp() throws Exception {
+        Arrays.fill(data, (byte) 7);
+
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair ecPair = ec.generateKeyPair();
+        byte[] spki = ecPair.getPublic().getEncoded();
+        ecKey = Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOfRange(spki, spki.length - 65, spki.length));
+        ecSignature = sign(ecPair, "SHA256withECDSA");
+
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        KeyPair rsaPair = rsa.generateKeyPair();
+        rsaKey = Base64.getEncoder().encodeToString(rsaPair.getPublic().getEncoded());
+        rsaSignature = sign(rsaPair, "SHA256withRSA");
+
+        cache = new PublicKeyCache(1000);
+        cache.get((short) 1, "1", 1, ecKey);
+        cache.get((short) 1, "1", 2, rsaKey);
+    }
+
+    private byte[] sign(KeyPair pair, String algorithm) throws Exception {
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(pair.getPrivate());
+        signer.update(data);
+        return signer.sign();
+    }
+
+    @Benchmark
+    public boolean ecCold() throws Exception {
+        return VerificationKey.decode(ecKey).verify(data, ecSignature);
+    }
+
+    @Benchmark
+    public boolean ecWarm() throws Exception {
+        return cache.get((short) 1, "1", 1, ecKey).verify(data, ecSignature);
+    }
+
+    @Benchmark
+    public boolean rsaCold() throws Exception {
+        return VerificationKey.decode(rsaKey).verify(data, rsaSignature);
+    }
+
+    @Benchmark
+    public boolean rsaWarm() throws Exception {
+        return cache.get((short) 1, "1", 2, rsaKey).verify(data, rsaSignature);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PublicKeyCacheBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,91 @@
+package dal;
+
+import crypto.VerificationKey;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PublicKeyCacheTest {
+
+    static KeyPair ecKeyPair(String curve) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curve));
+        return generator.generateKeyPair();
+    }
+
+    static byte[] sign(KeyPair pair, String algorithm, byte[] data) throws Exception {
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(pair.getPrivate());
+        signer.update(data);
+        return signer.sign();
+    }
+
+    // The uncompressed point, as U2F keys are stored
+    static String rawPoint(ECPublicKey key) {
+        byte[] spki = key.getEncoded();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOfRange(spki, spki.length - 65, spki.length));
+    }
+
+    @Test
+    void decodesStoredFormsWithTheirAlgorithm() throws Exception {
+        byte[] data = "signed".getBytes(StandardCharsets.UTF_8);
+
+        KeyPair p256 = ecKeyPair("secp256r1");
+        VerificationKey u2f = VerificationKey.decode(rawPoint((ECPublicKey) p256.getPublic()));
+        assertEquals("SHA256withECDSA", u2f.getSignatureAlgorithm());
+        assertTrue(u2f.verify(data, sign(p256, "SHA256withECDSA", data)));
+
+        KeyPair p384 = ecKeyPair("secp384r1");
+        VerificationKey spki = VerificationKey.decode(Base64.getEncoder().encodeToString(p384.getPublic().getEncoded()));
+        assertEquals("SHA384withECDSA", spki.getSignatureAlgorithm());
+        assertTrue(spki.verify(data, sign(p384, "SHA384withECDSA", data)));
+        assertFalse(spki.verify("other".getBytes(StandardCharsets.UTF_8), sign(p384, "SHA384withECDSA", data)));
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair rsa = generator.generateKeyPair();
+        VerificationKey rsaKey = VerificationKey.decode(Base64.getEncoder().encodeToString(rsa.getPublic().getEncoded()));
+        assertEquals("SHA256withRSA", rsaKey.getSignatureAlgorithm());
+        assertTrue(rsaKey.verify(data, sign(rsa, "SHA256withRSA", data)));
+
+        assertThrows(InvalidKeySpecException.class, () -> VerificationKey.decode("not a key!"));
+        assertThrows(InvalidKeySpecException.class, () -> VerificationKey.decode("AAAA"));
+    }
+
+    @Test
+    void decodesOncePerKeyUntilInvalidated() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(100);
+        String encoded = rawPoint((ECPublicKey) ecKeyPair("secp256r1").getPublic());
+
+        VerificationKey first = cache.get((short) 1, "1", 7, encoded);
+        assertSame(first, cache.get((short) 1, "1", 7, encoded));
+        assertNotSame(first, cache.get((short) 1, "2", 7, encoded));
+        assertEquals(1, cache.getHitCount());
+
+        cache.invalidate(new FidoKeyId((short) 1, "1", "alice", 7));
+        assertNotSame(first, cache.get((short) 1, "1", 7, encoded));
+    }
+
+    @Test
+    void decodesAgainWhenTheStoredKeyChanged() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(100);
+        String before = rawPoint((ECPublicKey) ecKeyPair("secp256r1").getPublic());
+        String after = rawPoint((ECPublicKey) ecKeyPair("secp256r1").getPublic());
+
+        cache.get((short) 1, "1", 7, before);
+        VerificationKey replaced = cache.get((short) 1, "1", 7, after);
+
+        assertEquals(after, replaced.getEncoded());
+        assertSame(replaced, cache.get((short) 1, "1", 7, after));
+    }
+}
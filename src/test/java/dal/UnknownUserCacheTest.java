@@ -0,0 +1,66 @@
+package dal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnknownUserCacheTest {
+
+    @Test
+    void admitsAfterRepeatedMisses() {
+        UnknownUserCache unknown = new UnknownUserCache(1000, 60_000, 3);
+
+        unknown.recordMiss("1/mallory");
+        unknown.recordMiss("1/mallory");
+        assertFalse(unknown.contains("1/mallory"));
+        unknown.recordMiss("1/mallory");
+        assertTrue(unknown.contains("1/mallory"));
+        assertFalse(unknown.contains("1/eve"));
+
+        unknown.invalidate("1/mallory");
+        assertFalse(unknown.contains("1/mallory"));
+        assertEquals(1, unknown.getHitCount());
+        assertEquals(1, unknown.getAdmissionCount());
+    }
+
+    @Test
+    void usernamesTriedOnceAreNotAdmitted() {
+        UnknownUserCache unknown = new UnknownUserCache(1000, 60_000, 2);
+        for (int i = 0; i < 1000; i++) {
+            unknown.recordMiss("1/user" + i);
+        }
+
+        // Conservative update keeps collisions rare at the configured size
+        assertTrue(unknown.getAdmissionCount() < 10, "admitted " + unknown.getAdmissionCount());
+    }
+
+    @Test
+    void invalidateAllForgetsCounts() {
+        UnknownUserCache unknown = new UnknownUserCache(1000, 60_000, 2);
+        unknown.recordMiss("1/mallory");
+        unknown.invalidateAll();
+        unknown.recordMiss("1/mallory");
+
+        assertFalse(unknown.contains("1/mallory"));
+    }
+
+    @Test
+    void countsAreHalvedAfterTenMissesPerTrackedUser() {
+        UnknownUserCache unknown = new UnknownUserCache(1, 60_000, 3);
+        unknown.recordMiss("1/mallory");
+        unknown.recordMiss("1/mallory");
+        for (int i = 0; i < 8; i++) {
+            unknown.recordMiss("1/eve");
+        }
+        unknown.recordMiss("1/mallory");
+
+        assertFalse(unknown.contains("1/mallory"));
+        assertTrue(unknown.contains("1/eve"));
+    }
+
+    @Test
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new UnknownUserCache(0, 60_000, 2));
+        assertThrows(IllegalArgumentException.class, () -> new UnknownUserCache(10, 60_000, 16));
+    }
+}
@@ -0,0 +1,139 @@
+package replication;
+
+import org.junit.jupiter.api.Test;
+import session.DigestKey;
+import session.SessionStore;
+import session.SessionType;
+import session.UserSessionInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationPipelineTest {
+
+    @Test
+    void publishedChangesReachThePeerInBatches() {
+        SessionStore peer = new SessionStore(60_000, 1_000);
+        LoopbackTransport transport = new LoopbackTransport(peer);
+        ReplicationPipeline pipeline = new ReplicationPipeline(transport, 10_000, 64, 5, true, 5_000);
+        try {
+            long seq = 0;
+            for (int i = 0; i < 1_000; i++) {
+                seq = pipeline.add(key("key" + i), new UserSessionInfo("user" + i, "nonce" + i, SessionType.REGISTER, "", ""));
+            }
+            for (int i = 0; i < 1_000; i += 2) {
+                seq = pipeline.remove(key("key" + i));
+            }
+            assertTrue(pipeline.awaitAck(seq));
+
+            assertEquals(500, peer.size());
+            assertNull(peer.get(key("key0")));
+            assertEquals("user1", peer.get(key("key1")).getUsername());
+            assertEquals(seq, pipeline.getAckedSeq());
+            assertEquals(0, pipeline.getQueueDepth());
+            assertTrue(transport.getReceivedCount() < 1_500);
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void failedBatchesAreRetriedInOrder() {
+        SessionStore peer = new SessionStore(60_000, 1_000);
+        LoopbackTransport loopback = new LoopbackTransport(peer);
+        AtomicInteger attempts = new AtomicInteger();
+        ReplicationTransport flaky = batch -> {
+            if (attempts.incrementAndGet() <= 2) {
+                throw new IOException("peer unavailable");
+            }
+            loopback.send(batch);
+        };
+        ReplicationPipeline pipeline = new ReplicationPipeline(flaky, 100, 64, 0, true, 5_000);
+        try {
+            long seq = pipeline.add(key("key"), new UserSessionInfo("user", "nonce", SessionType.AUTHENTICATE, "", ""));
+            assertTrue(pipeline.awaitAck(seq));
+            assertEquals(2, pipeline.getFailureCount());
+            assertNotNull(peer.get(key("key")));
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void fullQueueDropsInsteadOfBlocking() throws InterruptedException {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ReplicationTransport stuck = batch -> {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        ReplicationPipeline pipeline = new ReplicationPipeline(stuck, 2, 1, 0, true, 50);
+        try {
+            long first = pipeline.remove(key("a"));
+            sending.await();
+            pipeline.remove(key("b"));
+            pipeline.remove(key("c"));
+
+            assertEquals(-1, pipeline.remove(key("d")));
+            assertEquals(1, pipeline.getDroppedCount());
+            assertEquals(2, pipeline.getQueueDepth());
+            assertFalse(pipeline.awaitAck(first));
+            assertFalse(pipeline.awaitAck(-1));
+            assertTrue(pipeline.awaitAck(0));
+            assertTrue(pipeline.getLagMillis() >= 50);
+        } finally {
+            release.countDown();
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void dropsAreOnlyFailuresWhenWaitingForAcks() {
+        ReplicationPipeline pipeline = new ReplicationPipeline(batch -> { }, 1, 1, 0, false, 50);
+        try {
+            assertTrue(pipeline.awaitAck(-1));
+            assertTrue(pipeline.awaitAck(Long.MAX_VALUE));
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void batchRoundTrip() {
+        UserSessionInfo session = new UserSessionInfo("user", "nonce", SessionType.REGISTER, "", "");
+        ReplicationEvent add = ReplicationEvent.add(key("k1"), session);
+        ReplicationEvent remove = ReplicationEvent.remove(key("k2"));
+
+        List<ReplicationEvent> decoded = ReplicationBatch.decode(
+                ReplicationBatch.encode(Arrays.asList(add, remove)));
+
+        assertEquals(2, decoded.size());
+        assertEquals(ReplicationEvent.Operation.ADD, decoded.get(0).getOperation());
+        assertEquals(key("k1"), decoded.get(0).getKey());
+        assertEquals("nonce", decoded.get(0).getSession().getNonce());
+        assertEquals(ReplicationEvent.Operation.REMOVE, decoded.get(1).getOperation());
+        assertEquals(key("k2"), decoded.get(1).getKey());
+    }
+
+    @Test
+    void rejectsOtherVersions() {
+        ByteBuffer batch = ReplicationBatch.encode(Arrays.asList(ReplicationEvent.remove(key("k1"))));
+        batch.put(0, (byte) 1);
+
+        assertThrows(IllegalArgumentException.class, () -> ReplicationBatch.decode(batch));
+    }
+
+    private static DigestKey key(String name) {
+        return DigestKey.sha256(name);
+    }
+}
@@ -0,0 +1,70 @@
+package session;
+
+import crypto.CryptoPrimitives;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up a session by keyhandle in a map of outstanding sessions, keyed by
+ * the base64url text of the keyhandle's SHA-256, as Common.getDigest gives
+ * it, and by DigestKey. memoized is the preauthenticate side, where the
+ * digest comes with the cached key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestKeyBenchmark {
+
+    private static final int SESSIONS = 10_000;
+
+    private final ConcurrentHashMap<String, UserSessionInfo> byText = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DigestKey, UserSessionInfo> byDigest = new ConcurrentHashMap<>();
+    private String keyhandle;
+    private DigestKey memoized;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        UserSessionInfo session = new UserSessionInfo();
+        for (int i = 0; i < SESSIONS; i++) {
+            keyhandle = "kcQ4uOnIgj0ZRXHe9Cga8FTa09f9mkBDbLxE0S" + i;
+            byText.put(text(keyhandle), session);
+            byDigest.put(DigestKey.sha256(keyhandle), session);
+        }
+        memoized = DigestKey.sha256(keyhandle);
+    }
+
+    private static String text(String keyhandle) throws NoSuchAlgorithmException {
+        byte[] digest = CryptoPrimitives.digest("SHA-256").digest(keyhandle.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    @Benchmark
+    public UserSessionInfo base64Key() throws NoSuchAlgorithmException {
+        return byText.get(text(keyhandle));
+    }
+
+    @Benchmark
+    public UserSessionInfo digestKey() {
+        return byDigest.get(DigestKey.sha256(keyhandle));
+    }
+
+    @Benchmark
+    public UserSessionInfo memoized() {
+        return byDigest.get(memoized);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DigestKeyBenchmark.class.getSimpleName()).build()).run();
+    }
+}
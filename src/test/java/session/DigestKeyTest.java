@@ -0,0 +1,48 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DigestKeyTest {
+
+    private static final String KEYHANDLE = "kcQ4uOnIgj0ZRXHe9Cga8FTa09f9mkBDbLxE0SfrMlY";
+
+    @Test
+    void textIsWhatKeysUsedToBe() throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(KEYHANDLE.getBytes(StandardCharsets.UTF_8));
+        String legacy = Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+
+        DigestKey key = DigestKey.sha256(KEYHANDLE);
+        assertEquals(legacy, key.toString());
+        assertArrayEquals(digest, key.toBytes());
+        assertEquals(key, DigestKey.fromString(legacy));
+        assertEquals(key, DigestKey.of(digest));
+    }
+
+    @Test
+    void equalsAndHashCodeFollowTheDigest() {
+        DigestKey key = DigestKey.sha256(KEYHANDLE);
+        assertEquals(key, DigestKey.sha256(KEYHANDLE));
+        assertEquals(key.hashCode(), DigestKey.sha256(KEYHANDLE).hashCode());
+        assertNotEquals(key, DigestKey.sha256(KEYHANDLE + "x"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(DigestKey.LENGTH);
+        key.writeTo(buffer);
+        buffer.flip();
+        assertEquals(key, DigestKey.read(buffer));
+    }
+
+    @Test
+    void readsKeysFromTheirBytes() {
+        DigestKey key = DigestKey.sha256(KEYHANDLE);
+        assertEquals(key, DigestKey.of(key.toBytes()));
+
+        assertThrows(IllegalArgumentException.class, () -> DigestKey.of(new byte[20]));
+    }
+}
@@ -0,0 +1,103 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SealedChallengesTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void unsealReturnsSealedSessionOnce() {
+        SealedChallenges sealed = new SealedChallenges(KEY, 60_000);
+        UserSessionInfo session = new UserSessionInfo("user", "nonce", SessionType.REGISTER, "", "");
+        session.setUserId("userid");
+        session.setRpName("rp");
+        session.setPolicyMapKey("1-1");
+        session.setUserVerificationReq("preferred");
+        session.setAttestationPreferance("direct");
+
+        String challenge = sealed.seal("1", session);
+        UserSessionInfo opened = sealed.unseal("1", challenge);
+
+        assertNotNull(opened);
+        assertEquals("user", opened.getUsername());
+        assertEquals("userid", opened.getUserId());
+        assertEquals("rp", opened.getRpName());
+        assertEquals("1-1", opened.getPolicyMapKey());
+        assertEquals("preferred", opened.getUserVerificationReq());
+        assertEquals("direct", opened.getAttestationPreferance());
+        assertEquals(session.getCreationtime(), opened.getCreationtime());
+        assertEquals(challenge, opened.getNonce());
+        assertEquals("1", opened.getIcpId());
+
+        assertNull(sealed.unseal("1", challenge));
+        assertEquals(1, sealed.getReplayCount());
+    }
+
+    @Test
+    void tamperedOrForeignTokensAreRejected() {
+        SealedChallenges sealed = new SealedChallenges(KEY, 60_000);
+        String challenge = sealed.seal("1", new UserSessionInfo("user", "nonce", SessionType.REGISTER, "", ""));
+
+        byte[] token = Base64.getUrlDecoder().decode(challenge);
+        token[token.length - 1] ^= 1;
+        assertNull(sealed.unseal("1", Base64.getUrlEncoder().withoutPadding().encodeToString(token)));
+
+        SealedChallenges other = new SealedChallenges("fedcba9876543210".getBytes(StandardCharsets.US_ASCII), 60_000);
+        assertNull(other.unseal("1", challenge));
+        assertNull(sealed.unseal("1", "not a token"));
+        assertEquals(2, sealed.getRejectedCount());
+
+        // Rejected attempts do not burn the genuine token
+        assertNotNull(sealed.unseal("1", challenge));
+    }
+
+    @Test
+    void tokensOpenOnlyForTheirTenant() {
+        SealedChallenges sealed = new SealedChallenges(KEY, 60_000);
+        String challenge = sealed.seal("1", new UserSessionInfo("user", "nonce", SessionType.AUTHENTICATE, "", ""));
+
+        assertNull(sealed.unseal("2", challenge));
+        assertNull(sealed.unseal("11", challenge));
+        assertEquals(2, sealed.getRejectedCount());
+        assertNotNull(sealed.unseal("1", challenge));
+    }
+
+    @Test
+    void expiredTokensAreRejected() {
+        SealedChallenges sealed = new SealedChallenges(KEY, 60_000);
+        UserSessionInfo session = new UserSessionInfo("user", "nonce", SessionType.REGISTER, "", "");
+        session.setCreationdate(new Date(System.currentTimeMillis() - 61_000));
+
+        assertNull(sealed.unseal("1", sealed.seal("1", session)));
+        assertEquals(1, sealed.getRejectedCount());
+    }
+
+    @Test
+    void statelessModeNeedsARealKey() {
+        System.setProperty("session.property.stateless", "true");
+        System.setProperty("session.property.timeout", "300");
+        try {
+            System.clearProperty("session.property.sealkey");
+            assertThrows(IllegalStateException.class, () -> new SealedChallenges().init());
+
+            System.setProperty("session.property.sealkey", "9c2e41b07ad8f356");
+            assertThrows(IllegalStateException.class, () -> new SealedChallenges().init());
+
+            System.setProperty("session.property.sealkey", "000102030405060708090a0b0c0d0e0f");
+            SealedChallenges sealed = new SealedChallenges();
+            sealed.init();
+            assertTrue(sealed.isEnabled());
+        } finally {
+            System.clearProperty("session.property.stateless");
+            System.clearProperty("session.property.timeout");
+            System.clearProperty("session.property.sealkey");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionJournalTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void restartRestoresOnlyOutstandingSessions() throws IOException {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        SessionJournal journal = new SessionJournal(store, dir, SEGMENT_BYTES);
+        journal.open();
+
+        store.put(key("outstanding"), new UserSessionInfo("alice", "n1", SessionType.REGISTER, "", ""));
+        store.put(key("consumed"), new UserSessionInfo("bob", "n2", SessionType.AUTHENTICATE, "", ""));
+        store.put(key("replaced"), new UserSessionInfo("carol", "old", SessionType.REGISTER, "", ""));
+        store.put(key("replaced"), new UserSessionInfo("carol", "new", SessionType.REGISTER, "", ""));
+        assertNotNull(store.consume(key("consumed")));
+        journal.flush();
+
+        SessionStore restarted = new SessionStore(60_000, 1_000);
+        new SessionJournal(restarted, dir, SEGMENT_BYTES).open();
+
+        assertEquals(2, restarted.size());
+        assertEquals("alice", restarted.get(key("outstanding")).getUsername());
+        assertEquals("new", restarted.get(key("replaced")).getNonce());
+        assertNull(restarted.get(key("consumed")));
+
+        // Restored sessions keep their remaining lifetime
+        restarted.advanceTo(60);
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    void expiredSessionsAreNotRestored() throws IOException {
+        SessionStore store = new SessionStore(5_000, 1_000);
+        SessionJournal journal = new SessionJournal(store, dir, SEGMENT_BYTES);
+        journal.open();
+
+        store.put(key("expiring"), new UserSessionInfo());
+        store.advanceTo(5);
+        assertEquals(0, store.size());
+
+        SessionStore restarted = new SessionStore(5_000, 1_000);
+        new SessionJournal(restarted, dir, SEGMENT_BYTES).open();
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    void tornRecordEndsReplay() throws IOException {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        SessionJournal journal = new SessionJournal(store, dir, SEGMENT_BYTES);
+        journal.open();
+
+        store.put(key("first"), new UserSessionInfo("alice", "n1", SessionType.REGISTER, "", ""));
+        Path segment = onlySegment();
+        long firstEnd = Files.size(segment) - zeroTail(segment);
+        store.put(key("second"), new UserSessionInfo("bob", "n2", SessionType.REGISTER, "", ""));
+
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Damage a byte inside the second record
+            file.seek(firstEnd + 10);
+            file.write(file.read() ^ 0xFF);
+        }
+
+        SessionStore restarted = new SessionStore(60_000, 1_000);
+        new SessionJournal(restarted, dir, SEGMENT_BYTES).open();
+        assertNotNull(restarted.get(key("first")));
+        assertNull(restarted.get(key("second")));
+    }
+
+    @Test
+    void closedSegmentsAreDeletedOnceExpired() throws IOException {
+        SessionStore store = new SessionStore(1, 1);
+        SessionJournal journal = new SessionJournal(store, dir, 1024);
+        journal.open();
+
+        for (int i = 0; i < 100; i++) {
+            store.put(key("key" + i), new UserSessionInfo("user" + i, "nonce" + i, SessionType.REGISTER, "", ""));
+        }
+        assertTrue(segmentCount() > 1);
+
+        // Not yet expired: nothing is reclaimed
+        journal.flush(0);
+        assertTrue(segmentCount() > 1);
+
+        // Once every session in them has expired, only the active segment is left
+        journal.flush(System.currentTimeMillis() + 60_000);
+        assertEquals(1, segmentCount());
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.findFirst().orElseThrow(IllegalStateException::new);
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    private static long zeroTail(Path segment) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return bytes.length - end;
+    }
+
+    private static DigestKey key(String name) {
+        return DigestKey.sha256(name);
+    }
+}
@@ -0,0 +1,257 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStoreTest {
+
+    private static final int THREADS = 16;
+    private static final int CHALLENGES = 20_000;
+
+    @Test
+    void consumeReturnsSessionOnce() {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        UserSessionInfo session = new UserSessionInfo("user", "nonce", SessionType.AUTHENTICATE, "", "");
+        store.put(key("key"), session);
+
+        assertSame(session, store.get(key("key")));
+        assertSame(session, store.consume(key("key")));
+        assertNull(store.consume(key("key")));
+        assertNull(store.get(key("key")));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void sessionExpiresAtDeadline() {
+        SessionStore store = new SessionStore(5_000, 1_000);
+        store.put(key("key"), new UserSessionInfo());
+
+        store.advanceTo(4);
+        assertEquals(1, store.size());
+        store.advanceTo(5);
+        assertEquals(0, store.size());
+        assertEquals(1, store.getExpiredCount());
+        assertNull(store.consume(key("key")));
+    }
+
+    @Test
+    void sessionsBeyondFirstLevelExpireOnTime() {
+        SessionStore store = new SessionStore(100_000, 1);
+        store.put(key("key"), new UserSessionInfo());
+
+        store.advanceTo(99_999);
+        assertEquals(1, store.size());
+        store.advanceTo(100_000);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void eachChallengeIsHonoredExactlyOnceUnderContention() throws Exception {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        for (int i = 0; i < CHALLENGES; i++) {
+            store.put(key("challenge-" + i), new UserSessionInfo());
+        }
+
+        AtomicIntegerArray wins = new AtomicIntegerArray(CHALLENGES);
+        runConcurrently(thread -> {
+            // Every thread walks the whole key space from a different offset
+            int offset = thread * (CHALLENGES / THREADS);
+            for (int n = 0; n < CHALLENGES; n++) {
+                int i = (offset + n) % CHALLENGES;
+                if (store.consume(key("challenge-" + i)) != null) {
+                    wins.incrementAndGet(i);
+                }
+            }
+        });
+
+        for (int i = 0; i < CHALLENGES; i++) {
+            assertEquals(1, wins.get(i), "challenge-" + i);
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void consumeAndExpiryNeverBothClaimASession() throws Exception {
+        SessionStore store = new SessionStore(1_000, 1);
+        for (int i = 0; i < CHALLENGES; i++) {
+            store.put(key("challenge-" + i), new UserSessionInfo());
+        }
+
+        AtomicLong consumed = new AtomicLong();
+        runConcurrently(thread -> {
+            if (thread == 0) {
+                for (long tick = 0; tick <= 1_000; tick++) {
+                    store.advanceTo(tick);
+                }
+                return;
+            }
+            for (int i = thread; i < CHALLENGES; i += THREADS - 1) {
+                if (store.consume(key("challenge-" + i)) != null) {
+                    consumed.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(0, store.size());
+        assertEquals(CHALLENGES, consumed.get() + store.getExpiredCount());
+    }
+
+    @Test
+    void userCapEvictsTheirOldestChallenge() {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        store.setLimits(2, 100, Long.MAX_VALUE);
+
+        store.put(key("a"), session("icp1", "alice"));
+        store.put(key("b"), session("icp1", "alice"));
+        store.put(key("c"), session("icp1", "alice"));
+        store.put(key("other"), session("icp2", "alice"));
+
+        assertNull(store.get(key("a")));
+        assertNotNull(store.get(key("b")));
+        assertNotNull(store.get(key("c")));
+        assertNotNull(store.get(key("other")));
+        assertEquals(1, store.getUserEvictionCount());
+
+        // Consuming frees the slot again
+        assertNotNull(store.consume(key("b")));
+        store.put(key("d"), session("icp1", "alice"));
+        assertNotNull(store.get(key("c")));
+        assertEquals(1, store.getUserEvictionCount());
+    }
+
+    @Test
+    void oneRequestCountsOnceAgainstTheUserCap() {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        store.setLimits(2, 100, Long.MAX_VALUE);
+
+        store.put(key("a"), session("icp1", "alice"));
+        Map<DigestKey, UserSessionInfo> preauth = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            preauth.put(key("kh" + i), session("icp1", "alice"));
+        }
+        store.putAll(preauth);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(store.get(key("kh" + i)));
+        }
+        assertNotNull(store.get(key("a")));
+        assertEquals(0, store.getUserEvictionCount());
+
+        // The next request evicts the oldest one, then the whole preauth
+        store.put(key("b"), session("icp1", "alice"));
+        assertNull(store.get(key("a")));
+        assertNotNull(store.get(key("kh0")));
+        store.put(key("c"), session("icp1", "alice"));
+        for (int i = 0; i < 5; i++) {
+            assertNull(store.get(key("kh" + i)));
+        }
+        assertNotNull(store.get(key("b")));
+        assertNotNull(store.get(key("c")));
+        assertEquals(6, store.getUserEvictionCount());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    void oneRequestIsAdmittedWhollyOrNotAtAll() {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        store.setLimits(100, 3, Long.MAX_VALUE);
+
+        store.put(key("a"), session("icp1", "alice"));
+        Map<DigestKey, UserSessionInfo> preauth = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            preauth.put(key("kh" + i), session("icp1", "alice"));
+        }
+        assertThrows(SessionLimitException.class, () -> store.putAll(preauth));
+        assertEquals(1, store.size());
+        assertNull(store.get(key("kh0")));
+
+        // Nothing of the refused request is left counted against the tenant
+        preauth.remove(key("kh2"));
+        store.putAll(preauth);
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    void tenantCapRejectsNewSessions() {
+        SessionStore store = new SessionStore(60_000, 1_000);
+        store.setLimits(100, 2, Long.MAX_VALUE);
+
+        store.put(key("a"), session("icp1", "alice"));
+        store.put(key("b"), session("icp1", "bob"));
+        assertThrows(SessionLimitException.class, () -> store.put(key("c"), session("icp1", "carol")));
+        store.put(key("d"), session("icp2", "carol"));
+        assertEquals(1, store.getIcpRejectionCount());
+
+        store.advanceTo(60);
+        store.put(key("e"), session("icp1", "carol"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void memoryBudgetShedsLoadAndIsGivenBack() {
+        UserSessionInfo probe = session("icp", "user0");
+        int weight = UserSessionInfoCodec.encodedLength(probe);
+        SessionStore store = new SessionStore(60_000, 1_000);
+        store.setLimits(100, 100, weight * 3L);
+
+        store.put(key("k0"), probe);
+        store.put(key("k1"), session("icp", "user1"));
+        // Replacing a key does not count its old session twice
+        store.put(key("k1"), session("icp", "user1"));
+        assertEquals(weight * 2L, store.getUsedBytes());
+
+        store.put(key("k2"), session("icp", "user2"));
+        assertThrows(SessionLimitException.class, () -> store.put(key("k3"), session("icp", "user3")));
+        assertEquals(1, store.getMemoryRejectionCount());
+
+        store.consume(key("k0"));
+        store.advanceTo(60);
+        assertEquals(0, store.getUsedBytes());
+        store.put(key("k3"), session("icp", "user3"));
+    }
+
+    private static UserSessionInfo session(String icpId, String username) {
+        UserSessionInfo session = new UserSessionInfo(username, "nonce", SessionType.REGISTER, "", "");
+        session.setIcpId(icpId);
+        return session;
+    }
+
+    private static void runConcurrently(ThreadBody body) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                pool.execute(() -> {
+                    try {
+                        start.await();
+                        body.run(thread);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            start.countDown();
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int thread);
+    }
+
+    private static DigestKey key(String name) {
+        return DigestKey.sha256(name);
+    }
+}
@@ -0,0 +1,91 @@
+package session;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares UserSessionInfoCodec with Java serialization for a typical FIDO2
+ * registration session. Run with the gc profiler (-prof gc) to see allocation
+ * per operation; encoded sizes are printed at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UserSessionInfoCodecBenchmark {
+
+    private UserSessionInfo session;
+    private ByteBuffer buffer;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        session = new UserSessionInfo("johndoe@example.com", "0PwFSiWCzFKGE4oMx7bXy0ooNYvIUTxYwvKvCTvpYk4",
+                SessionType.REGISTER, "", "");
+        session.setDisplayName("John Doe");
+        session.setRpName("Example RP");
+        session.setUserId("Wq8E7Zm3rQpSd1C5Lr9kXg");
+        session.setSid((short) 1);
+        session.setSkid((short) 1);
+        session.setUserVerificationReq("preferred");
+        session.setAttestationPreferance("direct");
+        session.setPolicyMapKey("1-1");
+        session.setMapkey("kcQ4uOnIgj0ZRXHe9Cga8FTa09f9mkBDbLxE0SfrMlY");
+
+        buffer = ByteBuffer.allocate(4096);
+        UserSessionInfoCodec.encode(session, buffer);
+        buffer.flip();
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+
+        serialized = javaSerialize(session);
+        System.out.println("\ncodec bytes=" + encoded.length + ", java serialization bytes=" + serialized.length);
+    }
+
+    @Benchmark
+    public ByteBuffer codecEncode() {
+        buffer.clear();
+        UserSessionInfoCodec.encode(session, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public UserSessionInfo codecDecode() {
+        return UserSessionInfoCodec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public byte[] javaSerialization() throws IOException {
+        return javaSerialize(session);
+    }
+
+    @Benchmark
+    public Object javaDeserialization() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] javaSerialize(UserSessionInfo session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(session);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UserSessionInfoCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,156 @@
+package session;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserSessionInfoCodecTest {
+
+    private static UserSessionInfo full() {
+        UserSessionInfo session = new UserSessionInfo("johndoe@example.com", "0PwFSiWCzFKGE4oMx7bXy0ooNYvIUTxYwvKvCTvpYk4",
+                SessionType.AUTHENTICATE, "BPubKey", "sess-1");
+        session.setDisplayName("Jöhn 中 😀");
+        session.setRpName("Example RP");
+        session.setInitnonce("init");
+        session.setTxtimestamp(-1_600_000_000_123L);
+        session.setTxpayload("{\"amount\":10}");
+        session.setTxid("tx-9");
+        session.setUserId("Wq8E7Zm3rQpSd1C5Lr9kXg");
+        session.setCreationdate(new Date(1_700_000_000_789L));
+        session.setFkid(Long.MAX_VALUE);
+        session.setSkid(Short.MIN_VALUE);
+        session.setSid((short) 7);
+        session.setUserIcon("https://example.com/icon.png");
+        session.setUserVerificationReq("required");
+        session.setAttestationPreferance("direct");
+        session.setPolicyMapKey("1-1");
+        session.setMapkey("kcQ4uOnIgj0ZRXHe9Cga8FTa09f9mkBDbLxE0SfrMlY");
+        session.setIcpId("42");
+        return session;
+    }
+
+    private static UserSessionInfo empty() {
+        UserSessionInfo session = new UserSessionInfo();
+        session.setCreationdate(null);
+        session.setSkid(null);
+        session.setSid(null);
+        return session;
+    }
+
+    private static byte[] encode(UserSessionInfo session) {
+        ByteBuffer buffer = ByteBuffer.allocate(UserSessionInfoCodec.encodedLength(session));
+        UserSessionInfoCodec.encode(session, buffer);
+        assertFalse(buffer.hasRemaining(), "encodedLength is exact");
+        return buffer.array();
+    }
+
+    private static void assertSameSession(UserSessionInfo expected, UserSessionInfo actual) {
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getRpName(), actual.getRpName());
+        assertEquals(expected.getNonce(), actual.getNonce());
+        assertEquals(expected.getInitnonce(), actual.getInitnonce());
+        assertEquals(expected.getTxtimestamp(), actual.getTxtimestamp());
+        assertEquals(expected.getTxpayload(), actual.getTxpayload());
+        assertEquals(expected.getTxid(), actual.getTxid());
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getSessiontype(), actual.getSessiontype());
+        assertEquals(expected.getCreationdate(), actual.getCreationdate());
+        assertEquals(expected.getUserPublicKey(), actual.getUserPublicKey());
+        assertEquals(expected.getFkid(), actual.getFkid());
+        assertEquals(expected.getSkid(), actual.getSkid());
+        assertEquals(expected.getSid(), actual.getSid());
+        assertEquals(expected.getSessionid(), actual.getSessionid());
+        assertEquals(expected.getUserIcon(), actual.getUserIcon());
+        assertEquals(expected.getUserVerificationReq(), actual.getUserVerificationReq());
+        assertEquals(expected.getAttestationPreferance(), actual.getAttestationPreferance());
+        assertEquals(expected.getPolicyMapKey(), actual.getPolicyMapKey());
+        assertEquals(expected.getMapkey(), actual.getMapkey());
+        assertEquals(expected.getIcpId(), actual.getIcpId());
+    }
+
+    @Test
+    void roundTripsEveryField() {
+        UserSessionInfo session = full();
+        assertSameSession(session, UserSessionInfoCodec.decode(ByteBuffer.wrap(encode(session))));
+    }
+
+    @Test
+    void roundTripsEveryFieldNull() {
+        UserSessionInfo session = empty();
+        byte[] encoded = encode(session);
+        UserSessionInfo decoded = UserSessionInfoCodec.decode(ByteBuffer.wrap(encoded));
+
+        assertSameSession(session, decoded);
+        assertFalse(decoded.hasCreationdate());
+        assertNull(decoded.getSkid());
+        assertNull(decoded.getSid());
+        // version, empty presence bitmap and a zero fkid
+        assertEquals(3, encoded.length);
+    }
+
+    @Test
+    void keepsCreationDateToTheMillisecond() {
+        UserSessionInfo session = empty();
+        for (long millis : new long[]{0, 1, 999, 1_700_000_000_001L, -1, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            session.setCreationdate(new Date(millis));
+            assertEquals(millis, UserSessionInfoCodec.decode(ByteBuffer.wrap(encode(session))).getCreationtime());
+        }
+    }
+
+    @Test
+    void readsOneRecordAndLeavesWhatFollows() {
+        byte[] encoded = encode(full());
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 3);
+        buffer.put(encoded).put(new byte[]{1, 2, 3}).flip();
+
+        UserSessionInfoCodec.decode(buffer);
+        assertEquals(encoded.length, buffer.position());
+    }
+
+    @Test
+    void rejectsUnknownVersions() {
+        byte[] encoded = encode(full());
+        for (byte version : new byte[]{0, 1, UserSessionInfoCodec.VERSION + 1, 100, -1}) {
+            encoded[0] = version;
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> UserSessionInfoCodec.decode(ByteBuffer.wrap(encoded)));
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        byte[] encoded = encode(full());
+        for (int length = 0; length < encoded.length; length++) {
+            byte[] truncated = Arrays.copyOf(encoded, length);
+            assertThrows(IllegalArgumentException.class, () -> UserSessionInfoCodec.decode(ByteBuffer.wrap(truncated)),
+                    "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsOversizedLengthsAndVarints() {
+        // A username claiming more bytes than follow
+        byte[] longString = {UserSessionInfoCodec.VERSION, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 'a'};
+        assertThrows(IllegalArgumentException.class, () -> UserSessionInfoCodec.decode(ByteBuffer.wrap(longString)));
+
+        // A length beyond a long's sign bit
+        byte[] negative = new byte[12];
+        negative[0] = UserSessionInfoCodec.VERSION;
+        negative[1] = 0x01;
+        Arrays.fill(negative, 2, 11, (byte) 0xFF);
+        negative[11] = 0x01;
+        assertThrows(IllegalArgumentException.class, () -> UserSessionInfoCodec.decode(ByteBuffer.wrap(negative)));
+
+        // A presence bitmap that never ends
+        byte[] endless = new byte[16];
+        endless[0] = UserSessionInfoCodec.VERSION;
+        Arrays.fill(endless, 1, endless.length, (byte) 0x80);
+        assertThrows(IllegalArgumentException.class, () -> UserSessionInfoCodec.decode(ByteBuffer.wrap(endless)));
+    }
+}
@@ -0,0 +1,84 @@
+package u2f;
+
+import dal.Database;
+import dal.KeyPageToken;
+import model.FidoKey;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeysInfoWriterTest {
+
+    /**
+     * Serves keys with fkids 1 to count, without a database.
+     */
+    private static Database keys(int count) {
+        return new Database() {
+            @Override
+            public List<FidoKey> getKeyPage(String icpId, String username, long afterFkid, int limit) {
+                List<FidoKey> page = new ArrayList<>();
+                for (long fkid = afterFkid + 1; fkid <= count && page.size() < limit; fkid++) {
+                    FidoKey key = new FidoKey();
+                    key.setSid((short) 1);
+                    key.setIcpid(icpId);
+                    key.setUsername(username);
+                    key.setFkid(fkid);
+                    key.setKeyhandleToken("kh" + fkid);
+                    key.setAttsid((short) 2);
+                    key.setAttcid(3);
+                    key.setStatus("Active");
+                    page.add(key);
+                }
+                return page;
+            }
+        };
+    }
+
+    private static JsonObject write(KeysInfoWriter writer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.write(output);
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(output.toByteArray()))) {
+            return reader.readObject().getJsonObject("Response");
+        }
+    }
+
+    @Test
+    void writesAPageWithItsContinuation() {
+        KeysInfoWriter writer = new KeysInfoWriter(keys(5), "1", "alice", 0, 2);
+        JsonObject page = write(writer);
+
+        JsonArray keys = page.getJsonArray("keys");
+        assertEquals(2, keys.size());
+        assertEquals(2, writer.getWritten());
+        assertEquals("1-1-alice-1", keys.getJsonObject(0).getString("keyid"));
+        assertEquals("kh2", keys.getJsonObject(1).getString("keyhandle"));
+        assertEquals(3, keys.getJsonObject(1).getInt("attcid"));
+        assertEquals(2, KeyPageToken.decode(page.getString("next")));
+    }
+
+    @Test
+    void lastPageHasNoContinuation() {
+        JsonObject page = write(new KeysInfoWriter(keys(5), "1", "alice", 3, 2));
+
+        assertEquals(2, page.getJsonArray("keys").size());
+        assertEquals("1-1-alice-5", page.getJsonArray("keys").getJsonObject(1).getString("keyid"));
+        assertFalse(page.containsKey("next"));
+    }
+
+    @Test
+    void emptyPage() {
+        JsonObject page = write(new KeysInfoWriter(keys(5), "1", "alice", 5, 2));
+
+        assertTrue(page.getJsonArray("keys").isEmpty());
+        assertFalse(page.containsKey("next"));
+    }
+}